@@ -38,6 +38,7 @@ import org.session.libsession.messaging.MessagingModuleConfiguration;
 import org.session.libsession.messaging.sending_receiving.notifications.MessageNotifier;
 import org.session.libsession.messaging.sending_receiving.pollers.ClosedGroupPollerV2;
 import org.session.libsession.messaging.sending_receiving.pollers.Poller;
+import org.session.libsession.snode.OnionRequestAPI;
 import org.session.libsession.snode.SnodeModule;
 import org.session.libsession.utilities.Address;
 import org.session.libsession.utilities.ConfigFactoryUpdateListener;
@@ -86,6 +87,7 @@ import org.thoughtcrime.securesms.sskenvironment.TypingStatusRepository;
 import org.thoughtcrime.securesms.util.Broadcaster;
 import org.thoughtcrime.securesms.util.dynamiclanguage.LocaleParseHelper;
 import org.thoughtcrime.securesms.webrtc.CallMessageProcessor;
+import org.thoughtcrime.securesms.webrtc.NetworkChangeReceiver;
 import org.webrtc.PeerConnectionFactory;
 import org.webrtc.PeerConnectionFactory.InitializationOptions;
 import org.webrtc.voiceengine.WebRtcAudioManager;
@@ -141,6 +143,7 @@ public class ApplicationContext extends Application implements DefaultLifecycleO
     private HandlerThread conversationListHandlerThread;
     private Handler conversationListHandler;
     private PersistentLogger persistentLogger;
+    private NetworkChangeReceiver networkChangeReceiver;
 
     @Inject LokiAPIDatabase lokiAPIDatabase;
     @Inject public Storage storage;
@@ -248,6 +251,7 @@ public class ApplicationContext extends Application implements DefaultLifecycleO
 
         NetworkConstraint networkConstraint = new NetworkConstraint.Factory(this).create();
         HTTP.INSTANCE.setConnectedToNetwork(networkConstraint::isMet);
+        initializeOnionPathWarmUp();
     }
 
     @Override
@@ -289,9 +293,23 @@ public class ApplicationContext extends Application implements DefaultLifecycleO
     public void onTerminate() {
         stopKovenant(); // Loki
         OpenGroupManager.INSTANCE.stopPolling();
+        if (networkChangeReceiver != null) {
+            networkChangeReceiver.unregister(this);
+        }
         super.onTerminate();
     }
 
+    private void initializeOnionPathWarmUp() {
+        // Build and test onion request paths as soon as the device (re)gains connectivity so the
+        // first request after a network switch doesn't have to. The state reported on registration
+        // isn't a change, so it's ignored rather than warming up paths at every app start.
+        networkChangeReceiver = new NetworkChangeReceiver(isConnected -> {
+            OnionRequestAPI.INSTANCE.getPathWarmer().onConnectivityChanged(isConnected);
+            return Unit.INSTANCE;
+        }, true);
+        networkChangeReceiver.register(this);
+    }
+
     public void initializeLocaleParser() {
         LocaleParser.Companion.configure(new LocaleParseHelper());
     }
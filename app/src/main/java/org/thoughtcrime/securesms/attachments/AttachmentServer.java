@@ -4,20 +4,26 @@ package org.thoughtcrime.securesms.attachments;
 import android.content.Context;
 import android.net.Uri;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
+import org.session.libsession.messaging.sending_receiving.attachments.DatabaseAttachment;
 import org.session.libsignal.utilities.Log;
+import org.thoughtcrime.securesms.crypto.ModernDecryptingPartFile;
+import org.thoughtcrime.securesms.dependencies.DatabaseComponent;
 import org.thoughtcrime.securesms.mms.PartAuthority;
 
 import org.session.libsignal.utilities.Hex;
 import org.session.libsession.utilities.Util;
 import org.session.libsession.messaging.sending_receiving.attachments.Attachment;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.ServerSocket;
@@ -25,37 +31,85 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Properties;
-import java.util.StringTokenizer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Serves an attachment's decrypted data over HTTP on localhost, for media players that need a Uri.
+ *
+ * Up to {@link #MAX_CONNECTIONS} connections are served at once, each kept alive between requests.
+ * When that many are open, the connection that has waited longest for its next request is closed
+ * to make room for a new one. Range requests are served by reading from the position asked for in
+ * a {@link DataSource} shared by the connections, rather than decrypting the attachment from the
+ * start for every seek.
+ *
  * @author      Stefan "frostymarvelous" Froelich <stefan d0t froelich At whisppa DoT com>
  */
 public class AttachmentServer implements Runnable {
 
   private static final String TAG = AttachmentServer.class.getSimpleName();
 
-  private final Context      context;
-  private final Attachment   attachment;
-  private final ServerSocket socket;
-  private final int          port;
-  private final String       auth;
+  private static final int MAX_CONNECTIONS     = 4;
+  private static final int IDLE_TIMEOUT_MILLIS = 15000;
+  private static final int MAX_HEADER_LENGTH   = 8192;
+
+  /**
+   * Random access reads of the data being served, shared between connections.
+   */
+  interface DataSource extends Closeable {
+    /**
+     * @return the number of bytes read, or -1 if {@code position} is at the end of the data.
+     */
+    int read(long position, @NonNull byte[] buffer, int offset, int length) throws IOException;
+  }
+
+  private final DataSource        dataSource;
+  private final long              size;
+  private final String            contentType;
+  private final ServerSocket      socket;
+  private final int               port;
+  private final String            auth;
+  private final ExecutorService   executor;
+  private final Semaphore         connectionSlots = new Semaphore(MAX_CONNECTIONS);
+  private final Set<Socket>       clients         = Collections.newSetFromMap(new ConcurrentHashMap<>());
+  private final Map<Socket, Long> idleClients     = new ConcurrentHashMap<>();
 
   private volatile boolean isRunning;
 
   public AttachmentServer(Context context, Attachment attachment)
       throws IOException
+  {
+    this(new AttachmentDataSource(context, attachment), attachment.getSize(), attachment.getContentType());
+  }
+
+  @VisibleForTesting
+  AttachmentServer(@NonNull DataSource dataSource, long size, @NonNull String contentType)
+      throws IOException
   {
     try {
-      this.context      = context;
-      this.attachment   = attachment;
+      this.dataSource   = dataSource;
+      this.size         = size;
+      this.contentType  = contentType;
       this.socket       = new ServerSocket(0, 0, InetAddress.getByAddress(new byte[]{127, 0, 0, 1}));
       this.port         = socket.getLocalPort();
       this.auth         = Hex.toStringCondensed(Util.getSecretBytes(16));
 
+      // The number of connections is bounded by connectionSlots rather than the pool, as a closed
+      // connection's thread may still be finishing up when the next connection is handed its slot
+      this.executor     = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 15, TimeUnit.SECONDS, new SynchronousQueue<>());
+
       this.socket.setSoTimeout(5000);
     } catch (UnknownHostException e) {
       throw new AssertionError(e);
@@ -68,305 +122,378 @@ public class AttachmentServer implements Runnable {
 
   public void start() {
     isRunning = true;
-    new Thread(this).start();
+    new Thread(this, TAG).start();
   }
 
   public void stop() {
     isRunning = false;
+
+    try {
+      socket.close();
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    }
+
+    executor.shutdownNow();
+
+    for (Socket client : clients) {
+      closeQuietly(client);
+    }
+
+    closeQuietly(dataSource);
   }
 
   @Override
   public void run() {
     while (isRunning) {
-      Socket client = null;
-
       try {
-        client = socket.accept();
-
-        if (client != null) {
-          StreamToMediaPlayerTask task = new StreamToMediaPlayerTask(client, "/" + auth);
-
-          if (task.processRequest()) {
-            task.execute();
-          }
+        Socket client = socket.accept();
+        clients.add(client);
+
+        // Wait for the slot of the connection closed to make room to be released when it's served
+        boolean hasSlot = connectionSlots.tryAcquire() ||
+                          (closeLongestIdleClient() && connectionSlots.tryAcquire(1, TimeUnit.SECONDS));
+
+        if (!hasSlot) {
+          Log.w(TAG, "Too many connections, closing one.");
+          clients.remove(client);
+          closeQuietly(client);
+          continue;
         }
 
+        try {
+          executor.execute(() -> serve(client));
+        } catch (RejectedExecutionException e) {
+          connectionSlots.release();
+          clients.remove(client);
+          closeQuietly(client);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
       } catch (SocketTimeoutException e) {
-        Log.w(TAG, e);
+        // Check whether we've been stopped
       } catch (IOException e) {
-        Log.e(TAG, "Error connecting to client", e);
-      } finally {
-        try {if (client != null) client.close();} catch (IOException e) {}
+        if (isRunning) Log.e(TAG, "Error connecting to client", e);
       }
     }
 
     Log.d(TAG, "Proxy interrupted. Shutting down.");
   }
 
+  private void serve(@NonNull Socket client) {
+    try {
+      client.setSoTimeout(IDLE_TIMEOUT_MILLIS);
 
-  private class StreamToMediaPlayerTask {
+      InputStream  input  = new BufferedInputStream(client.getInputStream());
+      OutputStream output = new BufferedOutputStream(client.getOutputStream(), 32 * 1024);
 
-    private final @NonNull Socket client;
-    private final @NonNull String auth;
+      boolean keepAlive = true;
+      while (isRunning && keepAlive) {
+        idleClients.put(client, System.currentTimeMillis());
+        input.mark(1);
+        int firstByte = input.read();
 
-    private long       cbSkip;
-    private Properties parameters;
-    private Properties request;
-    private Properties requestHeaders;
-//    private String filePath;
+        // The connection was closed to make room for another one while it was waiting
+        if (idleClients.remove(client) == null || firstByte == -1) {
+          break;
+        }
 
-    public StreamToMediaPlayerTask(@NonNull Socket client, @NonNull String auth) {
-      this.client = client;
-      this.auth   = auth;
+        input.reset();
+        keepAlive = serveRequest(input, output);
+      }
+    } catch (SocketTimeoutException e) {
+      Log.d(TAG, "Closing idle connection.");
+    } catch (SocketException e) {
+      Log.d(TAG, "SocketException thrown, the client has probably closed the connection.");
+    } catch (IOException e) {
+      Log.w(TAG, "Error serving request", e);
+    } finally {
+      idleClients.remove(client);
+      clients.remove(client);
+      closeQuietly(client);
+      connectionSlots.release();
     }
+  }
 
-    public boolean processRequest() throws IOException {
-            InputStream is         = client.getInputStream();
-      final int         bufferSize = 8192;
-            byte[]      buffer     = new byte[bufferSize];
-            int         splitByte  = 0;
-            int         readLength = 0;
-
-      {
-        int read = is.read(buffer, 0, bufferSize);
-        while (read > 0) {
-          readLength += read;
-          splitByte = findHeaderEnd(buffer, readLength);
-          if (splitByte > 0)
-            break;
-          read = is.read(buffer, readLength, bufferSize - readLength);
-        }
+  /**
+   * @return whether a connection waiting for its next request was closed.
+   */
+  private boolean closeLongestIdleClient() {
+    Socket longestIdle  = null;
+    long   oldestActive = Long.MAX_VALUE;
+
+    for (Map.Entry<Socket, Long> entry : idleClients.entrySet()) {
+      if (entry.getValue() < oldestActive) {
+        longestIdle  = entry.getKey();
+        oldestActive = entry.getValue();
       }
+    }
 
-      // Create a BufferedReader for parsing the header.
-      ByteArrayInputStream hbis = new ByteArrayInputStream(buffer, 0, readLength);
-      BufferedReader       hin  = new BufferedReader(new InputStreamReader(hbis));
+    // Its thread may have just picked up a request, in which case it has already removed itself
+    if (longestIdle == null || idleClients.remove(longestIdle) == null) {
+      return false;
+    }
 
-      request        = new Properties();
-      parameters     = new Properties();
-      requestHeaders = new Properties();
+    Log.d(TAG, "Too many connections, closing the longest idle one.");
+    closeQuietly(longestIdle);
+    return true;
+  }
 
-      try {
-        decodeHeader(hin, request, parameters, requestHeaders);
-      } catch (InterruptedException e1) {
-        Log.e(TAG, "Exception: " + e1.getMessage());
-        e1.printStackTrace();
-      }
+  /**
+   * @return whether the connection should be kept open for another request.
+   */
+  private boolean serveRequest(@NonNull InputStream input, @NonNull OutputStream output) throws IOException {
+    Request request = Request.read(input);
 
-      for (Map.Entry<Object, Object> e : requestHeaders.entrySet()) {
-        Log.i(TAG, "Header: " + e.getKey() + " : " + e.getValue());
-      }
+    if (request == null) {
+      return false;
+    }
 
-      String range = requestHeaders.getProperty("range");
+    if (!"GET".equals(request.method)) {
+      Log.w(TAG, "Only GET is supported: " + request.method);
+      writeEmptyResponse(output, "405 Method Not Allowed", null);
+      return false;
+    }
 
-      if (range != null) {
-        Log.i(TAG, "range is: " + range);
-        range = range.substring(6);
-        int charPos = range.indexOf('-');
-        if (charPos > 0) {
-          range = range.substring(0, charPos);
-        }
-        cbSkip = Long.parseLong(range);
-        Log.i(TAG, "range found!! " + cbSkip);
-      }
+    if (!MessageDigest.isEqual(request.uri.getBytes(), ("/" + auth).getBytes())) {
+      Log.w(TAG, "Bad auth token!");
+      writeEmptyResponse(output, "403 Forbidden", null);
+      return false;
+    }
 
-      if (!"GET".equals(request.get("method"))) {
-        Log.e(TAG, "Only GET is supported: " + request.get("method"));
-        return false;
-      }
+    long    start   = 0;
+    long    end     = size - 1;
+    String  range   = request.headers.get("range");
+    long[]  bounds  = range != null ? parseRange(range, size) : null;
+
+    if (bounds != null && bounds[0] >= size) {
+      writeEmptyResponse(output, "416 Range Not Satisfiable", "Content-Range: bytes */" + size + "\r\n");
+      return request.keepAlive;
+    }
 
-      String receivedAuth = request.getProperty("uri");
+    String headers;
+    if (bounds != null) {
+      start = bounds[0];
+      end   = bounds[1];
 
-      if (receivedAuth == null || !MessageDigest.isEqual(receivedAuth.getBytes(), auth.getBytes())) {
-        Log.w(TAG, "Bad auth token!");
-        return false;
+      headers  = "HTTP/1.1 206 Partial Content\r\n";
+      headers += "Content-Range: bytes " + start + "-" + end + "/" + size + "\r\n";
+    } else {
+      headers  = "HTTP/1.1 200 OK\r\n";
+    }
+
+    headers += "Content-Type: " + contentType + "\r\n";
+    headers += "Accept-Ranges: bytes\r\n";
+    headers += "Content-Length: " + (end - start + 1) + "\r\n";
+    headers += "Connection: " + (request.keepAlive ? "Keep-Alive" : "close") + "\r\n";
+    headers += "\r\n";
+
+    output.write(headers.getBytes(StandardCharsets.ISO_8859_1));
+
+    byte[] buffer   = new byte[64 * 1024];
+    long   position = start;
+
+    while (position <= end) {
+      int read = dataSource.read(position, buffer, 0, (int) Math.min(buffer.length, end - position + 1));
+
+      if (read <= 0) {
+        // The response can't be completed, so the connection has to be closed
+        throw new EOFException("Data ended at " + position + " of " + size);
       }
 
-//      filePath = request.getProperty("uri");
+      output.write(buffer, 0, read);
+      position += read;
+    }
 
-      return true;
+    output.flush();
+    return request.keepAlive;
+  }
+
+  private static void writeEmptyResponse(@NonNull OutputStream output, @NonNull String status, @Nullable String headers) throws IOException {
+    String response = "HTTP/1.1 " + status + "\r\n" +
+                      (headers != null ? headers : "") +
+                      "Content-Length: 0\r\n" +
+                      "\r\n";
+
+    output.write(response.getBytes(StandardCharsets.ISO_8859_1));
+    output.flush();
+  }
+
+  /**
+   * Parses a single range such as {@code bytes=100-199}, {@code bytes=100-} or {@code bytes=-100}.
+   *
+   * @return the first and last byte of the range, with the last limited to the end of the data, or
+   *         null if the range can't be parsed, in which case the whole of the data is served.
+   */
+  @VisibleForTesting
+  static @Nullable long[] parseRange(@NonNull String range, long size) {
+    if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+      return null;
     }
 
-    protected void execute() throws IOException {
-      InputStream inputStream = PartAuthority.getAttachmentStream(context, attachment.getDataUri());
-      long        fileSize    = attachment.getSize();
-
-      String headers = "";
-      if (cbSkip > 0) {// It is a seek or skip request if there's a Range
-        // header
-        headers += "HTTP/1.1 206 Partial Content\r\n";
-        headers += "Content-Type: " + attachment.getContentType() + "\r\n";
-        headers += "Accept-Ranges: bytes\r\n";
-        headers += "Content-Length: " + (fileSize - cbSkip) + "\r\n";
-        headers += "Content-Range: bytes " + cbSkip + "-" + (fileSize - 1) + "/" + fileSize + "\r\n";
-        headers += "Connection: Keep-Alive\r\n";
-        headers += "\r\n";
-      } else {
-        headers += "HTTP/1.1 200 OK\r\n";
-        headers += "Content-Type: " + attachment.getContentType() + "\r\n";
-        headers += "Accept-Ranges: bytes\r\n";
-        headers += "Content-Length: " + fileSize + "\r\n";
-        headers += "Connection: Keep-Alive\r\n";
-        headers += "\r\n";
+    String spec = range.substring("bytes=".length()).trim();
+    int    dash = spec.indexOf('-');
+
+    if (dash < 0) {
+      return null;
+    }
+
+    try {
+      String first = spec.substring(0, dash).trim();
+      String last  = spec.substring(dash + 1).trim();
+
+      if (first.isEmpty()) {
+        long suffixLength = Long.parseLong(last);
+        return new long[] { Math.max(0, size - suffixLength), size - 1 };
       }
 
-      Log.i(TAG, "headers: " + headers);
+      long start = Long.parseLong(first);
+      long end   = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
 
-      OutputStream output = null;
-      byte[] buff = new byte[64 * 1024];
-      try {
-        output = new BufferedOutputStream(client.getOutputStream(), 32 * 1024);
-        output.write(headers.getBytes());
+      return end < start && start < size ? null : new long[] { start, end };
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
 
-        inputStream.skip(cbSkip);
-//        dataSource.skipFully(data, cbSkip);//try to skip as much as possible
+  private static void closeQuietly(@NonNull Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    }
+  }
 
-        // Loop as long as there's stuff to send and client has not closed
-        int cbRead;
-        while (!client.isClosed() && (cbRead = inputStream.read(buff, 0, buff.length)) != -1) {
-          output.write(buff, 0, cbRead);
-        }
+  private static class Request {
+
+    private final String              method;
+    private final String              uri;
+    private final Map<String, String> headers;
+    private final boolean             keepAlive;
+
+    private Request(@NonNull String method, @NonNull String uri, @NonNull Map<String, String> headers, boolean keepAlive) {
+      this.method    = method;
+      this.uri       = uri;
+      this.headers   = headers;
+      this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Reads the request line and headers, leaving the stream at the start of the next request.
+     *
+     * @return the request, or null if the client closed the connection.
+     */
+    private static @Nullable Request read(@NonNull InputStream input) throws IOException {
+      int[]  headerLength = new int[1];
+      String requestLine  = readLine(input, headerLength);
+
+      if (requestLine == null) {
+        return null;
       }
-      catch (SocketException socketException) {
-        Log.e(TAG, "SocketException() thrown, proxy client has probably closed. This can exit harmlessly");
+
+      String[] parts = requestLine.split(" ");
+
+      if (parts.length < 2) {
+        throw new IOException("Bad request line: " + requestLine);
       }
-      catch (Exception e) {
-        Log.e(TAG, "Exception thrown from streaming task:");
-        Log.e(TAG, e.getClass().getName() + " : " + e.getLocalizedMessage());
+
+      // Header names are case insensitive, so they're kept in lowercase
+      Map<String, String> headers = new HashMap<>();
+      String              line;
+
+      while ((line = readLine(input, headerLength)) != null && !line.isEmpty()) {
+        int separator = line.indexOf(':');
+        if (separator >= 0) {
+          headers.put(line.substring(0, separator).trim().toLowerCase(Locale.ROOT), line.substring(separator + 1).trim());
+        }
       }
 
-      // Cleanup
-      try {
-        if (output != null) {
-          output.close();
+      String  version    = parts.length > 2 ? parts[2] : "HTTP/1.0";
+      String  connection = headers.get("connection");
+      boolean keepAlive  = "HTTP/1.1".equals(version) ? !"close".equalsIgnoreCase(connection)
+                                                      : "keep-alive".equalsIgnoreCase(connection);
+
+      return new Request(parts[0], parts[1], headers, keepAlive);
+    }
+
+    private static @Nullable String readLine(@NonNull InputStream input, @NonNull int[] headerLength) throws IOException {
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      int                   b;
+
+      while ((b = input.read()) != -1 && b != '\n') {
+        if (++headerLength[0] > MAX_HEADER_LENGTH) {
+          throw new IOException("Request header too long");
         }
-        client.close();
+        if (b != '\r') line.write(b);
       }
-      catch (IOException e) {
-        Log.e(TAG, "IOException while cleaning up streaming task:");
-        Log.e(TAG, e.getClass().getName() + " : " + e.getLocalizedMessage());
-        e.printStackTrace();
+
+      if (b == -1 && line.size() == 0) {
+        return null;
       }
+
+      return new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
     }
+  }
 
-    /**
-     * Find byte index separating header from body. It must be the last byte of
-     * the first two sequential new lines.
-     **/
-    private int findHeaderEnd(final byte[] buf, int rlen) {
-      int splitbyte = 0;
-      while (splitbyte + 3 < rlen) {
-        if (buf[splitbyte] == '\r' && buf[splitbyte + 1] == '\n'
-            && buf[splitbyte + 2] == '\r' && buf[splitbyte + 3] == '\n')
-          return splitbyte + 4;
-        splitbyte++;
-      }
-      return 0;
+  /**
+   * Reads an attachment in the database through a {@link ModernDecryptingPartFile}, opened on the
+   * first read and kept open for seeking. Other attachments, such as ones that haven't been saved
+   * yet or were encrypted the old way, are read from a stream that's kept while reads carry on from
+   * where the last one stopped, and reopened to seek.
+   */
+  private static class AttachmentDataSource implements DataSource {
+
+    private final Context    context;
+    private final Attachment attachment;
+
+    private boolean                  opened;
+    private ModernDecryptingPartFile file;
+    private InputStream              stream;
+    private long                     streamPosition;
+
+    private AttachmentDataSource(@NonNull Context context, @NonNull Attachment attachment) {
+      this.context    = context.getApplicationContext();
+      this.attachment = attachment;
     }
 
+    @Override
+    public synchronized int read(long position, @NonNull byte[] buffer, int offset, int length) throws IOException {
+      if (!opened) {
+        opened = true;
 
-    /**
-     * Decodes the sent headers and loads the data into java Properties' key -
-     * value pairs
-     **/
-    private void decodeHeader(BufferedReader in, Properties pre,
-                              Properties parms, Properties header) throws InterruptedException {
-      try {
-        // Read the request line
-        String inLine = in.readLine();
-        if (inLine == null)
-          return;
-        StringTokenizer st = new StringTokenizer(inLine);
-        if (!st.hasMoreTokens())
-          Log.e(TAG, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
-
-        String method = st.nextToken();
-        pre.put("method", method);
-
-        if (!st.hasMoreTokens())
-          Log.e(TAG, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
-
-        String uri = st.nextToken();
-
-        // Decode parameters from the URI
-        int qmi = uri.indexOf('?');
-        if (qmi >= 0) {
-          decodeParms(uri.substring(qmi + 1), parms);
-          uri = decodePercent(uri.substring(0, qmi));
-        } else
-          uri = decodePercent(uri);
-
-        // If there's another token, it's protocol version,
-        // followed by HTTP headers. Ignore version but parse headers.
-        // NOTE: this now forces header names lowercase since they are
-        // case insensitive and vary by client.
-        if (st.hasMoreTokens()) {
-          String line = in.readLine();
-          while (line != null && line.trim().length() > 0) {
-            int p = line.indexOf(':');
-            if (p >= 0)
-              header.put(line.substring(0, p).trim().toLowerCase(),
-                         line.substring(p + 1).trim());
-            line = in.readLine();
-          }
+        if (attachment instanceof DatabaseAttachment) {
+          file = DatabaseComponent.get(context).attachmentDatabase().getAttachmentFile(((DatabaseAttachment) attachment).getAttachmentId());
         }
-
-        pre.put("uri", uri);
-      } catch (IOException ioe) {
-        Log.e(TAG, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
       }
-    }
 
-    /**
-     * Decodes parameters in percent-encoded URI-format ( e.g.
-     * "name=Jack%20Daniels&pass=Single%20Malt" ) and adds them to given
-     * Properties. NOTE: this doesn't support multiple identical keys due to the
-     * simplicity of Properties -- if you need multiples, you might want to
-     * replace the Properties with a Hashtable of Vectors or such.
-     */
-    private void decodeParms(String parms, Properties p)
-        throws InterruptedException {
-      if (parms == null)
-        return;
-
-      StringTokenizer st = new StringTokenizer(parms, "&");
-      while (st.hasMoreTokens()) {
-        String e = st.nextToken();
-        int sep = e.indexOf('=');
-        if (sep >= 0)
-          p.put(decodePercent(e.substring(0, sep)).trim(),
-                decodePercent(e.substring(sep + 1)));
+      if (file != null) {
+        return file.read(position, buffer, offset, length);
       }
-    }
 
-    /**
-     * Decodes the percent encoding scheme. <br/>
-     * For example: "an+example%20string" -> "an example string"
-     */
-    private String decodePercent(String str) throws InterruptedException {
-      try {
-        StringBuffer sb = new StringBuffer();
-        for (int i = 0; i < str.length(); i++) {
-          char c = str.charAt(i);
-          switch (c) {
-            case '+':
-              sb.append(' ');
-              break;
-            case '%':
-              sb.append((char) Integer.parseInt(
-                  str.substring(i + 1, i + 3), 16));
-              i += 2;
-              break;
-            default:
-              sb.append(c);
-              break;
-          }
+      if (stream == null || position != streamPosition) {
+        if (stream != null) stream.close();
+
+        stream         = PartAuthority.getAttachmentStream(context, attachment.getDataUri());
+        streamPosition = 0;
+
+        while (streamPosition < position) {
+          long skipped = stream.skip(position - streamPosition);
+          if (skipped <= 0) return -1;
+          streamPosition += skipped;
         }
-        return sb.toString();
-      } catch (Exception e) {
-        Log.e(TAG, "BAD REQUEST: Bad percent-encoding.");
-        return null;
       }
+
+      int read = stream.read(buffer, offset, length);
+      if (read > 0) streamPosition += read;
+
+      return read;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      if (file != null) file.close();
+      if (stream != null) stream.close();
     }
   }
-}
\ No newline at end of file
+}
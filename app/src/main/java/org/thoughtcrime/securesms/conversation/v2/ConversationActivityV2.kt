@@ -35,6 +35,7 @@ import android.widget.Toast
 import androidx.activity.result.ActivityResult
 import androidx.activity.result.contract.ActivityResultContracts
 import androidx.activity.viewModels
+import androidx.annotation.WorkerThread
 import androidx.core.text.set
 import androidx.core.text.toSpannable
 import androidx.core.view.drawToBitmap
@@ -299,8 +300,19 @@ class ConversationActivityV2 : PassphraseRequiredActionBarActivity(), InputBarDe
     // as read if we reverse the message list so this is now hard-coded to false
     private val reverseMessageList = false
 
+    // The sent timestamp of the oldest loaded message, or -1 if the whole thread is loaded
+    @Volatile private var conversationWindowStart = -1L
+    private var isExtendingConversationWindow = false
+    // Bumped each time the window is extended, and recorded by each loader when it's created, so that
+    // only a load of the extended window (rather than any load that happens to finish first) restores
+    // the scroll position
+    private var conversationWindowRequest = 0
+    private var extendedConversationWindowRequest = -1
+    private var onConversationWindowExtended: (() -> Unit)? = null
+
     private val adapter by lazy {
-        val cursor = mmsSmsDb.getConversation(viewModel.threadId, reverseMessageList)
+        conversationWindowStart = getInitialConversationWindowStart()
+        val cursor = mmsSmsDb.getConversationWindow(viewModel.threadId, conversationWindowStart, reverseMessageList)
         val adapter = ConversationAdapter(
             this,
             cursor,
@@ -434,7 +446,7 @@ class ConversationActivityV2 : PassphraseRequiredActionBarActivity(), InputBarDe
             // by triggering 'jumpToMessage' using these values
             val messageTimestamp = messageToScrollTimestamp.get()
             val author = messageToScrollAuthor.get()
-            val targetPosition = if (author != null && messageTimestamp >= 0) mmsSmsDb.getMessagePositionInConversation(viewModel.threadId, messageTimestamp, author, reverseMessageList) else -1
+            val targetPosition = if (author != null && messageTimestamp >= 0) mmsSmsDb.getMessagePositionInConversation(viewModel.threadId, conversationWindowStart, messageTimestamp, author, reverseMessageList) else -1
 
             withContext(Dispatchers.Main) {
                 setUpRecyclerView()
@@ -513,13 +525,29 @@ class ConversationActivityV2 : PassphraseRequiredActionBarActivity(), InputBarDe
     }
 
     override fun onCreateLoader(id: Int, bundle: Bundle?): Loader<Cursor> {
-        return ConversationLoader(viewModel.threadId, reverseMessageList, this@ConversationActivityV2)
+        return ConversationLoader(viewModel.threadId, reverseMessageList, conversationWindowStart, conversationWindowRequest, this@ConversationActivityV2)
     }
 
     override fun onLoadFinished(loader: Loader<Cursor>, cursor: Cursor?) {
         val oldCount = adapter.itemCount
         val newCount = cursor?.count ?: 0
-        adapter.changeCursor(cursor)
+        if (isExtendingConversationWindow && (loader as? ConversationLoader)?.windowRequest == extendedConversationWindowRequest) {
+            // Older messages get inserted above the visible ones so keep the first visible message in place
+            val layoutManager = layoutManager
+            val anchorPosition = layoutManager?.findFirstVisibleItemPosition() ?: RecyclerView.NO_POSITION
+            val anchorTimestamp = adapter.cursor?.takeIf { anchorPosition != RecyclerView.NO_POSITION && it.moveToPosition(anchorPosition) }
+                ?.let { mmsSmsDb.timestampAndDirectionForCurrent(it).second }
+            val anchorOffset = layoutManager?.findViewByPosition(anchorPosition)?.top ?: 0
+            adapter.changeCursor(cursor)
+            isExtendingConversationWindow = false
+            extendedConversationWindowRequest = -1
+            anchorTimestamp?.let { adapter.getItemPositionForTimestamp(it) }?.let { position ->
+                layoutManager?.scrollToPositionWithOffset(position, anchorOffset)
+            }
+            onConversationWindowExtended?.also { onConversationWindowExtended = null }?.invoke()
+        } else {
+            adapter.changeCursor(cursor)
+        }
 
         if (cursor != null) {
             val messageTimestamp = messageToScrollTimestamp.getAndSet(-1)
@@ -1051,6 +1079,7 @@ class ConversationActivityV2 : PassphraseRequiredActionBarActivity(), InputBarDe
                     if (isFailure) Log.e(TAG, "trySend failed", exceptionOrNull())
                 }
             }
+            loadOlderMessagesIfNeeded()
         }
 
         if (reverseMessageList) {
@@ -1063,6 +1092,50 @@ class ConversationActivityV2 : PassphraseRequiredActionBarActivity(), InputBarDe
         updateUnreadCountIndicator()
     }
 
+    @WorkerThread
+    private fun getInitialConversationWindowStart(): Long {
+        val threadId = viewModel.threadId
+        val pageStart = mmsSmsDb.getPageStart(threadId, Long.MAX_VALUE, ConversationLoader.PAGE_SIZE)
+        if (pageStart < 0) { return -1L }
+        // Make sure the first unread message and the message we've been asked to scroll to are loaded
+        val lastSeenTimestamp = threadDb.getLastSeenAndHasSent(threadId).first()
+        val oldestRequiredTimestamp = listOf(lastSeenTimestamp, messageToScrollTimestamp.get()).filter { it > 0 }.minOrNull()
+            ?: return pageStart
+        if (oldestRequiredTimestamp >= pageStart) { return pageStart }
+        return mmsSmsDb.getPageStart(threadId, oldestRequiredTimestamp, ConversationLoader.PREFETCH_DISTANCE)
+    }
+
+    private fun loadOlderMessagesIfNeeded() {
+        val layoutManager = layoutManager ?: return
+        if (conversationWindowStart < 0 || isExtendingConversationWindow) { return }
+        val oldestVisiblePosition = if (reverseMessageList) layoutManager.findLastVisibleItemPosition() else layoutManager.findFirstVisibleItemPosition()
+        if (oldestVisiblePosition == RecyclerView.NO_POSITION) { return }
+        val distanceFromOldest = if (reverseMessageList) (adapter.itemCount - 1) - oldestVisiblePosition else oldestVisiblePosition
+        if (distanceFromOldest > ConversationLoader.PREFETCH_DISTANCE) { return }
+        extendConversationWindow(conversationWindowStart, ConversationLoader.PAGE_SIZE)
+    }
+
+    /**
+     * Moves the start of the loaded window back so that it includes [limit] more messages sent
+     * before [beforeTime], then reloads the conversation.
+     */
+    private fun extendConversationWindow(beforeTime: Long, limit: Int, onExtended: (() -> Unit)? = null) {
+        isExtendingConversationWindow = true
+        onConversationWindowExtended = onExtended
+        val threadId = viewModel.threadId
+        lifecycleScope.launch(Dispatchers.IO) {
+            val windowStart = mmsSmsDb.getPageStart(threadId, beforeTime, limit)
+            withContext(Dispatchers.Main) {
+                // Never shrink the window in case another extension finished first
+                val currentWindowStart = conversationWindowStart
+                conversationWindowStart = if (windowStart < 0 || currentWindowStart < 0) -1L else min(windowStart, currentWindowStart)
+                conversationWindowRequest += 1
+                extendedConversationWindowRequest = conversationWindowRequest
+                LoaderManager.getInstance(this@ConversationActivityV2).restartLoader(0, null, this@ConversationActivityV2)
+            }
+        }
+    }
+
     private fun updatePlaceholder() {
         val recipient = viewModel.recipient
             ?: return Log.w("Loki", "recipient was null in placeholder update")
@@ -2067,8 +2140,17 @@ class ConversationActivityV2 : PassphraseRequiredActionBarActivity(), InputBarDe
     }
 
     private fun jumpToMessage(author: Address, timestamp: Long, highlight: Boolean, onMessageNotFound: Runnable?) {
+        val windowStart = conversationWindowStart
+        if (windowStart >= 0 && timestamp < windowStart) {
+            // The message is older than anything that's loaded so load it (and a few messages before
+            // it for context) first
+            extendConversationWindow(timestamp, ConversationLoader.PREFETCH_DISTANCE) {
+                jumpToMessage(author, timestamp, highlight, onMessageNotFound)
+            }
+            return
+        }
         SimpleTask.run(lifecycle, {
-            mmsSmsDb.getMessagePositionInConversation(viewModel.threadId, timestamp, author, reverseMessageList)
+            mmsSmsDb.getMessagePositionInConversation(viewModel.threadId, windowStart, timestamp, author, reverseMessageList)
         }) { p: Int -> moveToMessagePosition(p, highlight, onMessageNotFound) }
     }
 
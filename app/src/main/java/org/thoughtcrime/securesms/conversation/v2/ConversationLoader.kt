@@ -5,13 +5,31 @@ import android.database.Cursor
 import org.thoughtcrime.securesms.dependencies.DatabaseComponent
 import org.thoughtcrime.securesms.util.AbstractCursorLoader
 
+/**
+ * Loads the messages in a thread that were sent at or after [fromTime] (or the whole thread if
+ * [fromTime] is negative). Keeping the start of the window fixed means messages that arrive while
+ * the conversation is open are appended instead of pushing older ones out.
+ *
+ * [windowRequest] identifies the window the loader was created for, so the activity can tell which
+ * load extended the window back.
+ */
 class ConversationLoader(
     private val threadID: Long,
     private val reverse: Boolean,
+    private val fromTime: Long,
+    val windowRequest: Int,
     context: Context
 ) : AbstractCursorLoader(context) {
 
     override fun getCursor(): Cursor {
-        return DatabaseComponent.get(context).mmsSmsDatabase().getConversation(threadID, reverse)
+        return DatabaseComponent.get(context).mmsSmsDatabase().getConversationWindow(threadID, fromTime, reverse)
     }
-}
\ No newline at end of file
+
+    companion object {
+        // The number of messages loaded when opening a conversation and each time the user scrolls
+        // close to the oldest loaded message
+        const val PAGE_SIZE = 100
+        // How close (in messages) to the oldest loaded message the user can get before more are loaded
+        const val PREFETCH_DISTANCE = 20
+    }
+}
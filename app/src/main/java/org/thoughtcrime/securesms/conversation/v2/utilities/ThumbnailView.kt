@@ -140,8 +140,10 @@ open class ThumbnailView: FrameLayout {
 
         val dimens = dimensDelegate.resourceSize()
 
+        // Keep the decoded, resized thumbnail in the encrypted disk cache so scrolling back to it doesn't
+        // decrypt and decode the original again, unless the attachment is still being written
         val request = glide.load(DecryptableUri(slide.thumbnailUri!!))
-                .diskCacheStrategy(DiskCacheStrategy.NONE)
+                .diskCacheStrategy(if (slide.isInProgress) DiskCacheStrategy.NONE else DiskCacheStrategy.RESOURCE)
                 .let { request ->
                     if (dimens[WIDTH] == 0 || dimens[HEIGHT] == 0) {
                         request.override(getDefaultWidth(), getDefaultHeight())
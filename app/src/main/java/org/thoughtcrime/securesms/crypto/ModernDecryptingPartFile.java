@@ -0,0 +1,114 @@
+package org.thoughtcrime.securesms.crypto;
+
+
+import androidx.annotation.NonNull;
+
+import org.session.libsession.utilities.Conversions;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Random access reads of a file written by {@link ModernEncryptingPartOutputStream} (without the
+ * random inlined).
+ *
+ * Unlike {@link ModernDecryptingPartInputStream}, the file is kept open and the key derived once, and
+ * a read at a new position just moves the file and the AES-CTR counter there rather than skipping.
+ * Reads that carry on from the end of the last one continue with the same cipher state.
+ */
+public class ModernDecryptingPartFile implements Closeable {
+
+  private final RandomAccessFile file;
+  private final SecretKeySpec    key;
+  private final Cipher           cipher;
+
+  // The position the file and cipher are at, or -1 if they haven't been positioned yet
+  private long position = -1;
+
+  public ModernDecryptingPartFile(@NonNull AttachmentSecret attachmentSecret, @NonNull byte[] random, @NonNull File file)
+      throws IOException
+  {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(attachmentSecret.getModernKey(), "HmacSHA256"));
+
+      this.key    = new SecretKeySpec(mac.doFinal(random), "AES");
+      this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
+      this.file   = new RandomAccessFile(file, "r");
+    } catch (NoSuchAlgorithmException | InvalidKeyException | NoSuchPaddingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Decrypts up to {@code length} bytes from {@code position} into {@code bytes}.
+   *
+   * @return the number of bytes read, or -1 if {@code position} is at or past the end of the file.
+   */
+  public synchronized int read(long position, @NonNull byte[] bytes, int offset, int length) throws IOException {
+    if (position != this.position) {
+      try {
+        seek(position);
+      } catch (EOFException e) {
+        return -1;
+      }
+    }
+
+    int read = file.read(bytes, offset, length);
+    if (read <= 0) return read;
+
+    decrypt(bytes, offset, read);
+    this.position += read;
+    return read;
+  }
+
+  private void seek(long position) throws IOException {
+    byte[] iv        = new byte[16];
+    int    remainder = (int) (position % 16);
+    Conversions.longTo4ByteArray(iv, 12, position / 16);
+
+    try {
+      cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+    } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
+      throw new AssertionError(e);
+    }
+
+    this.position = -1;
+    file.seek(position - remainder);
+
+    // Run the cipher over the start of the block so the keystream lines up with the position
+    if (remainder > 0) {
+      byte[] remainderBuffer = new byte[remainder];
+      file.readFully(remainderBuffer);
+      decrypt(remainderBuffer, 0, remainder);
+    }
+
+    this.position = position;
+  }
+
+  private void decrypt(byte[] bytes, int offset, int length) throws IOException {
+    try {
+      cipher.update(bytes, offset, length, bytes, offset);
+    } catch (ShortBufferException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    file.close();
+  }
+}
@@ -32,12 +32,13 @@ import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 
 import com.bumptech.glide.Glide;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 
 import net.zetetic.database.sqlcipher.SQLiteDatabase;
 
 import org.apache.commons.lang3.StringUtils;
-import org.json.JSONArray;
-import org.json.JSONException;
 import org.session.libsession.messaging.sending_receiving.attachments.Attachment;
 import org.session.libsession.messaging.sending_receiving.attachments.AttachmentId;
 import org.session.libsession.messaging.sending_receiving.attachments.AttachmentTransferProgress;
@@ -45,11 +46,14 @@ import org.session.libsession.messaging.sending_receiving.attachments.DatabaseAt
 import org.session.libsession.messaging.sending_receiving.attachments.DatabaseAttachmentAudioExtras;
 import org.session.libsession.utilities.MediaTypes;
 import org.session.libsession.utilities.Util;
+import org.session.libsession.utilities.concurrent.DeduplicatingExecutor;
+import org.session.libsession.utilities.concurrent.SignalExecutors;
 import org.session.libsignal.utilities.ExternalStorageUtil;
-import org.session.libsignal.utilities.JsonUtil;
+import org.session.libsignal.utilities.Hex;
 import org.session.libsignal.utilities.Log;
 import org.thoughtcrime.securesms.crypto.AttachmentSecret;
 import org.thoughtcrime.securesms.crypto.ClassicDecryptingPartInputStream;
+import org.thoughtcrime.securesms.crypto.ModernDecryptingPartFile;
 import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
 import org.thoughtcrime.securesms.crypto.ModernEncryptingPartOutputStream;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
@@ -69,17 +73,18 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
 
 import kotlin.jvm.Synchronized;
 
@@ -110,6 +115,7 @@ public class AttachmentDatabase extends Database {
           static final String STICKER_ID             = "sticker_id";
           static final String FAST_PREFLIGHT_ID      = "fast_preflight_id";
   public  static final String DATA_RANDOM            = "data_random";
+          static final String DATA_HASH              = "data_hash";             // SHA-256 of the plaintext, for sharing the file between attachments with the same content.
   private static final String THUMBNAIL_RANDOM       = "thumbnail_random";
           static final String WIDTH                  = "width";
           static final String HEIGHT                 = "height";
@@ -132,6 +138,8 @@ public class AttachmentDatabase extends Database {
                                                            QUOTE, DATA_RANDOM, THUMBNAIL_RANDOM, WIDTH, HEIGHT,
                                                            CAPTION, STICKER_PACK_ID, STICKER_PACK_KEY, STICKER_ID, URL};
 
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
   private static final String[] PROJECTION_AUDIO_EXTRAS = new String[] {AUDIO_VISUAL_SAMPLES, AUDIO_DURATION};
 
   public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ROW_ID + " INTEGER PRIMARY KEY, " +
@@ -153,9 +161,25 @@ public class AttachmentDatabase extends Database {
     "CREATE INDEX IF NOT EXISTS part_mms_id_index ON " + TABLE_NAME + " (" + MMS_ID + ");",
     "CREATE INDEX IF NOT EXISTS pending_push_index ON " + TABLE_NAME + " (" + TRANSFER_STATE + ");",
     "CREATE INDEX IF NOT EXISTS part_sticker_pack_id_index ON " + TABLE_NAME + " (" + STICKER_PACK_ID + ");",
+    "CREATE INDEX IF NOT EXISTS part_data_hash_index ON " + TABLE_NAME + " (" + DATA_HASH + ");",
+    "CREATE INDEX IF NOT EXISTS part_data_index ON " + TABLE_NAME + " (" + DATA + ");",
   };
 
-  private final ExecutorService thumbnailExecutor = Util.newSingleThreadedLifoExecutor();
+  public static final String ADD_DATA_HASH_COLUMN = "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + DATA_HASH + " TEXT DEFAULT NULL;";
+
+  // An existing file with the given content, which a new attachment can share rather than keeping its own copy
+  @VisibleForTesting
+  static final String DATA_FOR_HASH_QUERY = "SELECT " + DATA + ", " + DATA_RANDOM + " FROM " + TABLE_NAME +
+    " WHERE " + DATA_HASH + " = ? AND " + DATA + " IS NOT NULL LIMIT 1";
+
+  // The number of attachments sharing a file, which is only deleted once none refer to it
+  @VisibleForTesting
+  static final String DATA_REFERENCE_COUNT_QUERY = "SELECT COUNT(*) FROM " + TABLE_NAME + " WHERE " + DATA + " = ?";
+
+  private static final int THUMBNAIL_THREADS = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4));
+
+  private final DeduplicatingExecutor<AttachmentId, Boolean> thumbnailExecutor =
+      new DeduplicatingExecutor<>(SignalExecutors.newCachedLifoExecutor("attachment-thumbnails", THUMBNAIL_THREADS));
 
   private final AttachmentSecret attachmentSecret;
 
@@ -173,6 +197,22 @@ public class AttachmentDatabase extends Database {
     else                    return dataStream;
   }
 
+  /**
+   * @return the attachment's data for random access reads, or null if it has none or it was
+   *         encrypted the old way, which can only be streamed.
+   */
+  public @Nullable ModernDecryptingPartFile getAttachmentFile(@NonNull AttachmentId attachmentId)
+      throws IOException
+  {
+    DataInfo dataInfo = getAttachmentDataFileInfo(attachmentId, DATA);
+
+    if (dataInfo == null || dataInfo.random == null || dataInfo.random.length != 32) {
+      return null;
+    }
+
+    return new ModernDecryptingPartFile(attachmentSecret, dataInfo.random, dataInfo.file);
+  }
+
   public @NonNull InputStream getThumbnailStream(@NonNull AttachmentId attachmentId)
       throws IOException
   {
@@ -184,7 +224,10 @@ public class AttachmentDatabase extends Database {
     }
 
     try {
-      InputStream generatedStream = thumbnailExecutor.submit(new ThumbnailFetchCallable(attachmentId)).get();
+      // Generated on this thread rather than waiting behind the thumbnails queued in the background,
+      // unless it's already being generated
+      boolean     generated       = thumbnailExecutor.run(attachmentId, new ThumbnailFetchCallable(attachmentId));
+      InputStream generatedStream = generated ? getDataStream(attachmentId, THUMBNAIL, 0) : null;
 
       if (generatedStream == null) throw new FileNotFoundException("No thumbnail stream available: " + attachmentId);
       else                         return generatedStream;
@@ -293,22 +336,22 @@ public class AttachmentDatabase extends Database {
         cursor.close();
       }
     }
-    deleteAttachmentsOnDisk(attachmentInfos);
     database.delete(TABLE_NAME, idsAsString, null);
+    deleteAttachmentsOnDisk(attachmentInfos);
     notifyAttachmentListeners();
   }
 
-  @SuppressWarnings("ResultOfMethodCallIgnored")
   void deleteAttachmentsForMessage(long mmsId) {
-    SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    Cursor cursor           = null;
+    SQLiteDatabase          database        = databaseHelper.getWritableDatabase();
+    Cursor                  cursor          = null;
+    List<MmsAttachmentInfo> attachmentInfos = new ArrayList<>();
 
     try {
       cursor = database.query(TABLE_NAME, new String[] {DATA, THUMBNAIL, CONTENT_TYPE}, MMS_ID + " = ?",
                               new String[] {mmsId+""}, null, null, null);
 
       while (cursor != null && cursor.moveToNext()) {
-        deleteAttachmentOnDisk(cursor.getString(0), cursor.getString(1), cursor.getString(2));
+        attachmentInfos.add(new MmsAttachmentInfo(cursor.getString(0), cursor.getString(1), cursor.getString(2)));
       }
     } finally {
       if (cursor != null)
@@ -316,21 +359,22 @@ public class AttachmentDatabase extends Database {
     }
 
     database.delete(TABLE_NAME, MMS_ID + " = ?", new String[] {mmsId + ""});
+    deleteAttachmentsOnDisk(attachmentInfos);
     notifyAttachmentListeners();
   }
 
-  @SuppressWarnings("ResultOfMethodCallIgnored")
   void deleteAttachmentsForMessages(long[] mmsIds) {
-    SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    Cursor cursor           = null;
-    String mmsIdString = StringUtils.join(mmsIds, ',');
+    SQLiteDatabase          database        = databaseHelper.getWritableDatabase();
+    Cursor                  cursor          = null;
+    String                  mmsIdString     = StringUtils.join(mmsIds, ',');
+    List<MmsAttachmentInfo> attachmentInfos = new ArrayList<>();
 
     try {
       cursor = database.query(TABLE_NAME, new String[] {DATA, THUMBNAIL, CONTENT_TYPE}, MMS_ID + " IN (?)",
               new String[] {mmsIdString}, null, null, null);
 
       while (cursor != null && cursor.moveToNext()) {
-        deleteAttachmentOnDisk(cursor.getString(0), cursor.getString(1), cursor.getString(2));
+        attachmentInfos.add(new MmsAttachmentInfo(cursor.getString(0), cursor.getString(1), cursor.getString(2)));
       }
     } finally {
       if (cursor != null)
@@ -338,6 +382,7 @@ public class AttachmentDatabase extends Database {
     }
 
     database.delete(TABLE_NAME, MMS_ID + " IN (?)", new String[] {mmsIdString});
+    deleteAttachmentsOnDisk(attachmentInfos);
     notifyAttachmentListeners();
   }
 
@@ -384,10 +429,7 @@ public class AttachmentDatabase extends Database {
   private void deleteAttachmentsOnDisk(List<MmsAttachmentInfo> mmsAttachmentInfos) {
     for (MmsAttachmentInfo info : mmsAttachmentInfos) {
       if (info.getDataFile() != null && !TextUtils.isEmpty(info.getDataFile())) {
-        File data = new File(info.getDataFile());
-        if (data.exists()) {
-          data.delete();
-        }
+        deleteDataFileIfUnreferenced(info.getDataFile());
       }
       if (info.getThumbnailFile() != null && !TextUtils.isEmpty(info.getThumbnailFile())) {
         File thumbnail = new File(info.getThumbnailFile());
@@ -408,7 +450,7 @@ public class AttachmentDatabase extends Database {
   @SuppressWarnings("ResultOfMethodCallIgnored")
   private void deleteAttachmentOnDisk(@Nullable String data, @Nullable String thumbnail, @Nullable String contentType) {
     if (!TextUtils.isEmpty(data)) {
-      new File(data).delete();
+      deleteDataFileIfUnreferenced(data);
     }
 
     if (!TextUtils.isEmpty(thumbnail)) {
@@ -420,6 +462,44 @@ public class AttachmentDatabase extends Database {
     }
   }
 
+  /**
+   * Deletes a data file once the last attachment referring to it has been deleted, as attachments
+   * with the same content share a file (see {@link #shareExistingData(DataInfo)}).
+   */
+  @SuppressWarnings("ResultOfMethodCallIgnored")
+  private void deleteDataFileIfUnreferenced(@NonNull String data) {
+    try (Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(DATA_REFERENCE_COUNT_QUERY, new String[] {data})) {
+      if (cursor != null && cursor.moveToFirst() && cursor.getInt(0) > 0) {
+        return;
+      }
+    }
+
+    new File(data).delete();
+  }
+
+  /**
+   * If another attachment already has a file with the same content as {@code dataInfo}, deletes the
+   * file just written for {@code dataInfo} and returns the existing one to share instead.
+   *
+   * Must be called in the same transaction as the write referring to the returned file, so that the
+   * attachment it's shared with can't be deleted in between.
+   */
+  @SuppressWarnings("ResultOfMethodCallIgnored")
+  private @NonNull DataInfo shareExistingData(@NonNull DataInfo dataInfo) {
+    if (dataInfo.hash == null) return dataInfo;
+
+    try (Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(DATA_FOR_HASH_QUERY, new String[] {dataInfo.hash})) {
+      if (cursor == null || !cursor.moveToFirst()) return dataInfo;
+
+      File existingFile = new File(cursor.getString(0));
+      if (existingFile.equals(dataInfo.file) || !existingFile.exists()) return dataInfo;
+
+      Log.d(TAG, "Sharing existing part file: " + existingFile.getAbsolutePath());
+      dataInfo.file.delete();
+      return new DataInfo(existingFile, dataInfo.length, cursor.getBlob(1), dataInfo.hash);
+    }
+  }
+
   public void insertAttachmentsForPlaceholder(long mmsId, @NonNull AttachmentId attachmentId, @NonNull InputStream inputStream)
       throws MmsException
   {
@@ -427,17 +507,10 @@ public class AttachmentDatabase extends Database {
     SQLiteDatabase     database    = databaseHelper.getWritableDatabase();
     ContentValues      values      = new ContentValues();
     DataInfo           dataInfo    = setAttachmentData(inputStream);
-
-    if (placeholder != null && placeholder.isQuote() && !placeholder.getContentType().startsWith("image")) {
-      values.put(THUMBNAIL, dataInfo.file.getAbsolutePath());
-      values.put(THUMBNAIL_RANDOM, dataInfo.random);
-    } else {
-      values.put(DATA, dataInfo.file.getAbsolutePath());
-      values.put(SIZE, dataInfo.length);
-      values.put(DATA_RANDOM, dataInfo.random);
-    }
+    boolean            isThumbnail = placeholder != null && placeholder.isQuote() && !placeholder.getContentType().startsWith("image");
 
     values.put(TRANSFER_STATE, AttachmentTransferProgress.TRANSFER_PROGRESS_DONE);
+
     values.put(CONTENT_LOCATION, (String)null);
     values.put(CONTENT_DISPOSITION, (String)null);
     values.put(DIGEST, (byte[])null);
@@ -445,15 +518,40 @@ public class AttachmentDatabase extends Database {
     values.put(FAST_PREFLIGHT_ID, (String)null);
     values.put(URL, "");
 
-    if (database.update(TABLE_NAME, values, PART_ID_WHERE, attachmentId.toStrings()) == 0) {
-      //noinspection ResultOfMethodCallIgnored
-      dataInfo.file.delete();
+    int updated;
+
+    database.beginTransaction();
+    try {
+      if (isThumbnail) {
+        values.put(THUMBNAIL, dataInfo.file.getAbsolutePath());
+        values.put(THUMBNAIL_RANDOM, dataInfo.random);
+      } else {
+        dataInfo = shareExistingData(dataInfo);
+        values.put(DATA, dataInfo.file.getAbsolutePath());
+        values.put(SIZE, dataInfo.length);
+        values.put(DATA_RANDOM, dataInfo.random);
+        values.put(DATA_HASH, dataInfo.hash);
+      }
+
+      updated = database.update(TABLE_NAME, values, PART_ID_WHERE, attachmentId.toStrings());
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+
+    if (updated == 0) {
+      if (isThumbnail) {
+        //noinspection ResultOfMethodCallIgnored
+        dataInfo.file.delete();
+      } else {
+        deleteDataFileIfUnreferenced(dataInfo.file.getAbsolutePath());
+      }
     } else {
       notifyConversationListeners(DatabaseComponent.get(context).mmsDatabase().getThreadIdForMessage(mmsId));
       notifyConversationListListeners();
     }
 
-    thumbnailExecutor.submit(new ThumbnailFetchCallable(attachmentId));
+    thumbnailExecutor.submit(attachmentId, new ThumbnailFetchCallable(attachmentId));
   }
 
   public void updateAttachmentAfterUploadSucceeded(@NonNull AttachmentId id, @NonNull Attachment attachment) {
@@ -533,22 +631,35 @@ public class AttachmentDatabase extends Database {
   {
     SQLiteDatabase     database           = databaseHelper.getWritableDatabase();
     DatabaseAttachment databaseAttachment = (DatabaseAttachment) attachment;
-    DataInfo           dataInfo           = getAttachmentDataFileInfo(databaseAttachment.getAttachmentId(), DATA);
+    DataInfo           oldDataInfo        = getAttachmentDataFileInfo(databaseAttachment.getAttachmentId(), DATA);
 
-    if (dataInfo == null) {
+    if (oldDataInfo == null) {
       throw new MmsException("No attachment data found!");
     }
 
-    dataInfo = setAttachmentData(dataInfo.file, mediaStream.getStream());
+    // The old file may be shared with other attachments, so write a new one rather than overwriting it
+    DataInfo dataInfo = setAttachmentData(mediaStream.getStream());
 
     ContentValues contentValues = new ContentValues();
-    contentValues.put(SIZE, dataInfo.length);
     contentValues.put(CONTENT_TYPE, mediaStream.getMimeType());
     contentValues.put(WIDTH, mediaStream.getWidth());
     contentValues.put(HEIGHT, mediaStream.getHeight());
-    contentValues.put(DATA_RANDOM, dataInfo.random);
 
-    database.update(TABLE_NAME, contentValues, PART_ID_WHERE, databaseAttachment.getAttachmentId().toStrings());
+    database.beginTransaction();
+    try {
+      dataInfo = shareExistingData(dataInfo);
+      contentValues.put(DATA, dataInfo.file.getAbsolutePath());
+      contentValues.put(SIZE, dataInfo.length);
+      contentValues.put(DATA_RANDOM, dataInfo.random);
+      contentValues.put(DATA_HASH, dataInfo.hash);
+
+      database.update(TABLE_NAME, contentValues, PART_ID_WHERE, databaseAttachment.getAttachmentId().toStrings());
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+
+    deleteDataFileIfUnreferenced(oldDataInfo.file.getAbsolutePath());
 
     return new DatabaseAttachment(databaseAttachment.getAttachmentId(),
                                   databaseAttachment.getMmsId(),
@@ -683,78 +794,154 @@ public class AttachmentDatabase extends Database {
       throws MmsException
   {
     try {
+      MessageDigest              digest = MessageDigest.getInstance("SHA-256");
       Pair<byte[], OutputStream> out    = ModernEncryptingPartOutputStream.createFor(attachmentSecret, destination, false);
-      long                       length = Util.copy(in, out.second);
+      long                       length = Util.copy(new DigestInputStream(in, digest), out.second);
 
-      return new DataInfo(destination, length, out.first);
+      return new DataInfo(destination, length, out.first, Hex.toStringCondensed(digest.digest()));
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
     } catch (IOException e) {
       throw new MmsException(e);
     }
   }
 
   public List<DatabaseAttachment> getAttachment(@NonNull Cursor cursor) {
-    try {
-      if (cursor.getColumnIndex(AttachmentDatabase.ATTACHMENT_JSON_ALIAS) != -1) {
-        if (cursor.isNull(cursor.getColumnIndexOrThrow(ATTACHMENT_JSON_ALIAS))) {
-          return new LinkedList<>();
-        }
+    if (cursor.getColumnIndex(AttachmentDatabase.ATTACHMENT_JSON_ALIAS) != -1) {
+      if (cursor.isNull(cursor.getColumnIndexOrThrow(ATTACHMENT_JSON_ALIAS))) {
+        return new LinkedList<>();
+      }
 
-        Set<DatabaseAttachment> result = new TreeSet<>((o1, o2) -> o1.getAttachmentId().equals(o2.getAttachmentId()) ? 0 : 1);
-        JSONArray                array  = new JSONArray(cursor.getString(cursor.getColumnIndexOrThrow(ATTACHMENT_JSON_ALIAS)));
-
-        for (int i=0;i<array.length();i++) {
-          JsonUtil.SaneJSONObject object = new JsonUtil.SaneJSONObject(array.getJSONObject(i));
-
-          if (!object.isNull(ROW_ID)) {
-            result.add(new DatabaseAttachment(new AttachmentId(object.getLong(ROW_ID), object.getLong(UNIQUE_ID)),
-                                              object.getLong(MMS_ID),
-                                              !TextUtils.isEmpty(object.getString(DATA)),
-                                              !TextUtils.isEmpty(object.getString(THUMBNAIL)),
-                                              object.getString(CONTENT_TYPE),
-                                              object.getInt(TRANSFER_STATE),
-                                              object.getLong(SIZE),
-                                              object.getString(FILE_NAME),
-                                              object.getString(CONTENT_LOCATION),
-                                              object.getString(CONTENT_DISPOSITION),
-                                              object.getString(NAME),
-                                              null,
-                                              object.getString(FAST_PREFLIGHT_ID),
-                                              object.getInt(VOICE_NOTE) == 1,
-                                              object.getInt(WIDTH),
-                                              object.getInt(HEIGHT),
-                                              object.getInt(QUOTE) == 1,
-                                              object.getString(CAPTION),
-                                              "")); // TODO: Not sure if this will break something
-          }
+      try {
+        return getAttachments(cursor.getString(cursor.getColumnIndexOrThrow(ATTACHMENT_JSON_ALIAS)));
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+    } else {
+      int urlIndex = cursor.getColumnIndex(URL);
+      return Collections.singletonList(new DatabaseAttachment(new AttachmentId(cursor.getLong(cursor.getColumnIndexOrThrow(ROW_ID)),
+                                                                               cursor.getLong(cursor.getColumnIndexOrThrow(UNIQUE_ID))),
+                                                              cursor.getLong(cursor.getColumnIndexOrThrow(MMS_ID)),
+                                                              !cursor.isNull(cursor.getColumnIndexOrThrow(DATA)),
+                                                              !cursor.isNull(cursor.getColumnIndexOrThrow(THUMBNAIL)),
+                                                              cursor.getString(cursor.getColumnIndexOrThrow(CONTENT_TYPE)),
+                                                              cursor.getInt(cursor.getColumnIndexOrThrow(TRANSFER_STATE)),
+                                                              cursor.getLong(cursor.getColumnIndexOrThrow(SIZE)),
+                                                              cursor.getString(cursor.getColumnIndexOrThrow(FILE_NAME)),
+                                                              cursor.getString(cursor.getColumnIndexOrThrow(CONTENT_LOCATION)),
+                                                              cursor.getString(cursor.getColumnIndexOrThrow(CONTENT_DISPOSITION)),
+                                                              cursor.getString(cursor.getColumnIndexOrThrow(NAME)),
+                                                              cursor.getBlob(cursor.getColumnIndexOrThrow(DIGEST)),
+                                                              cursor.getString(cursor.getColumnIndexOrThrow(FAST_PREFLIGHT_ID)),
+                                                              cursor.getInt(cursor.getColumnIndexOrThrow(VOICE_NOTE)) == 1,
+                                                              cursor.getInt(cursor.getColumnIndexOrThrow(WIDTH)),
+                                                              cursor.getInt(cursor.getColumnIndexOrThrow(HEIGHT)),
+                                                              cursor.getInt(cursor.getColumnIndexOrThrow(QUOTE)) == 1,
+                                                              cursor.getString(cursor.getColumnIndexOrThrow(CAPTION)),
+                                                              urlIndex > 0 ? cursor.getString(urlIndex) : ""));
+    }
+  }
+
+  /**
+   * Reads the attachments in a {@code json_group_array} of attachment objects, as selected by the
+   * conversation queries, in order and without the duplicates their joins can produce. A message
+   * without attachments has a single object of nulls, which is skipped.
+   */
+  @VisibleForTesting
+  static @NonNull List<DatabaseAttachment> getAttachments(@NonNull String json) throws IOException {
+    Map<AttachmentId, DatabaseAttachment> result = new LinkedHashMap<>();
+
+    try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+      if (parser.nextToken() != JsonToken.START_ARRAY) {
+        throw new IOException("Expected an array of attachments");
+      }
+
+      while (parser.nextToken() == JsonToken.START_OBJECT) {
+        DatabaseAttachment attachment = readAttachment(parser);
+
+        if (attachment != null && !result.containsKey(attachment.getAttachmentId())) {
+          result.put(attachment.getAttachmentId(), attachment);
         }
+      }
+    }
 
-        return new ArrayList<>(result);
-      } else {
-        int urlIndex = cursor.getColumnIndex(URL);
-        return Collections.singletonList(new DatabaseAttachment(new AttachmentId(cursor.getLong(cursor.getColumnIndexOrThrow(ROW_ID)),
-                                                                                 cursor.getLong(cursor.getColumnIndexOrThrow(UNIQUE_ID))),
-                                                                cursor.getLong(cursor.getColumnIndexOrThrow(MMS_ID)),
-                                                                !cursor.isNull(cursor.getColumnIndexOrThrow(DATA)),
-                                                                !cursor.isNull(cursor.getColumnIndexOrThrow(THUMBNAIL)),
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(CONTENT_TYPE)),
-                                                                cursor.getInt(cursor.getColumnIndexOrThrow(TRANSFER_STATE)),
-                                                                cursor.getLong(cursor.getColumnIndexOrThrow(SIZE)),
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(FILE_NAME)),
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(CONTENT_LOCATION)),
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(CONTENT_DISPOSITION)),
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(NAME)),
-                                                                cursor.getBlob(cursor.getColumnIndexOrThrow(DIGEST)),
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(FAST_PREFLIGHT_ID)),
-                                                                cursor.getInt(cursor.getColumnIndexOrThrow(VOICE_NOTE)) == 1,
-                                                                cursor.getInt(cursor.getColumnIndexOrThrow(WIDTH)),
-                                                                cursor.getInt(cursor.getColumnIndexOrThrow(HEIGHT)),
-                                                                cursor.getInt(cursor.getColumnIndexOrThrow(QUOTE)) == 1,
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(CAPTION)),
-                                                                urlIndex > 0 ? cursor.getString(urlIndex) : ""));
+    return new ArrayList<>(result.values());
+  }
+
+  private static @Nullable DatabaseAttachment readAttachment(@NonNull JsonParser parser) throws IOException {
+    boolean hasRowId           = false;
+    long    rowId              = 0;
+    long    uniqueId           = 0;
+    long    mmsId              = 0;
+    long    size               = 0;
+    String  fileName           = null;
+    String  data               = null;
+    String  thumbnail          = null;
+    String  contentType        = null;
+    String  contentLocation    = null;
+    String  fastPreflightId    = null;
+    boolean voiceNote          = false;
+    int     width              = 0;
+    int     height             = 0;
+    boolean quote              = false;
+    String  contentDisposition = null;
+    String  name               = null;
+    int     transferState      = 0;
+    String  caption            = null;
+
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String    field = parser.getCurrentName();
+      JsonToken value = parser.nextToken();
+
+      switch (field) {
+        case ROW_ID:
+          hasRowId = value != JsonToken.VALUE_NULL;
+          rowId    = parser.getValueAsLong();
+          break;
+        case UNIQUE_ID: uniqueId = parser.getValueAsLong(); break;
+        case MMS_ID: mmsId = parser.getValueAsLong(); break;
+        case SIZE: size = parser.getValueAsLong(); break;
+        case FILE_NAME: fileName = parser.getValueAsString(); break;
+        case DATA: data = parser.getValueAsString(); break;
+        case THUMBNAIL: thumbnail = parser.getValueAsString(); break;
+        case CONTENT_TYPE: contentType = parser.getValueAsString(); break;
+        case CONTENT_LOCATION: contentLocation = parser.getValueAsString(); break;
+        case FAST_PREFLIGHT_ID: fastPreflightId = parser.getValueAsString(); break;
+        case VOICE_NOTE: voiceNote = parser.getValueAsInt() == 1; break;
+        case WIDTH: width = parser.getValueAsInt(); break;
+        case HEIGHT: height = parser.getValueAsInt(); break;
+        case QUOTE: quote = parser.getValueAsInt() == 1; break;
+        case CONTENT_DISPOSITION: contentDisposition = parser.getValueAsString(); break;
+        case NAME: name = parser.getValueAsString(); break;
+        case TRANSFER_STATE: transferState = parser.getValueAsInt(); break;
+        case CAPTION: caption = parser.getValueAsString(); break;
+        default: parser.skipChildren(); break;
       }
-    } catch (JSONException e) {
-      throw new AssertionError(e);
     }
+
+    if (!hasRowId) {
+      return null;
+    }
+
+    return new DatabaseAttachment(new AttachmentId(rowId, uniqueId),
+                                  mmsId,
+                                  !TextUtils.isEmpty(data),
+                                  !TextUtils.isEmpty(thumbnail),
+                                  contentType,
+                                  transferState,
+                                  size,
+                                  fileName,
+                                  contentLocation,
+                                  contentDisposition,
+                                  name,
+                                  null,
+                                  fastPreflightId,
+                                  voiceNote,
+                                  width,
+                                  height,
+                                  quote,
+                                  caption,
+                                  "");
   }
 
 
@@ -791,13 +978,24 @@ public class AttachmentDatabase extends Database {
     contentValues.put(CAPTION, attachment.getCaption());
     contentValues.put(URL, attachment.getUrl());
 
-    if (dataInfo != null) {
-      contentValues.put(DATA, dataInfo.file.getAbsolutePath());
-      contentValues.put(SIZE, dataInfo.length);
-      contentValues.put(DATA_RANDOM, dataInfo.random);
+    long rowId;
+
+    database.beginTransaction();
+    try {
+      if (dataInfo != null) {
+        dataInfo = shareExistingData(dataInfo);
+        contentValues.put(DATA, dataInfo.file.getAbsolutePath());
+        contentValues.put(SIZE, dataInfo.length);
+        contentValues.put(DATA_RANDOM, dataInfo.random);
+        contentValues.put(DATA_HASH, dataInfo.hash);
+      }
+
+      rowId = database.insert(TABLE_NAME, null, contentValues);
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
     }
 
-    long         rowId        = database.insert(TABLE_NAME, null, contentValues);
     AttachmentId attachmentId = new AttachmentId(rowId, uniqueId);
     Uri          thumbnailUri = attachment.getThumbnailUri();
     boolean      hasThumbnail = false;
@@ -828,11 +1026,11 @@ public class AttachmentDatabase extends Database {
           updateAttachmentThumbnail(attachmentId, thumbnailData.toDataStream(), thumbnailData.getAspectRatio());
         } else {
           Log.w(TAG, "Retrieving video thumbnail failed, submitting thumbnail generation job...");
-          thumbnailExecutor.submit(new ThumbnailFetchCallable(attachmentId));
+          thumbnailExecutor.submit(attachmentId, new ThumbnailFetchCallable(attachmentId));
         }
       } else {
         Log.i(TAG, "Submitting thumbnail generation job...");
-        thumbnailExecutor.submit(new ThumbnailFetchCallable(attachmentId));
+        thumbnailExecutor.submit(attachmentId, new ThumbnailFetchCallable(attachmentId));
       }
     }
 
@@ -926,7 +1124,7 @@ public class AttachmentDatabase extends Database {
   }
 
   @VisibleForTesting
-  class ThumbnailFetchCallable implements Callable<InputStream> {
+  class ThumbnailFetchCallable implements Callable<Boolean> {
 
     private final AttachmentId attachmentId;
 
@@ -935,18 +1133,17 @@ public class AttachmentDatabase extends Database {
     }
 
     @Override
-    public @Nullable InputStream call() throws Exception {
+    public @NonNull Boolean call() throws Exception {
       Log.d(TAG, "Executing thumbnail job...");
-      final InputStream stream = getDataStream(attachmentId, THUMBNAIL, 0);
 
-      if (stream != null) {
-        return stream;
+      if (getAttachmentDataFileInfo(attachmentId, THUMBNAIL) != null) {
+        return true;
       }
 
       DatabaseAttachment attachment = getAttachment(attachmentId);
 
       if (attachment == null || !attachment.hasData()) {
-        return null;
+        return false;
       }
 
       ThumbnailData data = null;
@@ -956,12 +1153,12 @@ public class AttachmentDatabase extends Database {
       }
 
       if (data == null) {
-        return null;
+        return false;
       }
 
       updateAttachmentThumbnail(attachmentId, data.toDataStream(), data.getAspectRatio());
 
-      return getDataStream(attachmentId, THUMBNAIL, 0);
+      return true;
     }
 
     @SuppressLint("NewApi")
@@ -993,11 +1190,17 @@ public class AttachmentDatabase extends Database {
     private final File   file;
     private final long   length;
     private final byte[] random;
+    private final String hash;
 
     private DataInfo(File file, long length, byte[] random) {
+      this(file, length, random, null);
+    }
+
+    private DataInfo(File file, long length, byte[] random, @Nullable String hash) {
       this.file = file;
       this.length = length;
       this.random = random;
+      this.hash = hash;
     }
   }
 }
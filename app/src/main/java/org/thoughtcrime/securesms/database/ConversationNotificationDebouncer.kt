@@ -2,35 +2,176 @@ package org.thoughtcrime.securesms.database
 
 import android.annotation.SuppressLint
 import android.content.Context
-import org.session.libsession.utilities.Debouncer
+import android.os.Handler
 import org.thoughtcrime.securesms.ApplicationContext
 
-class ConversationNotificationDebouncer(private val context: Context) {
+/**
+ * Coalesces conversation and conversation list change notifications.
+ *
+ * Conversation notifications are collected for [WINDOW_MILLIS] after the first one and then
+ * published once per thread, so a burst of inserts only restarts each affected conversation's
+ * loader once. Conversation list notifications are throttled by the application's conversation
+ * list debouncer; when every change in a window is specific to a few threads, observers are told
+ * which ones (see [DatabaseContentProviders.ConversationList.getUriForThread]) so they can reload
+ * just those.
+ *
+ * A batch (see [batch]) holds back the notifications for the threads it covers until the last
+ * batch covering each thread ends, so observers don't reload in the middle of a bulk operation.
+ * Notifications for other threads, and changes to the whole conversation list, are published as
+ * usual while batches are open.
+ */
+class ConversationNotificationDebouncer(
+    private val context: Context,
+    private val handler: Handler,
+    private val publishConversationListChange: () -> Unit
+) {
     private val threadIDs = mutableSetOf<Long>()
-    private val handler = (context.applicationContext as ApplicationContext).conversationListNotificationHandler
-    private val debouncer = Debouncer(handler, 100)
+    private val conversationListThreadIDs = mutableSetOf<Long>()
+    private var isConversationListChanged = false
+    private var isPublishScheduled = false
+    // The number of open batches covering each thread, and the notifications they're holding back
+    private val batchCounts = mutableMapOf<Long, Int>()
+    private val heldThreadIDs = mutableSetOf<Long>()
+    private val heldConversationListThreadIDs = mutableSetOf<Long>()
 
     companion object {
+        private const val WINDOW_MILLIS = 100L
+        // Past this many changed threads it's cheaper for observers to reload the whole list
+        private const val MAX_CONVERSATION_LIST_THREAD_IDS = 50
+
         @SuppressLint("StaticFieldLeak")
         lateinit var shared: ConversationNotificationDebouncer
 
         @Synchronized
         fun get(context: Context): ConversationNotificationDebouncer {
             if (::shared.isInitialized) { return shared }
-            shared = ConversationNotificationDebouncer(context)
+            val application = context.applicationContext as ApplicationContext
+            val conversationListDebouncer = application.conversationListDebouncer
+            val conversationListUpdater = Runnable { shared.publishConversationList() }
+            shared = ConversationNotificationDebouncer(application, application.conversationListNotificationHandler) {
+                conversationListDebouncer.publish(conversationListUpdater)
+            }
             return shared
         }
     }
 
     fun notify(threadID: Long) {
-        threadIDs.add(threadID)
-        debouncer.publish { publish() }
+        synchronized(this) {
+            if (threadID in batchCounts) {
+                heldThreadIDs.add(threadID)
+                return
+            }
+            threadIDs.add(threadID)
+            if (isPublishScheduled) { return }
+            isPublishScheduled = true
+        }
+        handler.postDelayed({ publish() }, WINDOW_MILLIS)
+    }
+
+    fun notifyConversationList() {
+        synchronized(this) { isConversationListChanged = true }
+        publishConversationListChange()
+    }
+
+    fun notifyConversationList(threadID: Long) {
+        synchronized(this) {
+            if (threadID in batchCounts) {
+                heldConversationListThreadIDs.add(threadID)
+                return
+            }
+            addConversationListThreadID(threadID)
+        }
+        publishConversationListChange()
+    }
+
+    fun beginBatch(threadIDs: Collection<Long>) {
+        synchronized(this) {
+            for (threadID in threadIDs.toSet()) {
+                batchCounts[threadID] = (batchCounts[threadID] ?: 0) + 1
+            }
+        }
+    }
+
+    fun endBatch(threadIDs: Collection<Long>) {
+        val shouldSchedulePublish: Boolean
+        var shouldPublishConversationList = false
+        synchronized(this) {
+            var isConversationChanged = false
+            for (threadID in threadIDs.toSet()) {
+                val count = checkNotNull(batchCounts[threadID]) { "endBatch() called without a matching beginBatch() for thread $threadID." }
+                if (count > 1) {
+                    batchCounts[threadID] = count - 1
+                    continue
+                }
+                batchCounts.remove(threadID)
+                if (heldThreadIDs.remove(threadID)) {
+                    this.threadIDs.add(threadID)
+                    isConversationChanged = true
+                }
+                if (heldConversationListThreadIDs.remove(threadID)) {
+                    addConversationListThreadID(threadID)
+                    shouldPublishConversationList = true
+                }
+            }
+            shouldSchedulePublish = isConversationChanged && !isPublishScheduled
+            if (shouldSchedulePublish) { isPublishScheduled = true }
+        }
+        if (shouldSchedulePublish) { handler.post { publish() } }
+        if (shouldPublishConversationList) { publishConversationListChange() }
+    }
+
+    /**
+     * Runs [block], publishing the notifications it causes for [threadIDs] once it (and any other
+     * batch covering the same threads) is done.
+     */
+    fun <T> batch(threadIDs: Collection<Long>, block: () -> T): T {
+        beginBatch(threadIDs)
+        try {
+            return block()
+        } finally {
+            endBatch(threadIDs)
+        }
+    }
+
+    private fun addConversationListThreadID(threadID: Long) {
+        if (conversationListThreadIDs.size < MAX_CONVERSATION_LIST_THREAD_IDS) {
+            conversationListThreadIDs.add(threadID)
+        } else {
+            isConversationListChanged = true
+        }
+    }
+
+    /**
+     * Publishes the conversation list changes collected so far. To be called by whatever
+     * `publishConversationListChange` schedules.
+     */
+    fun publishConversationList() {
+        val threadIDs: List<Long>
+        val isWholeListChanged: Boolean
+        synchronized(this) {
+            threadIDs = conversationListThreadIDs.toList()
+            isWholeListChanged = isConversationListChanged
+            conversationListThreadIDs.clear()
+            isConversationListChanged = false
+        }
+        if (isWholeListChanged) {
+            context.contentResolver.notifyChange(DatabaseContentProviders.ConversationList.CONTENT_URI, null)
+        } else {
+            for (threadID in threadIDs) {
+                context.contentResolver.notifyChange(DatabaseContentProviders.ConversationList.getUriForThread(threadID), null)
+            }
+        }
     }
 
     private fun publish() {
-        for (threadID in threadIDs.toList()) {
+        val threadIDs: List<Long>
+        synchronized(this) {
+            isPublishScheduled = false
+            threadIDs = this.threadIDs.toList()
+            this.threadIDs.clear()
+        }
+        for (threadID in threadIDs) {
             context.contentResolver.notifyChange(DatabaseContentProviders.Conversation.getUriForThread(threadID), null)
         }
-        threadIDs.clear()
     }
-}
\ No newline at end of file
+}
@@ -16,7 +16,6 @@
  */
 package org.thoughtcrime.securesms.database;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.database.ContentObserver;
 import android.database.Cursor;
@@ -25,8 +24,6 @@ import androidx.annotation.NonNull;
 
 import net.zetetic.database.sqlcipher.SQLiteDatabase;
 
-import org.session.libsession.utilities.WindowDebouncer;
-import org.thoughtcrime.securesms.ApplicationContext;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
 
 import java.util.Set;
@@ -38,17 +35,10 @@ public abstract class Database {
 
   protected       SQLCipherOpenHelper databaseHelper;
   protected final Context             context;
-  private   final WindowDebouncer     conversationListNotificationDebouncer;
-  private   final Runnable            conversationListUpdater;
 
-  @SuppressLint("WrongConstant")
   public Database(Context context, SQLCipherOpenHelper databaseHelper) {
-    this.context = context;
-    this.conversationListUpdater = () -> {
-      context.getContentResolver().notifyChange(DatabaseContentProviders.ConversationList.CONTENT_URI, null);
-    };
+    this.context        = context;
     this.databaseHelper = databaseHelper;
-    this.conversationListNotificationDebouncer = ApplicationContext.getInstance(context).getConversationListDebouncer();
   }
 
   protected void notifyConversationListeners(Set<Long> threadIds) {
@@ -61,7 +51,15 @@ public abstract class Database {
   }
 
   protected void notifyConversationListListeners() {
-    conversationListNotificationDebouncer.publish(conversationListUpdater);
+    ConversationNotificationDebouncer.Companion.get(context).notifyConversationList();
+  }
+
+  /**
+   * Notifies conversation list observers that only {@code threadId}'s entry changed, so they can
+   * reload just that thread.
+   */
+  protected void notifyConversationListListeners(long threadId) {
+    ConversationNotificationDebouncer.Companion.get(context).notifyConversationList(threadId);
   }
 
   protected void notifyStickerListeners() {
@@ -16,6 +16,27 @@ public class DatabaseContentProviders {
 
   public static class ConversationList extends NoopContentProvider {
     public static final Uri CONTENT_URI = Uri.parse("content://network.loki.securesms.database.conversationlist");
+
+    /**
+     * A change to a single thread's entry in the conversation list. Observers of {@link #CONTENT_URI}
+     * that notify for descendants receive these too.
+     */
+    public static Uri getUriForThread(long threadId) {
+      return CONTENT_URI.buildUpon().appendPath(String.valueOf(threadId)).build();
+    }
+
+    /**
+     * @return the thread ID a {@link #getUriForThread(long)} URI refers to, or -1 if the change
+     * isn't specific to a thread.
+     */
+    public static long getThreadId(@Nullable Uri uri) {
+      if (uri == null || uri.getPathSegments().size() != 1) return -1;
+      try {
+        return Long.parseLong(uri.getLastPathSegment());
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+    }
   }
 
   public static class Conversation extends NoopContentProvider {
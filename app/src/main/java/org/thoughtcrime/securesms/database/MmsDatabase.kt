@@ -45,7 +45,7 @@ import org.session.libsession.utilities.IdentityKeyMismatch
 import org.session.libsession.utilities.IdentityKeyMismatchList
 import org.session.libsession.utilities.NetworkFailure
 import org.session.libsession.utilities.NetworkFailureList
-import org.session.libsession.utilities.TextSecurePreferences.Companion.isReadReceiptsEnabled
+import org.session.libsession.utilities.TextSecurePreferences
 import org.session.libsession.utilities.Util.toIsoBytes
 import org.session.libsession.utilities.recipients.Recipient
 import org.session.libsignal.utilities.JsonUtil
@@ -186,7 +186,7 @@ class MmsDatabase(context: Context, databaseHelper: SQLCipherOpenHelper) : Messa
             arrayOf(newTimestamp.toString(), messageId.toString())
         )
         notifyConversationListeners(threadId)
-        notifyConversationListListeners()
+        notifyConversationListListeners(threadId)
     }
 
     fun getThreadIdForMessage(id: Long): Long {
@@ -554,7 +554,8 @@ class MmsDatabase(context: Context, databaseHelper: SQLCipherOpenHelper) : Messa
         contentLocation: String,
         threadId: Long, mailbox: Long,
         serverTimestamp: Long,
-        runThreadUpdate: Boolean
+        runThreadUpdate: Boolean,
+        notify: Boolean = true
     ): Optional<InsertResult> {
         if (threadId < 0 ) throw MmsException("No thread ID supplied!")
         if (retrieved.isExpirationUpdate) deleteExpirationTimerMessages(threadId, false.takeUnless { retrieved.groupId != null })
@@ -609,13 +610,16 @@ class MmsDatabase(context: Context, databaseHelper: SQLCipherOpenHelper) : Messa
             retrieved.linkPreviews,
             contentValues,
             null,
+            notify
         )
         if (!MmsSmsColumns.Types.isExpirationTimerUpdate(mailbox)) {
             if (runThreadUpdate) {
                 get(context).threadDatabase().update(threadId, true, true)
             }
         }
-        notifyConversationListeners(threadId)
+        if (notify) {
+            notifyConversationListeners(threadId)
+        }
         return Optional.of(InsertResult(messageId, threadId))
     }
 
@@ -643,6 +647,43 @@ class MmsDatabase(context: Context, databaseHelper: SQLCipherOpenHelper) : Messa
         threadId: Long,
         serverTimestamp: Long = 0,
         runThreadUpdate: Boolean
+    ): Optional<InsertResult> = insertSecureDecryptedMessageInbox(retrieved, threadId, serverTimestamp, runThreadUpdate, notify = true)
+
+    /**
+     * Inserts [messages] into [threadId] as [insertSecureDecryptedMessageInbox] would, with the server
+     * timestamp at the same index of [serverTimestamps], but in one transaction, updating and notifying
+     * the thread once rather than once per message.
+     */
+    @Throws(MmsException::class)
+    fun insertSecureDecryptedMessagesInbox(
+        messages: List<IncomingMediaMessage>,
+        threadId: Long,
+        serverTimestamps: List<Long>,
+        runThreadUpdate: Boolean
+    ): List<Optional<InsertResult>> {
+        val db = databaseHelper.writableDatabase
+        db.beginTransaction()
+        val results = try {
+            messages.mapIndexed { index, message ->
+                insertSecureDecryptedMessageInbox(message, threadId, serverTimestamps[index], runThreadUpdate = false, notify = false)
+            }.also { db.setTransactionSuccessful() }
+        } finally {
+            db.endTransaction()
+        }
+        if (runThreadUpdate && messages.indices.any { results[it].isPresent && !messages[it].isExpirationUpdate }) {
+            get(context).threadDatabase().update(threadId, true, true)
+        }
+        notifyConversationListeners(threadId)
+        return results
+    }
+
+    @Throws(MmsException::class)
+    private fun insertSecureDecryptedMessageInbox(
+        retrieved: IncomingMediaMessage,
+        threadId: Long,
+        serverTimestamp: Long,
+        runThreadUpdate: Boolean,
+        notify: Boolean
     ): Optional<InsertResult> {
         var type = MmsSmsColumns.Types.BASE_INBOX_TYPE or MmsSmsColumns.Types.SECURE_MESSAGE_BIT
         if (retrieved.isPushMessage) {
@@ -660,7 +701,7 @@ class MmsDatabase(context: Context, databaseHelper: SQLCipherOpenHelper) : Messa
         if (retrieved.isMessageRequestResponse) {
             type = type or MmsSmsColumns.Types.MESSAGE_REQUEST_RESPONSE_BIT
         }
-        return insertMessageInbox(retrieved, "", threadId, type, serverTimestamp, runThreadUpdate)
+        return insertMessageInbox(retrieved, "", threadId, type, serverTimestamp, runThreadUpdate, notify)
     }
 
     @JvmOverloads
@@ -771,6 +812,7 @@ class MmsDatabase(context: Context, databaseHelper: SQLCipherOpenHelper) : Messa
         linkPreviews: List<LinkPreview>,
         contentValues: ContentValues,
         insertListener: InsertListener?,
+        notify: Boolean = true
     ): Long {
         val db = databaseHelper.writableDatabase
         val partsDatabase = get(context).attachmentDatabase()
@@ -832,7 +874,9 @@ class MmsDatabase(context: Context, databaseHelper: SQLCipherOpenHelper) : Messa
         } finally {
             db.endTransaction()
             insertListener?.onComplete()
-            notifyConversationListeners(contentValues.getAsLong(THREAD_ID))
+            if (notify) {
+                notifyConversationListeners(contentValues.getAsLong(THREAD_ID))
+            }
         }
     }
 
@@ -922,7 +966,8 @@ class MmsDatabase(context: Context, databaseHelper: SQLCipherOpenHelper) : Messa
         val db = databaseHelper.writableDatabase
         db.update(SmsDatabase.TABLE_NAME, contentValues, "$THREAD_ID = ?", arrayOf("$fromId"))
         notifyConversationListeners(toId)
-        notifyConversationListListeners()
+        notifyConversationListListeners(fromId)
+        notifyConversationListListeners(toId)
     }
 
     @Throws(NoSuchMessageException::class)
@@ -1213,11 +1258,19 @@ class MmsDatabase(context: Context, databaseHelper: SQLCipherOpenHelper) : Messa
     }
 
     inner class Reader(private val cursor: Cursor?) : Closeable {
+        private val isReadReceiptsEnabled = TextSecurePreferences.isReadReceiptsEnabled(context)
+        // Column indexes are resolved once per cursor rather than per row. Notifications and media
+        // messages read different columns, so each set is only resolved once a row needs it.
+        private var messageTypeColumn = -1
+        private val notificationColumns by lazy(LazyThreadSafetyMode.NONE) { NotificationColumns(cursor!!) }
+        private val mediaColumns by lazy(LazyThreadSafetyMode.NONE) { MediaColumns(cursor!!) }
+
         val next: MessageRecord?
             get() = if (cursor == null || !cursor.moveToNext()) null else current
         val current: MessageRecord
             get() {
-                val mmsType = cursor!!.getLong(cursor.getColumnIndexOrThrow(MESSAGE_TYPE))
+                if (messageTypeColumn < 0) { messageTypeColumn = cursor!!.getColumnIndexOrThrow(MESSAGE_TYPE) }
+                val mmsType = cursor!!.getLong(messageTypeColumn)
                 return if (mmsType == PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND.toLong()) {
                     getNotificationMmsMessageRecord(cursor)
                 } else {
@@ -1226,34 +1279,22 @@ class MmsDatabase(context: Context, databaseHelper: SQLCipherOpenHelper) : Messa
             }
 
         private fun getNotificationMmsMessageRecord(cursor: Cursor): NotificationMmsMessageRecord {
-            val id = cursor.getLong(cursor.getColumnIndexOrThrow(ID))
-            val dateSent = cursor.getLong(cursor.getColumnIndexOrThrow(NORMALIZED_DATE_SENT))
-            val dateReceived = cursor.getLong(
-                cursor.getColumnIndexOrThrow(
-                    NORMALIZED_DATE_RECEIVED
-                )
-            )
-            val threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID))
-            val mailbox = cursor.getLong(cursor.getColumnIndexOrThrow(MESSAGE_BOX))
-            val address = cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS))
-            val addressDeviceId = cursor.getInt(cursor.getColumnIndexOrThrow(ADDRESS_DEVICE_ID))
+            val columns = notificationColumns
+            val id = cursor.getLong(columns.id)
+            val dateSent = cursor.getLong(columns.dateSent)
+            val dateReceived = cursor.getLong(columns.dateReceived)
+            val threadId = cursor.getLong(columns.threadId)
+            val mailbox = cursor.getLong(columns.messageBox)
+            val address = cursor.getString(columns.address)
             val recipient = getRecipientFor(address)
-            val contentLocation = cursor.getString(cursor.getColumnIndexOrThrow(CONTENT_LOCATION))
-            val transactionId = cursor.getString(cursor.getColumnIndexOrThrow(TRANSACTION_ID))
-            val messageSize = cursor.getLong(cursor.getColumnIndexOrThrow(MESSAGE_SIZE))
-            val expiry = cursor.getLong(cursor.getColumnIndexOrThrow(EXPIRY))
-            val status = cursor.getInt(cursor.getColumnIndexOrThrow(STATUS))
-            val deliveryReceiptCount = cursor.getInt(
-                cursor.getColumnIndexOrThrow(
-                    DELIVERY_RECEIPT_COUNT
-                )
-            )
-            var readReceiptCount = cursor.getInt(cursor.getColumnIndexOrThrow(READ_RECEIPT_COUNT))
-            val subscriptionId = cursor.getInt(cursor.getColumnIndexOrThrow(SUBSCRIPTION_ID))
-            val hasMention = (cursor.getInt(cursor.getColumnIndexOrThrow(HAS_MENTION)) == 1)
-            if (!isReadReceiptsEnabled(context)) {
-                readReceiptCount = 0
-            }
+            val contentLocation = cursor.getString(columns.contentLocation)
+            val transactionId = cursor.getString(columns.transactionId)
+            val messageSize = cursor.getLong(columns.messageSize)
+            val expiry = cursor.getLong(columns.expiry)
+            val status = cursor.getInt(columns.status)
+            val deliveryReceiptCount = cursor.getInt(columns.deliveryReceiptCount)
+            val readReceiptCount = if (isReadReceiptsEnabled) cursor.getInt(columns.readReceiptCount) else 0
+            val hasMention = (cursor.getInt(columns.hasMention) == 1)
             var contentLocationBytes: ByteArray? = null
             var transactionIdBytes: ByteArray? = null
             if (!contentLocation.isNullOrEmpty()) contentLocationBytes = toIsoBytes(
@@ -1273,39 +1314,25 @@ class MmsDatabase(context: Context, databaseHelper: SQLCipherOpenHelper) : Messa
         }
 
         private fun getMediaMmsMessageRecord(cursor: Cursor): MediaMmsMessageRecord {
-            val id = cursor.getLong(cursor.getColumnIndexOrThrow(ID))
-            val dateSent = cursor.getLong(cursor.getColumnIndexOrThrow(NORMALIZED_DATE_SENT))
-            val dateReceived = cursor.getLong(
-                cursor.getColumnIndexOrThrow(
-                    NORMALIZED_DATE_RECEIVED
-                )
-            )
-            val box = cursor.getLong(cursor.getColumnIndexOrThrow(MESSAGE_BOX))
-            val threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID))
-            val address = cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS))
-            val addressDeviceId = cursor.getInt(cursor.getColumnIndexOrThrow(ADDRESS_DEVICE_ID))
-            val deliveryReceiptCount = cursor.getInt(
-                cursor.getColumnIndexOrThrow(
-                    DELIVERY_RECEIPT_COUNT
-                )
-            )
-            var readReceiptCount = cursor.getInt(cursor.getColumnIndexOrThrow(READ_RECEIPT_COUNT))
-            val body = cursor.getString(cursor.getColumnIndexOrThrow(BODY))
-            val partCount = cursor.getInt(cursor.getColumnIndexOrThrow(PART_COUNT))
-            val mismatchDocument = cursor.getString(
-                cursor.getColumnIndexOrThrow(
-                    MISMATCHED_IDENTITIES
-                )
-            )
-            val networkDocument = cursor.getString(cursor.getColumnIndexOrThrow(NETWORK_FAILURE))
-            val subscriptionId = cursor.getInt(cursor.getColumnIndexOrThrow(SUBSCRIPTION_ID))
-            val expiresIn = cursor.getLong(cursor.getColumnIndexOrThrow(EXPIRES_IN))
-            val expireStarted = cursor.getLong(cursor.getColumnIndexOrThrow(EXPIRE_STARTED))
-            val unidentified = cursor.getInt(cursor.getColumnIndexOrThrow(UNIDENTIFIED)) == 1
-            val hasMention = cursor.getInt(cursor.getColumnIndexOrThrow(HAS_MENTION)) == 1
-            if (!isReadReceiptsEnabled(context)) {
-                readReceiptCount = 0
-            }
+            val columns = mediaColumns
+            val id = cursor.getLong(columns.id)
+            val dateSent = cursor.getLong(columns.dateSent)
+            val dateReceived = cursor.getLong(columns.dateReceived)
+            val box = cursor.getLong(columns.messageBox)
+            val threadId = cursor.getLong(columns.threadId)
+            val address = cursor.getString(columns.address)
+            val addressDeviceId = cursor.getInt(columns.addressDeviceId)
+            val deliveryReceiptCount = cursor.getInt(columns.deliveryReceiptCount)
+            val readReceiptCount = if (isReadReceiptsEnabled) cursor.getInt(columns.readReceiptCount) else 0
+            val body = cursor.getString(columns.body)
+            val partCount = cursor.getInt(columns.partCount)
+            val mismatchDocument = cursor.getString(columns.mismatchedIdentities)
+            val networkDocument = cursor.getString(columns.networkFailure)
+            val subscriptionId = cursor.getInt(columns.subscriptionId)
+            val expiresIn = cursor.getLong(columns.expiresIn)
+            val expireStarted = cursor.getLong(columns.expireStarted)
+            val unidentified = cursor.getInt(columns.unidentified) == 1
+            val hasMention = cursor.getInt(columns.hasMention) == 1
             val recipient = getRecipientFor(address)
             val mismatches = getMismatchedIdentities(mismatchDocument)
             val networkFailures = getFailures(networkDocument)
@@ -1373,8 +1400,8 @@ class MmsDatabase(context: Context, databaseHelper: SQLCipherOpenHelper) : Messa
         }
 
         private fun getQuote(cursor: Cursor): Quote? {
-            val quoteId = cursor.getLong(cursor.getColumnIndexOrThrow(QUOTE_ID))
-            val quoteAuthor = cursor.getString(cursor.getColumnIndexOrThrow(QUOTE_AUTHOR))
+            val quoteId = cursor.getLong(mediaColumns.quoteId)
+            val quoteAuthor = cursor.getString(mediaColumns.quoteAuthor)
             if (quoteId == 0L || quoteAuthor.isNullOrBlank()) return null
             val retrievedQuote = get(context).mmsSmsDatabase().getMessageFor(quoteId, quoteAuthor)
             val quoteText = retrievedQuote?.body
@@ -1400,6 +1427,52 @@ class MmsDatabase(context: Context, databaseHelper: SQLCipherOpenHelper) : Messa
         }
     }
 
+    /**
+     * The indexes of the columns [Reader] reads for notification messages.
+     */
+    private class NotificationColumns(cursor: Cursor) {
+        val id = cursor.getColumnIndexOrThrow(ID)
+        val dateSent = cursor.getColumnIndexOrThrow(NORMALIZED_DATE_SENT)
+        val dateReceived = cursor.getColumnIndexOrThrow(NORMALIZED_DATE_RECEIVED)
+        val threadId = cursor.getColumnIndexOrThrow(THREAD_ID)
+        val messageBox = cursor.getColumnIndexOrThrow(MESSAGE_BOX)
+        val address = cursor.getColumnIndexOrThrow(ADDRESS)
+        val contentLocation = cursor.getColumnIndexOrThrow(CONTENT_LOCATION)
+        val transactionId = cursor.getColumnIndexOrThrow(TRANSACTION_ID)
+        val messageSize = cursor.getColumnIndexOrThrow(MESSAGE_SIZE)
+        val expiry = cursor.getColumnIndexOrThrow(EXPIRY)
+        val status = cursor.getColumnIndexOrThrow(STATUS)
+        val deliveryReceiptCount = cursor.getColumnIndexOrThrow(DELIVERY_RECEIPT_COUNT)
+        val readReceiptCount = cursor.getColumnIndexOrThrow(READ_RECEIPT_COUNT)
+        val hasMention = cursor.getColumnIndexOrThrow(HAS_MENTION)
+    }
+
+    /**
+     * The indexes of the columns [Reader] reads for media messages.
+     */
+    private class MediaColumns(cursor: Cursor) {
+        val id = cursor.getColumnIndexOrThrow(ID)
+        val dateSent = cursor.getColumnIndexOrThrow(NORMALIZED_DATE_SENT)
+        val dateReceived = cursor.getColumnIndexOrThrow(NORMALIZED_DATE_RECEIVED)
+        val messageBox = cursor.getColumnIndexOrThrow(MESSAGE_BOX)
+        val threadId = cursor.getColumnIndexOrThrow(THREAD_ID)
+        val address = cursor.getColumnIndexOrThrow(ADDRESS)
+        val addressDeviceId = cursor.getColumnIndexOrThrow(ADDRESS_DEVICE_ID)
+        val deliveryReceiptCount = cursor.getColumnIndexOrThrow(DELIVERY_RECEIPT_COUNT)
+        val readReceiptCount = cursor.getColumnIndexOrThrow(READ_RECEIPT_COUNT)
+        val body = cursor.getColumnIndexOrThrow(BODY)
+        val partCount = cursor.getColumnIndexOrThrow(PART_COUNT)
+        val mismatchedIdentities = cursor.getColumnIndexOrThrow(MISMATCHED_IDENTITIES)
+        val networkFailure = cursor.getColumnIndexOrThrow(NETWORK_FAILURE)
+        val subscriptionId = cursor.getColumnIndexOrThrow(SUBSCRIPTION_ID)
+        val expiresIn = cursor.getColumnIndexOrThrow(EXPIRES_IN)
+        val expireStarted = cursor.getColumnIndexOrThrow(EXPIRE_STARTED)
+        val unidentified = cursor.getColumnIndexOrThrow(UNIDENTIFIED)
+        val hasMention = cursor.getColumnIndexOrThrow(HAS_MENTION)
+        val quoteId = cursor.getColumnIndexOrThrow(QUOTE_ID)
+        val quoteAuthor = cursor.getColumnIndexOrThrow(QUOTE_AUTHOR)
+    }
+
     companion object {
         private val TAG = MmsDatabase::class.java.simpleName
         const val TABLE_NAME: String = "mms"
@@ -1450,7 +1523,8 @@ class MmsDatabase(context: Context, databaseHelper: SQLCipherOpenHelper) : Messa
             "CREATE INDEX IF NOT EXISTS mms_read_and_notified_and_thread_id_index ON $TABLE_NAME($READ,$NOTIFIED,$THREAD_ID);",
             "CREATE INDEX IF NOT EXISTS mms_message_box_index ON $TABLE_NAME ($MESSAGE_BOX);",
             "CREATE INDEX IF NOT EXISTS mms_date_sent_index ON $TABLE_NAME ($DATE_SENT);",
-            "CREATE INDEX IF NOT EXISTS mms_thread_date_index ON $TABLE_NAME ($THREAD_ID, $DATE_RECEIVED);"
+            "CREATE INDEX IF NOT EXISTS mms_thread_date_index ON $TABLE_NAME ($THREAD_ID, $DATE_RECEIVED);",
+            "CREATE INDEX IF NOT EXISTS mms_thread_date_sent_index ON $TABLE_NAME ($THREAD_ID, $DATE_SENT);"
         )
         private val MMS_PROJECTION: Array<String> = arrayOf(
             "$TABLE_NAME.$ID AS $ID",
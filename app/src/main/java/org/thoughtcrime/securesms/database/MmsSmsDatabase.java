@@ -23,6 +23,7 @@ import android.database.Cursor;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import net.zetetic.database.sqlcipher.SQLiteDatabase;
 import net.zetetic.database.sqlcipher.SQLiteQueryBuilder;
@@ -34,9 +35,12 @@ import org.thoughtcrime.securesms.database.MessagingDatabase.SyncMessageId;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.dependencies.DatabaseComponent;
+import org.thoughtcrime.securesms.util.LRUCache;
 
 import java.io.Closeable;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import kotlin.Pair;
@@ -84,12 +88,100 @@ public class MmsSmsDatabase extends Database {
                                               MmsSmsColumns.HAS_MENTION
   };
 
+  // These only touch the sms and mms tables (and their indexes) rather than the full union with
+  // its attachment and reaction aggregates
+  @VisibleForTesting
+  static final String HAS_MESSAGE_BEFORE_QUERY =
+      "SELECT EXISTS (SELECT 1 FROM " + SmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = ? AND " + SmsDatabase.DATE_SENT + " < ?)" +
+      " OR EXISTS (SELECT 1 FROM " + MmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = ? AND " + MmsDatabase.DATE_SENT + " < ?)";
+
+  @VisibleForTesting
+  static final String HAS_MESSAGE_AFTER_QUERY =
+      "SELECT EXISTS (SELECT 1 FROM " + SmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = ? AND " + SmsDatabase.DATE_SENT + " > ?)" +
+      " OR EXISTS (SELECT 1 FROM " + MmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = ? AND " + MmsDatabase.DATE_SENT + " > ?)";
+
+  @VisibleForTesting
+  static final String UNREAD_COUNT_QUERY =
+      "SELECT (SELECT COUNT(*) FROM " + SmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.READ + " = 0 AND " + MmsSmsColumns.NOTIFIED + " = 0 AND " + MmsSmsColumns.THREAD_ID + " = ?)" +
+      " + (SELECT COUNT(*) FROM " + MmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.READ + " = 0 AND " + MmsSmsColumns.NOTIFIED + " = 0 AND " + MmsSmsColumns.THREAD_ID + " = ?)";
+
+  @VisibleForTesting
+  static final String MESSAGE_ADDRESSES_QUERY =
+      "SELECT " + MmsSmsColumns.ADDRESS + " FROM " + SmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = ? AND " + SmsDatabase.DATE_SENT + " = ?" +
+      " UNION ALL SELECT " + MmsSmsColumns.ADDRESS + " FROM " + MmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = ? AND " + MmsDatabase.DATE_SENT + " = ?";
+
+  // The position of a message in a conversation sorted by sent timestamp is the number of messages on
+  // one side of it
+  @VisibleForTesting
+  static final String OLDER_MESSAGE_COUNT_QUERY =
+      "SELECT (SELECT COUNT(*) FROM " + SmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = ? AND " + SmsDatabase.DATE_SENT + " >= ? AND " + SmsDatabase.DATE_SENT + " < ?)" +
+      " + (SELECT COUNT(*) FROM " + MmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = ? AND " + MmsDatabase.DATE_SENT + " >= ? AND " + MmsDatabase.DATE_SENT + " < ?)";
+
+  @VisibleForTesting
+  static final String NEWER_MESSAGE_COUNT_QUERY =
+      "SELECT (SELECT COUNT(*) FROM " + SmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = ? AND " + SmsDatabase.DATE_SENT + " > ?)" +
+      " + (SELECT COUNT(*) FROM " + MmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = ? AND " + MmsDatabase.DATE_SENT + " > ?)";
+
+  private static final String THREADS_BY_RECIPIENT_PREFERENCE =
+      "SELECT " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " FROM " + ThreadDatabase.TABLE_NAME +
+      " JOIN " + RecipientDatabase.TABLE_NAME + " ON " + RecipientDatabase.TABLE_NAME + "." + RecipientDatabase.ADDRESS + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ADDRESS +
+      " WHERE ";
+
+  // Threads that are muted as of the bound time, of which nothing is shown in notifications
+  private static final String MUTED_THREADS =
+      THREADS_BY_RECIPIENT_PREFERENCE + RecipientDatabase.TABLE_NAME + "." + RecipientDatabase.MUTE_UNTIL + " >= ?";
+
+  // Threads that never notify of messages. Reactions to messages in them are still notified.
+  private static final String SILENT_THREADS =
+      THREADS_BY_RECIPIENT_PREFERENCE + RecipientDatabase.TABLE_NAME + "." + RecipientDatabase.NOTIFY_TYPE + " = " + RecipientDatabase.NOTIFY_TYPE_NONE;
+
+  @VisibleForTesting
+  static final String UNREAD_SELECTION =
+      "(" + MmsSmsColumns.READ + " = 0 OR " + MmsSmsColumns.REACTIONS_UNREAD + " = 1) AND " + MmsSmsColumns.NOTIFIED + " = 0" +
+      " AND " + MmsSmsColumns.THREAD_ID + " NOT IN (" + MUTED_THREADS + ")" +
+      " AND (" + MmsSmsColumns.REACTIONS_UNREAD + " = 1 OR " + MmsSmsColumns.THREAD_ID + " NOT IN (" + SILENT_THREADS + "))";
+
+  // The sent timestamp of the (offset + 1)th newest message without an unread reaction that
+  // getUnread() returns, or -1 if there are fewer. Only reads the message tables, so it's cheap no
+  // matter how many messages are unread.
+  @VisibleForTesting
+  static final String UNREAD_START_QUERY =
+      "SELECT IFNULL((SELECT " + MmsSmsColumns.NORMALIZED_DATE_SENT + " FROM (" +
+      "SELECT " + SmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT + " FROM " + SmsDatabase.TABLE_NAME + " WHERE " + UNREAD_SELECTION + " AND " + MmsSmsColumns.REACTIONS_UNREAD + " = 0" +
+      " UNION ALL SELECT " + MmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT + " FROM " + MmsDatabase.TABLE_NAME + " WHERE " + UNREAD_SELECTION + " AND " + MmsSmsColumns.REACTIONS_UNREAD + " = 0" +
+      ") ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_SENT + " DESC LIMIT 1 OFFSET ?), -1)";
+
+  // The rows of getUnread() that getUnread(int) loads, given the sent timestamp UNREAD_START_QUERY
+  // found. A reaction can be added to a message of any age, so unread reactions aren't windowed.
+  @VisibleForTesting
+  static final String UNREAD_WINDOW_SELECTION =
+      UNREAD_SELECTION + " AND (" + MmsSmsColumns.NORMALIZED_DATE_SENT + " >= ? OR " + MmsSmsColumns.REACTIONS_UNREAD + " = 1)";
+
+  @VisibleForTesting
+  static final String UNREAD_TOTAL_COUNT_QUERY =
+      "SELECT (SELECT COUNT(*) FROM " + SmsDatabase.TABLE_NAME + " WHERE " + UNREAD_SELECTION + ")" +
+      " + (SELECT COUNT(*) FROM " + MmsDatabase.TABLE_NAME + " WHERE " + UNREAD_SELECTION + ")";
+
+  // The sent timestamp of the newest message in the thread that isn't a deleted message, or -1 if
+  // there isn't one. Walks the (thread_id, date_sent) indexes newest first, stopping at the first match.
+  @VisibleForTesting
+  static final String LAST_UNDELETED_DATE_SENT_QUERY =
+      "SELECT IFNULL(MAX(" + MmsSmsColumns.NORMALIZED_DATE_SENT + "), -1) FROM (" +
+      "SELECT * FROM (SELECT " + SmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT + " FROM " + SmsDatabase.TABLE_NAME +
+      " WHERE " + MmsSmsColumns.THREAD_ID + " = ? AND (" + SmsDatabase.TYPE + " & " + MmsSmsColumns.Types.BASE_TYPE_MASK + ") != " + MmsSmsColumns.Types.BASE_DELETED_TYPE +
+      " ORDER BY " + SmsDatabase.DATE_SENT + " DESC LIMIT 1)" +
+      " UNION ALL SELECT * FROM (SELECT " + MmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT + " FROM " + MmsDatabase.TABLE_NAME +
+      " WHERE " + MmsSmsColumns.THREAD_ID + " = ? AND (" + MmsDatabase.MESSAGE_BOX + " & " + MmsSmsColumns.Types.BASE_TYPE_MASK + ") != " + MmsSmsColumns.Types.BASE_DELETED_TYPE +
+      " ORDER BY " + MmsDatabase.DATE_SENT + " DESC LIMIT 1))";
+
+  private final Map<String, String> unionQueryCache = new LRUCache<>(32);
+
   public MmsSmsDatabase(Context context, SQLCipherOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
 
   public @Nullable MessageRecord getMessageForTimestamp(long timestamp) {
-    try (Cursor cursor = queryTables(PROJECTION, MmsSmsColumns.NORMALIZED_DATE_SENT + " = " + timestamp, null, null)) {
+    try (Cursor cursor = queryTables(PROJECTION, MmsSmsColumns.NORMALIZED_DATE_SENT + " = ?", new String[] { String.valueOf(timestamp) }, null, null)) {
       MmsSmsDatabase.Reader reader = readerFor(cursor);
       return reader.getNext();
     }
@@ -97,7 +189,7 @@ public class MmsSmsDatabase extends Database {
 
   public @Nullable MessageRecord getMessageFor(long timestamp, String serializedAuthor) {
 
-    try (Cursor cursor = queryTables(PROJECTION, MmsSmsColumns.NORMALIZED_DATE_SENT + " = " + timestamp, null, null)) {
+    try (Cursor cursor = queryTables(PROJECTION, MmsSmsColumns.NORMALIZED_DATE_SENT + " = ?", new String[] { String.valueOf(timestamp) }, null, null)) {
       MmsSmsDatabase.Reader reader = readerFor(cursor);
 
       MessageRecord messageRecord;
@@ -121,11 +213,12 @@ public class MmsSmsDatabase extends Database {
 
   public long getPreviousPage(long threadId, long fromTime, int limit) {
     String order = MmsSmsColumns.NORMALIZED_DATE_SENT+" ASC";
-    String selection = MmsSmsColumns.THREAD_ID+" = "+threadId
-            + " AND "+MmsSmsColumns.NORMALIZED_DATE_SENT+" > "+fromTime;
+    String selection = MmsSmsColumns.THREAD_ID+" = ?"
+            + " AND "+MmsSmsColumns.NORMALIZED_DATE_SENT+" > ?";
+    String[] args = new String[] { String.valueOf(threadId), String.valueOf(fromTime) };
     String limitStr = ""+limit;
     long sent = -1;
-    Cursor cursor = queryTables(PROJECTION, selection, order, limitStr);
+    Cursor cursor = queryTables(PROJECTION, selection, args, order, limitStr);
     if (cursor == null) return sent;
     Reader reader = readerFor(cursor);
     if (!cursor.move(limit)) {
@@ -139,50 +232,37 @@ public class MmsSmsDatabase extends Database {
 
   public Cursor getConversationPage(long threadId, long fromTime, long toTime, int limit) {
     String order = MmsSmsColumns.NORMALIZED_DATE_SENT+" DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = "+threadId
-            + " AND "+MmsSmsColumns.NORMALIZED_DATE_SENT+" <= " + fromTime;
+    String selection = MmsSmsColumns.THREAD_ID + " = ?"
+            + " AND "+MmsSmsColumns.NORMALIZED_DATE_SENT+" <= ?";
+    String[] args;
     String limitStr = null;
     if (toTime != -1L) {
-      selection += " AND "+MmsSmsColumns.NORMALIZED_DATE_SENT+" > "+toTime;
+      selection += " AND "+MmsSmsColumns.NORMALIZED_DATE_SENT+" > ?";
+      args = new String[] { String.valueOf(threadId), String.valueOf(fromTime), String.valueOf(toTime) };
     } else {
+      args = new String[] { String.valueOf(threadId), String.valueOf(fromTime) };
       limitStr = ""+limit;
     }
 
-    return queryTables(PROJECTION, selection, order, limitStr);
+    return queryTables(PROJECTION, selection, args, order, limitStr);
   }
 
   public boolean hasNextPage(long threadId, long toTime) {
-    String order = MmsSmsColumns.NORMALIZED_DATE_SENT+" DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = "+threadId
-            + " AND "+MmsSmsColumns.NORMALIZED_DATE_SENT+" < " + toTime; // check if there's at least one message before the `toTime`
-    Cursor cursor = queryTables(PROJECTION, selection, order, null);
-    boolean hasNext = false;
-    if (cursor != null) {
-      hasNext = cursor.getCount() > 0;
-      cursor.close();
-    }
-    return hasNext;
+    // check if there's at least one message before the `toTime`
+    return queryLong(HAS_MESSAGE_BEFORE_QUERY, threadId, toTime) > 0;
   }
 
   public boolean hasPreviousPage(long threadId, long fromTime) {
-    String order = MmsSmsColumns.NORMALIZED_DATE_SENT+" DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = "+threadId
-            + " AND "+MmsSmsColumns.NORMALIZED_DATE_SENT+" > " + fromTime; // check if there's at least one message after the `fromTime`
-    Cursor cursor = queryTables(PROJECTION, selection, order, null);
-    boolean hasNext = false;
-    if (cursor != null) {
-      hasNext = cursor.getCount() > 0;
-      cursor.close();
-    }
-    return hasNext;
+    // check if there's at least one message after the `fromTime`
+    return queryLong(HAS_MESSAGE_AFTER_QUERY, threadId, fromTime) > 0;
   }
 
   public Cursor getConversation(long threadId, boolean reverse, long offset, long limit) {
     String order     = MmsSmsColumns.NORMALIZED_DATE_SENT + (reverse ? " DESC" : " ASC");
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+    String selection = MmsSmsColumns.THREAD_ID + " = ?";
     String limitStr  = limit > 0 || offset > 0 ? offset + ", " + limit : null;
 
-    Cursor cursor = queryTables(PROJECTION, selection, order, limitStr);
+    Cursor cursor = queryTables(PROJECTION, selection, new String[] { String.valueOf(threadId) }, order, limitStr);
     setNotifyConverationListeners(cursor, threadId);
 
     return cursor;
@@ -192,39 +272,144 @@ public class MmsSmsDatabase extends Database {
     return getConversation(threadId, reverse, 0, 0);
   }
 
+  /**
+   * Returns every message in the thread sent at or after {@code fromTime}, or the whole thread if
+   * {@code fromTime} is negative. Use {@link #getPageStart(long, long, int)} to find a boundary.
+   */
+  public Cursor getConversationWindow(long threadId, long fromTime, boolean reverse) {
+    String order     = MmsSmsColumns.NORMALIZED_DATE_SENT + (reverse ? " DESC" : " ASC");
+    String   selection = MmsSmsColumns.THREAD_ID + " = ?";
+    String[] args      = new String[] { String.valueOf(threadId) };
+
+    if (fromTime >= 0) {
+      selection += " AND " + MmsSmsColumns.NORMALIZED_DATE_SENT + " >= ?";
+      args       = new String[] { String.valueOf(threadId), String.valueOf(fromTime) };
+    }
+
+    Cursor cursor = queryTables(PROJECTION, selection, args, order, null);
+    setNotifyConverationListeners(cursor, threadId);
+
+    return cursor;
+  }
+
+  /**
+   * Returns the sent timestamp of the {@code limit}th newest message in the thread that was sent
+   * before {@code beforeTime}, or -1 if there are fewer messages than that.
+   *
+   * This only walks the (thread_id, date_sent) indexes, so its cost depends on {@code limit}
+   * rather than on the size of the thread.
+   */
+  public long getPageStart(long threadId, long beforeTime, int limit) {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+
+    try (Cursor cursor = db.rawQuery(buildPageStartQuery(threadId, beforeTime, limit), null)) {
+      return cursor != null && cursor.moveToFirst() ? cursor.getLong(0) : -1;
+    }
+  }
+
+  @VisibleForTesting
+  static String buildPageStartQuery(long threadId, long beforeTime, int limit) {
+    String smsQuery = "SELECT " + SmsDatabase.DATE_SENT + " FROM " + SmsDatabase.TABLE_NAME +
+                      " WHERE " + MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + SmsDatabase.DATE_SENT + " < " + beforeTime +
+                      " ORDER BY " + SmsDatabase.DATE_SENT + " DESC LIMIT " + limit;
+    String mmsQuery = "SELECT " + MmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT + " FROM " + MmsDatabase.TABLE_NAME +
+                      " WHERE " + MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + MmsDatabase.DATE_SENT + " < " + beforeTime +
+                      " ORDER BY " + MmsDatabase.DATE_SENT + " DESC LIMIT " + limit;
+
+    return "SELECT " + MmsSmsColumns.NORMALIZED_DATE_SENT + " FROM (" + smsQuery + ")" +
+           " UNION ALL SELECT " + MmsSmsColumns.NORMALIZED_DATE_SENT + " FROM (" + mmsQuery + ")" +
+           " ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_SENT + " DESC LIMIT 1 OFFSET " + (limit - 1);
+  }
+
   public Cursor getConversationSnippet(long threadId) {
     String order     = MmsSmsColumns.NORMALIZED_DATE_SENT + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+    String selection = MmsSmsColumns.THREAD_ID + " = ?";
 
-    return queryTables(PROJECTION, selection, order, null);
+    return queryTables(PROJECTION, selection, new String[] { String.valueOf(threadId) }, order, null);
+  }
+
+  /**
+   * Returns the newest message in the thread that isn't a deleted message, or null if there isn't
+   * one. The message is found through the indexes first, so only its row goes through the union
+   * query, however many deleted messages come after it.
+   */
+  public @Nullable MessageRecord getLastUndeletedMessage(long threadId) {
+    long dateSent = queryLong(LAST_UNDELETED_DATE_SENT_QUERY, threadId);
+
+    if (dateSent < 0) {
+      return null;
+    }
+
+    String   order     = MmsSmsColumns.NORMALIZED_DATE_SENT + " DESC";
+    String   selection = MmsSmsColumns.THREAD_ID + " = ? AND " + MmsSmsColumns.NORMALIZED_DATE_SENT + " = ?";
+    String[] args      = new String[] { String.valueOf(threadId), String.valueOf(dateSent) };
+
+    try (Cursor cursor = queryTables(PROJECTION, selection, args, order, null)) {
+      Reader        reader = readerFor(cursor);
+      MessageRecord record;
+
+      // Deleted messages sent at the same time are skipped here
+      while ((record = reader.getNext()) != null) {
+        if (!record.isDeleted()) return record;
+      }
+    }
+
+    return null;
   }
 
   public long getLastMessageID(long threadId) {
     String order     = MmsSmsColumns.NORMALIZED_DATE_SENT + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+    String selection = MmsSmsColumns.THREAD_ID + " = ?";
 
-    try (Cursor cursor = queryTables(PROJECTION, selection, order, "1")) {
+    try (Cursor cursor = queryTables(PROJECTION, selection, new String[] { String.valueOf(threadId) }, order, "1")) {
       cursor.moveToFirst();
       return cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.ID));
     }
   }
 
+  /**
+   * The unread messages to notify about, leaving out those in muted threads and threads that never
+   * notify.
+   */
   public Cursor getUnread() {
-    String order           = MmsSmsColumns.NORMALIZED_DATE_SENT + " ASC";
-    String selection       = "(" + MmsSmsColumns.READ + " = 0 OR " + MmsSmsColumns.REACTIONS_UNREAD + " = 1) AND " + MmsSmsColumns.NOTIFIED + " = 0";
+    String order = MmsSmsColumns.NORMALIZED_DATE_SENT + " ASC";
+    String now   = String.valueOf(System.currentTimeMillis());
 
-    return queryTables(PROJECTION, selection, order, null);
+    return queryTables(PROJECTION, UNREAD_SELECTION, new String[] { now }, order, null);
   }
 
-  public int getUnreadCount(long threadId) {
-    String selection = MmsSmsColumns.READ + " = 0 AND " + MmsSmsColumns.NOTIFIED + " = 0 AND " + MmsSmsColumns.THREAD_ID + " = " + threadId;
-    Cursor cursor    = queryTables(PROJECTION, selection, null, null);
+  /**
+   * The newest {@code limit} messages {@link #getUnread()} returns (plus any others sent at the
+   * same time as the oldest of them, and every message with an unread reaction, however old), in
+   * the same order. Only these rows pay for the attachment and reaction aggregation, which is what
+   * makes {@link #getUnread()} slow when many messages are unread, e.g. while catching up.
+   */
+  public Cursor getUnread(int limit) {
+    String now = String.valueOf(System.currentTimeMillis());
+    long   start;
+
+    try (Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(UNREAD_START_QUERY, new String[] { now, now, String.valueOf(limit - 1) })) {
+      start = cursor != null && cursor.moveToFirst() ? cursor.getLong(0) : -1;
+    }
 
-    try {
-      return cursor != null ? cursor.getCount() : 0;
-    } finally {
-      if (cursor != null) cursor.close();
+    if (start < 0) {
+      return getUnread();
     }
+
+    String order = MmsSmsColumns.NORMALIZED_DATE_SENT + " ASC";
+
+    return queryTables(PROJECTION, UNREAD_WINDOW_SELECTION, new String[] { now, String.valueOf(start) }, order, null);
+  }
+
+  /**
+   * @return the number of messages {@link #getUnread()} returns, without loading them.
+   */
+  public int getUnreadTotalCount() {
+    return (int) queryLong(UNREAD_TOTAL_COUNT_QUERY, System.currentTimeMillis());
+  }
+
+  public int getUnreadCount(long threadId) {
+    return (int) queryLong(UNREAD_COUNT_QUERY, threadId);
   }
 
   public long getConversationCount(long threadId) {
@@ -245,46 +430,92 @@ public class MmsSmsDatabase extends Database {
   }
 
   public int getQuotedMessagePosition(long threadId, long quoteId, @NonNull Address address) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_SENT + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+    if (!hasMessageFrom(threadId, quoteId, address)) return -1;
 
-    try (Cursor cursor = queryTables(new String[]{ MmsSmsColumns.NORMALIZED_DATE_SENT, MmsSmsColumns.ADDRESS }, selection, order, null)) {
-      String  serializedAddress = address.serialize();
-      boolean isOwnNumber       = Util.isOwnNumber(context, address.serialize());
+    return (int) queryLong(NEWER_MESSAGE_COUNT_QUERY, threadId, quoteId);
+  }
 
-      while (cursor != null && cursor.moveToNext()) {
-        boolean quoteIdMatches = cursor.getLong(0) == quoteId;
-        boolean addressMatches = serializedAddress.equals(cursor.getString(1));
+  public int getMessagePositionInConversation(long threadId, long fromTime, long sentTimestamp, @NonNull Address address, boolean reverse) {
+    if (fromTime >= 0 && sentTimestamp < fromTime) return -1;
+    if (!hasMessageFrom(threadId, sentTimestamp, address)) return -1;
 
-        if (quoteIdMatches && (addressMatches || isOwnNumber)) {
-          return cursor.getPosition();
+    if (reverse) {
+      return (int) queryLong(NEWER_MESSAGE_COUNT_QUERY, threadId, sentTimestamp);
+    } else {
+      return (int) queryLong(OLDER_MESSAGE_COUNT_QUERY, threadId, Math.max(fromTime, 0), sentTimestamp);
+    }
+  }
+
+  private boolean hasMessageFrom(long threadId, long sentTimestamp, @NonNull Address address) {
+    String         serializedAddress = address.serialize();
+    boolean        isOwnNumber       = Util.isOwnNumber(context, serializedAddress);
+    String[]       args              = new String[] { String.valueOf(threadId), String.valueOf(sentTimestamp), String.valueOf(threadId), String.valueOf(sentTimestamp) };
+    SQLiteDatabase db                = databaseHelper.getReadableDatabase();
+
+    try (Cursor cursor = db.rawQuery(MESSAGE_ADDRESSES_QUERY, args)) {
+      while (cursor != null && cursor.moveToNext()) {
+        if (isOwnNumber || serializedAddress.equals(cursor.getString(0))) {
+          return true;
         }
       }
     }
-    return -1;
+    return false;
   }
 
-  public int getMessagePositionInConversation(long threadId, long sentTimestamp, @NonNull Address address, boolean reverse) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_SENT + (reverse ? " DESC" : " ASC");
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+  /**
+   * Runs a query that returns a single number. Each argument is bound once for the sms table and
+   * once for the mms table, in that order.
+   */
+  private long queryLong(String query, long... args) {
+    String[] queryArgs = new String[args.length * 2];
+
+    for (int i = 0; i < args.length; i++) {
+      queryArgs[i]               = String.valueOf(args[i]);
+      queryArgs[i + args.length] = String.valueOf(args[i]);
+    }
 
-    try (Cursor cursor = queryTables(new String[]{ MmsSmsColumns.NORMALIZED_DATE_SENT, MmsSmsColumns.ADDRESS }, selection, order, null)) {
-      String  serializedAddress = address.serialize();
-      boolean isOwnNumber       = Util.isOwnNumber(context, address.serialize());
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
 
-      while (cursor != null && cursor.moveToNext()) {
-        boolean timestampMatches = cursor.getLong(0) == sentTimestamp;
-        boolean addressMatches   = serializedAddress.equals(cursor.getString(1));
+    try (Cursor cursor = db.rawQuery(query, queryArgs)) {
+      return cursor != null && cursor.moveToFirst() ? cursor.getLong(0) : 0;
+    }
+  }
 
-        if (timestampMatches && (addressMatches || isOwnNumber)) {
-          return cursor.getPosition();
-        }
+  /**
+   * Runs the sms/mms union query. The selection is applied to both halves of the union, so it
+   * should only contain {@code ?} placeholders (never inlined values) to keep the number of
+   * distinct query shapes, and therefore cached query strings, small.
+   */
+  private Cursor queryTables(String[] projection, String selection, @Nullable String[] selectionArgs, String order, String limit) {
+    String key = Arrays.toString(projection) + '|' + selection + '|' + order + '|' + limit;
+    String query;
+
+    synchronized (unionQueryCache) {
+      query = unionQueryCache.get(key);
+    }
+
+    if (query == null) {
+      query = buildUnionQuery(projection, selection, order, limit);
+
+      synchronized (unionQueryCache) {
+        unionQueryCache.put(key, query);
       }
     }
-    return -1;
+
+    String[] args = null;
+
+    if (selectionArgs != null && selectionArgs.length > 0) {
+      // The selection appears once in the sms half and once in the mms half of the union
+      args = new String[selectionArgs.length * 2];
+      System.arraycopy(selectionArgs, 0, args, 0, selectionArgs.length);
+      System.arraycopy(selectionArgs, 0, args, selectionArgs.length, selectionArgs.length);
+    }
+
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    return db.rawQuery(query, args);
   }
 
-  private Cursor queryTables(String[] projection, String selection, String order, String limit) {
+  private static String buildUnionQuery(String[] projection, String selection, String order, String limit) {
     String reactionsColumn = "json_group_array(json_object(" +
             "'" + ReactionDatabase.ROW_ID + "', " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.ROW_ID + ", " +
             "'" + ReactionDatabase.MESSAGE_ID + "', " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.MESSAGE_ID + ", " +
@@ -509,8 +740,7 @@ public class MmsSmsDatabase extends Database {
     @SuppressWarnings("deprecation")
     String query      = outerQueryBuilder.buildQuery(projection, null, null, null, null, null, null);
 
-    SQLiteDatabase db = databaseHelper.getReadableDatabase();
-    return db.rawQuery(query, null);
+    return query;
   }
 
   public Reader readerFor(@NonNull Cursor cursor) {
@@ -539,6 +769,7 @@ public class MmsSmsDatabase extends Database {
     private final Cursor                 cursor;
     private       SmsDatabase.Reader     smsReader;
     private       MmsDatabase.Reader     mmsReader;
+    private       int                    transportColumn = -1;
 
     public Reader(Cursor cursor) {
       this.cursor = cursor;
@@ -568,7 +799,11 @@ public class MmsSmsDatabase extends Database {
     }
 
     public MessageRecord getCurrent() {
-      String type = cursor.getString(cursor.getColumnIndexOrThrow(TRANSPORT));
+      if (transportColumn < 0) {
+        transportColumn = cursor.getColumnIndexOrThrow(TRANSPORT);
+      }
+
+      String type = cursor.getString(transportColumn);
 
       if      (MmsSmsDatabase.MMS_TRANSPORT.equals(type)) return getMmsReader().getCurrent();
       else if (MmsSmsDatabase.SMS_TRANSPORT.equals(type)) return getSmsReader().getCurrent();
@@ -42,7 +42,7 @@ public class RecipientDatabase extends Database {
   private static final String APPROVED_ME              = "approved_me";
   private static final String NOTIFICATION             = "notification";
   private static final String VIBRATE                  = "vibrate";
-  private static final String MUTE_UNTIL               = "mute_until";
+          static final String MUTE_UNTIL               = "mute_until";
   private static final String COLOR                    = "color";
   private static final String SEEN_INVITE_REMINDER     = "seen_invite_reminder";
   private static final String DEFAULT_SUBSCRIPTION_ID  = "default_subscription_id";
@@ -62,7 +62,7 @@ public class RecipientDatabase extends Database {
   private static final String NOTIFICATION_CHANNEL     = "notification_channel";
   private static final String UNIDENTIFIED_ACCESS_MODE = "unidentified_access_mode";
   private static final String FORCE_SMS_SELECTION      = "force_sms_selection";
-  private static final String NOTIFY_TYPE              = "notify_type"; // all, mentions only, none
+          static final String NOTIFY_TYPE              = "notify_type"; // all, mentions only, none
   private static final String WRAPPER_HASH             = "wrapper_hash";
   private static final String BLOCKS_COMMUNITY_MESSAGE_REQUESTS = "blocks_community_message_requests";
 
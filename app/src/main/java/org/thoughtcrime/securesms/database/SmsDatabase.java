@@ -55,8 +55,10 @@ import org.thoughtcrime.securesms.dependencies.DatabaseComponent;
 import java.io.Closeable;
 import java.io.IOException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -98,7 +100,8 @@ public class SmsDatabase extends MessagingDatabase {
     "CREATE INDEX IF NOT EXISTS sms_read_and_notified_and_thread_id_index ON " + TABLE_NAME + "(" + READ + "," + NOTIFIED + ","  + THREAD_ID + ");",
     "CREATE INDEX IF NOT EXISTS sms_type_index ON " + TABLE_NAME + " (" + TYPE + ");",
     "CREATE INDEX IF NOT EXISTS sms_date_sent_index ON " + TABLE_NAME + " (" + DATE_SENT + ");",
-    "CREATE INDEX IF NOT EXISTS sms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");"
+    "CREATE INDEX IF NOT EXISTS sms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");",
+    "CREATE INDEX IF NOT EXISTS sms_thread_date_sent_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_SENT + ");"
   };
 
   private static final String[] MESSAGE_PROJECTION = new String[] {
@@ -390,7 +393,7 @@ public class SmsDatabase extends MessagingDatabase {
                     "WHERE " + ID + " = ?",
             new String[] {newTimestamp + "", messageId + ""});
     notifyConversationListeners(threadId);
-    notifyConversationListListeners();
+    notifyConversationListListeners(threadId);
   }
 
   public Pair<Long, Long> updateBundleMessageBody(long messageId, String body) {
@@ -409,12 +412,16 @@ public class SmsDatabase extends MessagingDatabase {
 
     DatabaseComponent.get(context).threadDatabase().update(threadId, true, true);
     notifyConversationListeners(threadId);
-    notifyConversationListListeners();
+    notifyConversationListListeners(threadId);
 
     return new Pair<>(messageId, threadId);
   }
 
   protected Optional<InsertResult> insertMessageInbox(IncomingTextMessage message, long type, long serverTimestamp, boolean runThreadUpdate) {
+    return insertMessageInbox(message, type, serverTimestamp, runThreadUpdate, true);
+  }
+
+  private Optional<InsertResult> insertMessageInbox(IncomingTextMessage message, long type, long serverTimestamp, boolean runThreadUpdate, boolean notify) {
     Recipient recipient = Recipient.from(context, message.getSender(), true);
 
     Recipient groupRecipient;
@@ -489,12 +496,46 @@ public class SmsDatabase extends MessagingDatabase {
         DatabaseComponent.get(context).recipientDatabase().setDefaultSubscriptionId(recipient, message.getSubscriptionId());
       }
 
-      notifyConversationListeners(threadId);
+      if (notify) {
+        notifyConversationListeners(threadId);
+      }
 
       return Optional.of(new InsertResult(messageId, threadId));
     }
   }
 
+  /**
+   * Inserts {@code messages} as {@link #insertMessageInbox(IncomingTextMessage, long, boolean)} would,
+   * with the server timestamp at the same index of {@code serverTimestamps}, but in one transaction,
+   * updating and notifying each of their threads once rather than once per message.
+   */
+  public List<Optional<InsertResult>> insertMessagesInbox(List<IncomingTextMessage> messages, List<Long> serverTimestamps, boolean runThreadUpdate) {
+    SQLiteDatabase               db        = databaseHelper.getWritableDatabase();
+    List<Optional<InsertResult>> results   = new ArrayList<>(messages.size());
+    Set<Long>                    threadIds = new LinkedHashSet<>();
+
+    db.beginTransaction();
+    try {
+      for (int i = 0; i < messages.size(); i++) {
+        Optional<InsertResult> result = insertMessageInbox(messages.get(i), Types.BASE_INBOX_TYPE, serverTimestamps.get(i), false, false);
+        if (result.isPresent()) threadIds.add(result.get().getThreadId());
+        results.add(result);
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    for (long threadId : threadIds) {
+      if (runThreadUpdate) {
+        DatabaseComponent.get(context).threadDatabase().update(threadId, true, true);
+      }
+      notifyConversationListeners(threadId);
+    }
+
+    return results;
+  }
+
   private long getCallMessageTypeMask(CallMessageType callMessageType) {
     switch (callMessageType) {
       case CALL_OUTGOING:
@@ -667,7 +708,8 @@ public class SmsDatabase extends MessagingDatabase {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.update(TABLE_NAME, contentValues, THREAD_ID + " = ?", new String[] {fromId + ""});
     notifyConversationListeners(toId);
-    notifyConversationListListeners();
+    notifyConversationListListeners(fromId);
+    notifyConversationListListeners(toId);
   }
 
   @Override
@@ -805,10 +847,13 @@ public class SmsDatabase extends MessagingDatabase {
 
   public class Reader implements Closeable {
 
-    private final Cursor cursor;
+    private final Cursor  cursor;
+    private final boolean isReadReceiptsEnabled;
+    private       Columns columns;
 
     public Reader(Cursor cursor) {
-      this.cursor = cursor;
+      this.cursor                = cursor;
+      this.isReadReceiptsEnabled = TextSecurePreferences.isReadReceiptsEnabled(context);
     }
 
     public SmsMessageRecord getNext() {
@@ -824,28 +869,26 @@ public class SmsDatabase extends MessagingDatabase {
     }
 
     public SmsMessageRecord getCurrent() {
-      long    messageId            = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.ID));
-      Address address              = Address.fromSerialized(cursor.getString(cursor.getColumnIndexOrThrow(SmsDatabase.ADDRESS)));
-      int     addressDeviceId      = cursor.getInt(cursor.getColumnIndexOrThrow(SmsDatabase.ADDRESS_DEVICE_ID));
-      long    type                 = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.TYPE));
-      long    dateReceived         = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.NORMALIZED_DATE_RECEIVED));
-      long    dateSent             = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.NORMALIZED_DATE_SENT));
-      long    threadId             = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.THREAD_ID));
-      int     status               = cursor.getInt(cursor.getColumnIndexOrThrow(SmsDatabase.STATUS));
-      int     deliveryReceiptCount = cursor.getInt(cursor.getColumnIndexOrThrow(SmsDatabase.DELIVERY_RECEIPT_COUNT));
-      int     readReceiptCount     = cursor.getInt(cursor.getColumnIndexOrThrow(SmsDatabase.READ_RECEIPT_COUNT));
-      String  mismatchDocument     = cursor.getString(cursor.getColumnIndexOrThrow(SmsDatabase.MISMATCHED_IDENTITIES));
-      int     subscriptionId       = cursor.getInt(cursor.getColumnIndexOrThrow(SmsDatabase.SUBSCRIPTION_ID));
-      long    expiresIn            = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.EXPIRES_IN));
-      long    expireStarted        = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.EXPIRE_STARTED));
-      String  body                 = cursor.getString(cursor.getColumnIndexOrThrow(SmsDatabase.BODY));
-      boolean unidentified         = cursor.getInt(cursor.getColumnIndexOrThrow(SmsDatabase.UNIDENTIFIED)) == 1;
-      boolean hasMention           = cursor.getInt(cursor.getColumnIndexOrThrow(SmsDatabase.HAS_MENTION)) == 1;
-
-      if (!TextSecurePreferences.isReadReceiptsEnabled(context)) {
-        readReceiptCount = 0;
+      if (columns == null) {
+        columns = new Columns(cursor);
       }
 
+      long    messageId            = cursor.getLong(columns.id);
+      Address address              = Address.fromSerialized(cursor.getString(columns.address));
+      long    type                 = cursor.getLong(columns.type);
+      long    dateReceived         = cursor.getLong(columns.dateReceived);
+      long    dateSent             = cursor.getLong(columns.dateSent);
+      long    threadId             = cursor.getLong(columns.threadId);
+      int     status               = cursor.getInt(columns.status);
+      int     deliveryReceiptCount = cursor.getInt(columns.deliveryReceiptCount);
+      int     readReceiptCount     = isReadReceiptsEnabled ? cursor.getInt(columns.readReceiptCount) : 0;
+      String  mismatchDocument     = cursor.getString(columns.mismatchedIdentities);
+      long    expiresIn            = cursor.getLong(columns.expiresIn);
+      long    expireStarted        = cursor.getLong(columns.expireStarted);
+      String  body                 = cursor.getString(columns.body);
+      boolean unidentified         = cursor.getInt(columns.unidentified) == 1;
+      boolean hasMention           = cursor.getInt(columns.hasMention) == 1;
+
       List<IdentityKeyMismatch> mismatches = getMismatches(mismatchDocument);
       Recipient                 recipient  = Recipient.from(context, address, true);
       List<ReactionRecord>      reactions  = DatabaseComponent.get(context).reactionDatabase().getReactions(cursor);
@@ -877,6 +920,45 @@ public class SmsDatabase extends MessagingDatabase {
     }
   }
 
+  /**
+   * The indexes of the columns {@link Reader} reads, resolved once per cursor instead of per row.
+   */
+  private static final class Columns {
+    final int id;
+    final int address;
+    final int type;
+    final int dateReceived;
+    final int dateSent;
+    final int threadId;
+    final int status;
+    final int deliveryReceiptCount;
+    final int readReceiptCount;
+    final int mismatchedIdentities;
+    final int expiresIn;
+    final int expireStarted;
+    final int body;
+    final int unidentified;
+    final int hasMention;
+
+    Columns(@NonNull Cursor cursor) {
+      id                   = cursor.getColumnIndexOrThrow(SmsDatabase.ID);
+      address              = cursor.getColumnIndexOrThrow(SmsDatabase.ADDRESS);
+      type                 = cursor.getColumnIndexOrThrow(SmsDatabase.TYPE);
+      dateReceived         = cursor.getColumnIndexOrThrow(SmsDatabase.NORMALIZED_DATE_RECEIVED);
+      dateSent             = cursor.getColumnIndexOrThrow(SmsDatabase.NORMALIZED_DATE_SENT);
+      threadId             = cursor.getColumnIndexOrThrow(SmsDatabase.THREAD_ID);
+      status               = cursor.getColumnIndexOrThrow(SmsDatabase.STATUS);
+      deliveryReceiptCount = cursor.getColumnIndexOrThrow(SmsDatabase.DELIVERY_RECEIPT_COUNT);
+      readReceiptCount     = cursor.getColumnIndexOrThrow(SmsDatabase.READ_RECEIPT_COUNT);
+      mismatchedIdentities = cursor.getColumnIndexOrThrow(SmsDatabase.MISMATCHED_IDENTITIES);
+      expiresIn            = cursor.getColumnIndexOrThrow(SmsDatabase.EXPIRES_IN);
+      expireStarted        = cursor.getColumnIndexOrThrow(SmsDatabase.EXPIRE_STARTED);
+      body                 = cursor.getColumnIndexOrThrow(SmsDatabase.BODY);
+      unidentified         = cursor.getColumnIndexOrThrow(SmsDatabase.UNIDENTIFIED);
+      hasMention           = cursor.getColumnIndexOrThrow(SmsDatabase.HAS_MENTION);
+    }
+  }
+
   public interface InsertListener {
     public void onComplete();
   }
@@ -1,6 +1,8 @@
 package org.thoughtcrime.securesms.database
 
 import android.content.Context
+import android.database.SQLException
+import android.database.sqlite.SQLiteTransactionListener
 import android.net.Uri
 import network.loki.messenger.libsession_util.ConfigBase
 import network.loki.messenger.libsession_util.ConfigBase.Companion.PRIORITY_HIDDEN
@@ -42,6 +44,7 @@ import org.session.libsession.messaging.messages.signal.OutgoingGroupMediaMessag
 import org.session.libsession.messaging.messages.signal.OutgoingMediaMessage
 import org.session.libsession.messaging.messages.signal.OutgoingTextMessage
 import org.session.libsession.messaging.messages.visible.Attachment
+import org.session.libsession.messaging.messages.visible.PendingVisibleMessage
 import org.session.libsession.messaging.messages.visible.Profile
 import org.session.libsession.messaging.messages.visible.Reaction
 import org.session.libsession.messaging.messages.visible.VisibleMessage
@@ -97,6 +100,12 @@ import network.loki.messenger.libsession_util.util.Contact as LibSessionContact
 
 private const val TAG = "Storage"
 
+/**
+ * An incoming message [Storage.persist] inserts along with the others in its batch, where [index] is
+ * its position in the batch.
+ */
+private class PendingInsert<T>(val index: Int, val message: T, val threadId: Long, val serverTimestamp: Long)
+
 open class Storage(
     context: Context,
     helper: SQLCipherOpenHelper,
@@ -284,6 +293,29 @@ open class Storage(
         }
     }
 
+    override fun <T> batchNotifications(threadIds: Collection<Long>, block: () -> T): T {
+        return ConversationNotificationDebouncer.get(context).batch(threadIds, block)
+    }
+
+    override fun <T> inTransaction(block: () -> T): T {
+        val database = databaseHelper.writableDatabase
+        var isRolledBack = false
+        database.beginTransactionWithListener(object : SQLiteTransactionListener {
+            override fun onBegin() {}
+            override fun onCommit() {}
+            override fun onRollback() { isRolledBack = true }
+        })
+        val result = try {
+            block().also { database.setTransactionSuccessful() }
+        } finally {
+            database.endTransaction()
+        }
+        // A nested transaction that ended without succeeding rolls this one back too, even if the
+        // exception that ended it was caught before it got here
+        if (isRolledBack) throw SQLException("Transaction was rolled back by a nested transaction")
+        return result
+    }
+
     override fun updateThread(threadId: Long, unarchive: Boolean) {
         val threadDb = DatabaseComponent.get(context).threadDatabase()
         threadDb.update(threadId, unarchive, false)
@@ -296,94 +328,113 @@ open class Storage(
                          openGroupID: String?,
                          attachments: List<Attachment>,
                          runThreadUpdate: Boolean): Long? {
-        var messageID: Long? = null
-        val senderAddress = fromSerialized(message.sender!!)
-        val isUserSender = (message.sender!! == getUserPublicKey())
-        val isUserBlindedSender = message.threadID?.takeIf { it >= 0 }?.let { getOpenGroup(it)?.publicKey }
-            ?.let { SodiumUtilities.sessionId(getUserPublicKey()!!, message.sender!!, it) } ?: false
-        val group: Optional<SignalServiceGroup> = when {
-            openGroupID != null -> Optional.of(SignalServiceGroup(openGroupID.toByteArray(), SignalServiceGroup.GroupType.PUBLIC_CHAT))
-            groupPublicKey != null -> {
-                val doubleEncoded = GroupUtil.doubleEncodeGroupID(groupPublicKey)
-                Optional.of(SignalServiceGroup(GroupUtil.getDecodedGroupIDAsData(doubleEncoded), SignalServiceGroup.GroupType.SIGNAL))
-            }
-            else -> Optional.absent()
-        }
-        val pointers = attachments.mapNotNull {
-            it.toSignalAttachment()
-        }
-        val targetAddress = if ((isUserSender || isUserBlindedSender) && !message.syncTarget.isNullOrEmpty()) {
-            fromSerialized(message.syncTarget!!)
-        } else if (group.isPresent) {
-            fromSerialized(GroupUtil.getEncodedId(group.get()))
-        } else {
-            senderAddress
-        }
-        val targetRecipient = Recipient.from(context, targetAddress, false)
-        if (!targetRecipient.isGroupRecipient) {
-            if (isUserSender || isUserBlindedSender) {
-                setRecipientApproved(targetRecipient, true)
-            } else {
-                setRecipientApprovedMe(targetRecipient, true)
-            }
-        }
-        if (message.threadID == null && !targetRecipient.isOpenGroupRecipient) {
-            // open group recipients should explicitly create threads
-            message.threadID = getOrCreateThreadIdFor(targetAddress)
-        }
-        val expiryMode = message.expiryMode
-        val expiresInMillis = expiryMode.expiryMillis
-        val expireStartedAt = if (expiryMode is ExpiryMode.AfterSend) message.sentTimestamp!! else 0
-        if (message.isMediaMessage() || attachments.isNotEmpty()) {
-            val quote: Optional<QuoteModel> = if (quotes != null) Optional.of(quotes) else Optional.absent()
-            val linkPreviews: Optional<List<LinkPreview>> = if (linkPreview.isEmpty()) Optional.absent() else Optional.of(linkPreview.mapNotNull { it!! })
-            val mmsDatabase = DatabaseComponent.get(context).mmsDatabase()
-            val insertResult = if (isUserSender || isUserBlindedSender) {
-                val mediaMessage = OutgoingMediaMessage.from(
-                    message,
-                    targetRecipient,
-                    pointers,
-                    quote.orNull(),
-                    linkPreviews.orNull()?.firstOrNull(),
-                    expiresInMillis,
-                    expireStartedAt
-                )
-                mmsDatabase.insertSecureDecryptedMessageOutbox(mediaMessage, message.threadID ?: -1, message.sentTimestamp!!, runThreadUpdate)
-            } else {
-                // It seems like we have replaced SignalServiceAttachment with SessionServiceAttachment
-                val signalServiceAttachments = attachments.mapNotNull {
-                    it.toSignalPointer()
+        val pendingMessage = PendingVisibleMessage(message, quotes, linkPreview, groupPublicKey, openGroupID, attachments)
+        return persist(listOf(pendingMessage), runThreadUpdate).single()
+    }
+
+    override fun persist(messages: List<PendingVisibleMessage>, runThreadUpdate: Boolean): List<Long?> {
+        val mmsDatabase = DatabaseComponent.get(context).mmsDatabase()
+        val smsDatabase = DatabaseComponent.get(context).smsDatabase()
+        val messageIDs = arrayOfNulls<Long>(messages.size)
+        // Incoming messages are inserted together once the others (sent from another of the user's devices) have been
+        val incomingMediaMessages = mutableListOf<PendingInsert<IncomingMediaMessage>>()
+        val incomingTextMessages = mutableListOf<PendingInsert<IncomingTextMessage>>()
+        inTransaction {
+            messages.forEachIndexed { index, (message, quotes, linkPreview, groupPublicKey, openGroupID, attachments) ->
+                val senderAddress = fromSerialized(message.sender!!)
+                val isUserSender = (message.sender!! == getUserPublicKey())
+                val isUserBlindedSender = message.threadID?.takeIf { it >= 0 }?.let { getOpenGroup(it)?.publicKey }
+                    ?.let { SodiumUtilities.sessionId(getUserPublicKey()!!, message.sender!!, it) } ?: false
+                val group: Optional<SignalServiceGroup> = when {
+                    openGroupID != null -> Optional.of(SignalServiceGroup(openGroupID.toByteArray(), SignalServiceGroup.GroupType.PUBLIC_CHAT))
+                    groupPublicKey != null -> {
+                        val doubleEncoded = GroupUtil.doubleEncodeGroupID(groupPublicKey)
+                        Optional.of(SignalServiceGroup(GroupUtil.getDecodedGroupIDAsData(doubleEncoded), SignalServiceGroup.GroupType.SIGNAL))
+                    }
+                    else -> Optional.absent()
+                }
+                val pointers = attachments.mapNotNull {
+                    it.toSignalAttachment()
+                }
+                val targetAddress = if ((isUserSender || isUserBlindedSender) && !message.syncTarget.isNullOrEmpty()) {
+                    fromSerialized(message.syncTarget!!)
+                } else if (group.isPresent) {
+                    fromSerialized(GroupUtil.getEncodedId(group.get()))
+                } else {
+                    senderAddress
+                }
+                val targetRecipient = Recipient.from(context, targetAddress, false)
+                if (!targetRecipient.isGroupRecipient) {
+                    if (isUserSender || isUserBlindedSender) {
+                        setRecipientApproved(targetRecipient, true)
+                    } else {
+                        setRecipientApprovedMe(targetRecipient, true)
+                    }
+                }
+                if (message.threadID == null && !targetRecipient.isOpenGroupRecipient) {
+                    // open group recipients should explicitly create threads
+                    message.threadID = getOrCreateThreadIdFor(targetAddress)
+                }
+                val expiryMode = message.expiryMode
+                val expiresInMillis = expiryMode.expiryMillis
+                val expireStartedAt = if (expiryMode is ExpiryMode.AfterSend) message.sentTimestamp!! else 0
+                if (message.isMediaMessage() || attachments.isNotEmpty()) {
+                    val quote: Optional<QuoteModel> = if (quotes != null) Optional.of(quotes) else Optional.absent()
+                    val linkPreviews: Optional<List<LinkPreview>> = if (linkPreview.isEmpty()) Optional.absent() else Optional.of(linkPreview.mapNotNull { it!! })
+                    if (isUserSender || isUserBlindedSender) {
+                        val mediaMessage = OutgoingMediaMessage.from(
+                            message,
+                            targetRecipient,
+                            pointers,
+                            quote.orNull(),
+                            linkPreviews.orNull()?.firstOrNull(),
+                            expiresInMillis,
+                            expireStartedAt
+                        )
+                        val insertResult = mmsDatabase.insertSecureDecryptedMessageOutbox(mediaMessage, message.threadID ?: -1, message.sentTimestamp!!, runThreadUpdate)
+                        messageIDs[index] = insertResult.orNull()?.messageId
+                    } else {
+                        // It seems like we have replaced SignalServiceAttachment with SessionServiceAttachment
+                        val signalServiceAttachments = attachments.mapNotNull {
+                            it.toSignalPointer()
+                        }
+                        val mediaMessage = IncomingMediaMessage.from(message, senderAddress, expiresInMillis, expireStartedAt, group, signalServiceAttachments, quote, linkPreviews)
+                        incomingMediaMessages += PendingInsert(index, mediaMessage, message.threadID!!, message.receivedTimestamp ?: 0)
+                    }
+                } else {
+                    val isOpenGroupInvitation = (message.openGroupInvitation != null)
+
+                    if (isUserSender || isUserBlindedSender) {
+                        val textMessage = if (isOpenGroupInvitation) OutgoingTextMessage.fromOpenGroupInvitation(message.openGroupInvitation, targetRecipient, message.sentTimestamp, expiresInMillis, expireStartedAt)
+                        else OutgoingTextMessage.from(message, targetRecipient, expiresInMillis, expireStartedAt)
+                        val insertResult = smsDatabase.insertMessageOutbox(message.threadID ?: -1, textMessage, message.sentTimestamp!!, runThreadUpdate)
+                        messageIDs[index] = insertResult.orNull()?.messageId
+                    } else {
+                        val textMessage = if (isOpenGroupInvitation) IncomingTextMessage.fromOpenGroupInvitation(message.openGroupInvitation, senderAddress, message.sentTimestamp, expiresInMillis, expireStartedAt)
+                        else IncomingTextMessage.from(message, senderAddress, group, expiresInMillis, expireStartedAt)
+                        val encrypted = IncomingEncryptedMessage(textMessage, textMessage.messageBody)
+                        incomingTextMessages += PendingInsert(index, encrypted, message.threadID ?: -1, message.receivedTimestamp ?: 0)
+                    }
                 }
-                val mediaMessage = IncomingMediaMessage.from(message, senderAddress, expiresInMillis, expireStartedAt, group, signalServiceAttachments, quote, linkPreviews)
-                mmsDatabase.insertSecureDecryptedMessageInbox(mediaMessage, message.threadID!!, message.receivedTimestamp ?: 0, runThreadUpdate)
-            }
-            if (insertResult.isPresent) {
-                messageID = insertResult.get().messageId
             }
-        } else {
-            val smsDatabase = DatabaseComponent.get(context).smsDatabase()
-            val isOpenGroupInvitation = (message.openGroupInvitation != null)
-
-            val insertResult = if (isUserSender || isUserBlindedSender) {
-                val textMessage = if (isOpenGroupInvitation) OutgoingTextMessage.fromOpenGroupInvitation(message.openGroupInvitation, targetRecipient, message.sentTimestamp, expiresInMillis, expireStartedAt)
-                else OutgoingTextMessage.from(message, targetRecipient, expiresInMillis, expireStartedAt)
-                smsDatabase.insertMessageOutbox(message.threadID ?: -1, textMessage, message.sentTimestamp!!, runThreadUpdate)
-            } else {
-                val textMessage = if (isOpenGroupInvitation) IncomingTextMessage.fromOpenGroupInvitation(message.openGroupInvitation, senderAddress, message.sentTimestamp, expiresInMillis, expireStartedAt)
-                else IncomingTextMessage.from(message, senderAddress, group, expiresInMillis, expireStartedAt)
-                val encrypted = IncomingEncryptedMessage(textMessage, textMessage.messageBody)
-                smsDatabase.insertMessageInbox(encrypted, message.receivedTimestamp ?: 0, runThreadUpdate)
+            incomingMediaMessages.groupBy { it.threadId }.forEach { (threadId, inserts) ->
+                val insertResults = mmsDatabase.insertSecureDecryptedMessagesInbox(inserts.map { it.message }, threadId, inserts.map { it.serverTimestamp }, runThreadUpdate)
+                inserts.zip(insertResults).forEach { (insert, insertResult) -> messageIDs[insert.index] = insertResult.orNull()?.messageId }
             }
-            insertResult.orNull()?.let { result ->
-                messageID = result.messageId
+            if (incomingTextMessages.isNotEmpty()) {
+                val insertResults = smsDatabase.insertMessagesInbox(incomingTextMessages.map { it.message }, incomingTextMessages.map { it.serverTimestamp }, runThreadUpdate)
+                incomingTextMessages.zip(insertResults).forEach { (insert, insertResult) -> messageIDs[insert.index] = insertResult.orNull()?.messageId }
             }
-        }
-        message.serverHash?.let { serverHash ->
-            messageID?.let { id ->
-                DatabaseComponent.get(context).lokiMessageDatabase().setMessageServerHash(id, message.isMediaMessage(), serverHash)
+            messages.forEachIndexed { index, pendingMessage ->
+                val message = pendingMessage.message
+                message.serverHash?.let { serverHash ->
+                    messageIDs[index]?.let { id ->
+                        DatabaseComponent.get(context).lokiMessageDatabase().setMessageServerHash(id, message.isMediaMessage(), serverHash)
+                    }
+                }
             }
         }
-        return messageID
+        return messageIDs.toList()
     }
 
     override fun persistJob(job: Job) {
@@ -26,6 +26,7 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.MergeCursor;
 import android.net.Uri;
+import android.text.TextUtils;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -63,6 +64,7 @@ import org.thoughtcrime.securesms.notifications.MarkReadReceiver;
 import org.thoughtcrime.securesms.util.SessionMetaProtocol;
 
 import java.io.Closeable;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -193,7 +195,7 @@ public class ThreadDatabase extends Database {
 
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.update(TABLE_NAME, contentValues, ID + " = ?", new String[] {threadId + ""});
-    notifyConversationListListeners();
+    notifyConversationListListeners(threadId);
   }
 
   public void updateSnippet(long threadId, String snippet, @Nullable Uri attachment, long date, long type, boolean unarchive) {
@@ -212,7 +214,7 @@ public class ThreadDatabase extends Database {
 
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.update(TABLE_NAME, contentValues, ID + " = ?", new String[] {threadId + ""});
-    notifyConversationListListeners();
+    notifyConversationListListeners(threadId);
   }
 
   private void deleteThread(long threadId) {
@@ -220,7 +222,7 @@ public class ThreadDatabase extends Database {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     int numberRemoved = db.delete(TABLE_NAME, ID_WHERE, new String[] {threadId + ""});
     addressCache.remove(threadId);
-    notifyConversationListListeners();
+    notifyConversationListListeners(threadId);
     if (updateListener != null && numberRemoved > 0 && recipient != null) {
       updateListener.threadDeleted(recipient.getAddress(), threadId);
     }
@@ -239,8 +241,8 @@ public class ThreadDatabase extends Database {
     db.delete(TABLE_NAME, where, null);
     for (long threadId: threadIds) {
       addressCache.remove(threadId);
+      notifyConversationListListeners(threadId);
     }
-    notifyConversationListListeners();
   }
 
   private void deleteAllThreads() {
@@ -324,7 +326,7 @@ public class ThreadDatabase extends Database {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {threadId+""});
 
-    notifyConversationListListeners();
+    notifyConversationListListeners(threadId);
 
     return new LinkedList<MarkedMessageInfo>() {{
       addAll(smsRecords);
@@ -348,7 +350,7 @@ public class ThreadDatabase extends Database {
     final List<MarkedMessageInfo> smsRecords = DatabaseComponent.get(context).smsDatabase().setMessagesRead(threadId);
     final List<MarkedMessageInfo> mmsRecords = DatabaseComponent.get(context).mmsDatabase().setMessagesRead(threadId);
 
-    notifyConversationListListeners();
+    notifyConversationListListeners(threadId);
 
     return new LinkedList<MarkedMessageInfo>() {{
       addAll(smsRecords);
@@ -362,7 +364,7 @@ public class ThreadDatabase extends Database {
 
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {threadId + ""});
-    notifyConversationListListeners();
+    notifyConversationListListeners(threadId);
   }
 
   public void setDate(long threadId, long date) {
@@ -370,7 +372,7 @@ public class ThreadDatabase extends Database {
     contentValues.put(DATE, date);
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     int updated = db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {threadId+""});
-    if (updated > 0) notifyConversationListListeners();
+    if (updated > 0) notifyConversationListListeners(threadId);
   }
 
   public int getDistributionType(long threadId) {
@@ -502,11 +504,23 @@ public class ThreadDatabase extends Database {
   }
 
   public Cursor getApprovedConversationList() {
-    String where  = "((" + HAS_SENT + " = 1 OR " + RecipientDatabase.APPROVED + " = 1 OR "+ GroupDatabase.TABLE_NAME +"."+GROUP_ID+" LIKE '"+CLOSED_GROUP_PREFIX+"%') OR " + GroupDatabase.TABLE_NAME + "." + GROUP_ID + " LIKE '" + OPEN_GROUP_PREFIX + "%') " +
-            "AND " + ARCHIVED + " = 0 ";
+    return getConversationList(getApprovedConversationListWhere());
+  }
+
+  /**
+   * The subset of {@link #getApprovedConversationList()} made up of {@code threadIds}; threads that
+   * no longer belong in that list are left out.
+   */
+  public Cursor getApprovedConversationList(@NonNull Collection<Long> threadIds) {
+    String where = "(" + getApprovedConversationListWhere() + ") AND " + TABLE_NAME + "." + ID + " IN (" + TextUtils.join(",", threadIds) + ")";
     return getConversationList(where);
   }
 
+  private String getApprovedConversationListWhere() {
+    return "((" + HAS_SENT + " = 1 OR " + RecipientDatabase.APPROVED + " = 1 OR "+ GroupDatabase.TABLE_NAME +"."+GROUP_ID+" LIKE '"+CLOSED_GROUP_PREFIX+"%') OR " + GroupDatabase.TABLE_NAME + "." + GROUP_ID + " LIKE '" + OPEN_GROUP_PREFIX + "%') " +
+            "AND " + ARCHIVED + " = 0 ";
+  }
+
   public Cursor getUnapprovedConversationList() {
     String where  = MESSAGE_COUNT + " != 0 AND " + ARCHIVED + " = 0 AND " + HAS_SENT + " = 0 AND " +
             RecipientDatabase.TABLE_NAME + "." + RecipientDatabase.APPROVED + " = 0 AND " +
@@ -572,7 +586,7 @@ public class ThreadDatabase extends Database {
     db.setTransactionSuccessful();
     db.endTransaction();
     notifyConversationListeners(threadId);
-    notifyConversationListListeners();
+    notifyConversationListListeners(threadId);
     return true;
   }
 
@@ -634,7 +648,7 @@ public class ThreadDatabase extends Database {
     DatabaseComponent.get(context).lokiMessageDatabase().deleteThread(threadId);
     deleteThread(threadId);
     notifyConversationListeners(threadId);
-    notifyConversationListListeners();
+    notifyConversationListListeners(threadId);
     SessionMetaProtocol.clearReceivedMessages();
   }
 
@@ -672,7 +686,7 @@ public class ThreadDatabase extends Database {
     databaseHelper.getWritableDatabase().update(TABLE_NAME, contentValues, ID_WHERE,
             new String[] {String.valueOf(threadId)});
 
-    notifyConversationListListeners();
+    notifyConversationListListeners(threadId);
     notifyConversationListeners(threadId);
   }
 
@@ -735,7 +749,7 @@ public class ThreadDatabase extends Database {
                                                 new String[] {String.valueOf(threadId)});
 
     notifyConversationListeners(threadId);
-    notifyConversationListListeners();
+    notifyConversationListListeners(threadId);
   }
 
   public boolean update(long threadId, boolean unarchive, boolean shouldDeleteOnEmpty) {
@@ -746,22 +760,13 @@ public class ThreadDatabase extends Database {
 
     if (count == 0 && shouldDeleteEmptyThread) {
       deleteThread(threadId);
-      notifyConversationListListeners();
+      notifyConversationListListeners(threadId);
       return true;
     }
 
-    MmsSmsDatabase.Reader reader = null;
-
     try {
-      reader = mmsSmsDatabase.readerFor(mmsSmsDatabase.getConversationSnippet(threadId));
-      MessageRecord record = null;
-      if (reader != null) {
-        record = reader.getNext();
-        while (record != null && record.isDeleted()) {
-          record = reader.getNext();
-        }
-      }
-      if (record != null && !record.isDeleted()) {
+      MessageRecord record = mmsSmsDatabase.getLastUndeletedMessage(threadId);
+      if (record != null) {
         updateThread(threadId, count, getFormattedBodyFor(record), getAttachmentUriFor(record),
                      record.getTimestamp(), record.getDeliveryStatus(), record.getDeliveryReceiptCount(),
                      record.getType(), unarchive, record.getExpiresIn(), record.getReadReceiptCount());
@@ -774,9 +779,7 @@ public class ThreadDatabase extends Database {
         return false;
       }
     } finally {
-      if (reader != null)
-        reader.close();
-      notifyConversationListListeners();
+      notifyConversationListListeners(threadId);
       notifyConversationListeners(threadId);
     }
   }
@@ -789,7 +792,7 @@ public class ThreadDatabase extends Database {
             new String[] {String.valueOf(threadId)});
 
     notifyConversationListeners(threadId);
-    notifyConversationListListeners();
+    notifyConversationListListeners(threadId);
   }
 
   public boolean isPinned(long threadId) {
@@ -895,10 +898,13 @@ public class ThreadDatabase extends Database {
 
   public class Reader implements Closeable {
 
-    private final Cursor cursor;
+    private final Cursor  cursor;
+    private final boolean isReadReceiptsEnabled;
+    private       Columns columns;
 
     public Reader(Cursor cursor) {
-      this.cursor = cursor;
+      this.cursor                = cursor;
+      this.isReadReceiptsEnabled = TextSecurePreferences.isReadReceiptsEnabled(context);
     }
 
     public ThreadRecord getNext() {
@@ -909,9 +915,13 @@ public class ThreadDatabase extends Database {
     }
 
     public ThreadRecord getCurrent() {
-      long    threadId         = cursor.getLong(cursor.getColumnIndexOrThrow(ThreadDatabase.ID));
-      int     distributionType = cursor.getInt(cursor.getColumnIndexOrThrow(ThreadDatabase.TYPE));
-      Address address          = Address.fromSerialized(cursor.getString(cursor.getColumnIndexOrThrow(ThreadDatabase.ADDRESS)));
+      if (columns == null) {
+        columns = new Columns(cursor);
+      }
+
+      long    threadId         = cursor.getLong(columns.id);
+      int     distributionType = cursor.getInt(columns.type);
+      Address address          = Address.fromSerialized(cursor.getString(columns.address));
 
       Optional<RecipientSettings> settings;
       Optional<GroupRecord>       groupRecord;
@@ -925,37 +935,34 @@ public class ThreadDatabase extends Database {
       }
 
       Recipient          recipient            = Recipient.from(context, address, settings, groupRecord, true);
-      String             body                 = cursor.getString(cursor.getColumnIndexOrThrow(ThreadDatabase.SNIPPET));
-      long               date                 = cursor.getLong(cursor.getColumnIndexOrThrow(ThreadDatabase.DATE));
-      long               count                = cursor.getLong(cursor.getColumnIndexOrThrow(ThreadDatabase.MESSAGE_COUNT));
-      int                unreadCount          = cursor.getInt(cursor.getColumnIndexOrThrow(ThreadDatabase.UNREAD_COUNT));
-      int                unreadMentionCount   = cursor.getInt(cursor.getColumnIndexOrThrow(ThreadDatabase.UNREAD_MENTION_COUNT));
-      long               type                 = cursor.getLong(cursor.getColumnIndexOrThrow(ThreadDatabase.SNIPPET_TYPE));
-      boolean            archived             = cursor.getInt(cursor.getColumnIndexOrThrow(ThreadDatabase.ARCHIVED)) != 0;
-      int                status               = cursor.getInt(cursor.getColumnIndexOrThrow(ThreadDatabase.STATUS));
-      int                deliveryReceiptCount = cursor.getInt(cursor.getColumnIndexOrThrow(ThreadDatabase.DELIVERY_RECEIPT_COUNT));
-      int                readReceiptCount     = cursor.getInt(cursor.getColumnIndexOrThrow(ThreadDatabase.READ_RECEIPT_COUNT));
-      long               expiresIn            = cursor.getLong(cursor.getColumnIndexOrThrow(ThreadDatabase.EXPIRES_IN));
-      long               lastSeen             = cursor.getLong(cursor.getColumnIndexOrThrow(ThreadDatabase.LAST_SEEN));
-      Uri                snippetUri           = getSnippetUri(cursor);
-      boolean            pinned              = cursor.getInt(cursor.getColumnIndexOrThrow(ThreadDatabase.IS_PINNED)) != 0;
-
-      if (!TextSecurePreferences.isReadReceiptsEnabled(context)) {
-        readReceiptCount = 0;
-      }
+      String             body                 = cursor.getString(columns.snippet);
+      long               date                 = cursor.getLong(columns.date);
+      long               count                = cursor.getLong(columns.messageCount);
+      int                unreadCount          = cursor.getInt(columns.unreadCount);
+      int                unreadMentionCount   = cursor.getInt(columns.unreadMentionCount);
+      long               type                 = cursor.getLong(columns.snippetType);
+      boolean            archived             = cursor.getInt(columns.archived) != 0;
+      int                status               = cursor.getInt(columns.status);
+      int                deliveryReceiptCount = cursor.getInt(columns.deliveryReceiptCount);
+      int                readReceiptCount     = isReadReceiptsEnabled ? cursor.getInt(columns.readReceiptCount) : 0;
+      long               expiresIn            = cursor.getLong(columns.expiresIn);
+      long               lastSeen             = cursor.getLong(columns.lastSeen);
+      Uri                snippetUri           = getSnippetUri(cursor.getString(columns.snippetUri));
+      boolean            pinned               = cursor.getInt(columns.isPinned) != 0;
 
       return new ThreadRecord(body, snippetUri, recipient, date, count,
                               unreadCount, unreadMentionCount, threadId, deliveryReceiptCount, status, type,
                               distributionType, archived, expiresIn, lastSeen, readReceiptCount, pinned);
     }
 
-    private @Nullable Uri getSnippetUri(Cursor cursor) {
-      if (cursor.isNull(cursor.getColumnIndexOrThrow(ThreadDatabase.SNIPPET_URI))) {
+    private @Nullable Uri getSnippetUri(@Nullable String snippetUri) {
+      // Most snippets aren't attachments, so this is only parsed for the few rows that have one
+      if (snippetUri == null) {
         return null;
       }
 
       try {
-        return Uri.parse(cursor.getString(cursor.getColumnIndexOrThrow(ThreadDatabase.SNIPPET_URI)));
+        return Uri.parse(snippetUri);
       } catch (IllegalArgumentException e) {
         Log.w(TAG, e);
         return null;
@@ -969,4 +976,47 @@ public class ThreadDatabase extends Database {
       }
     }
   }
+
+  /**
+   * The indexes of the columns {@link Reader} reads, resolved once per cursor instead of per row.
+   */
+  private static final class Columns {
+    final int id;
+    final int type;
+    final int address;
+    final int snippet;
+    final int date;
+    final int messageCount;
+    final int unreadCount;
+    final int unreadMentionCount;
+    final int snippetType;
+    final int archived;
+    final int status;
+    final int deliveryReceiptCount;
+    final int readReceiptCount;
+    final int expiresIn;
+    final int lastSeen;
+    final int snippetUri;
+    final int isPinned;
+
+    Columns(@NonNull Cursor cursor) {
+      id                   = cursor.getColumnIndexOrThrow(ThreadDatabase.ID);
+      type                 = cursor.getColumnIndexOrThrow(ThreadDatabase.TYPE);
+      address              = cursor.getColumnIndexOrThrow(ThreadDatabase.ADDRESS);
+      snippet              = cursor.getColumnIndexOrThrow(ThreadDatabase.SNIPPET);
+      date                 = cursor.getColumnIndexOrThrow(ThreadDatabase.DATE);
+      messageCount         = cursor.getColumnIndexOrThrow(ThreadDatabase.MESSAGE_COUNT);
+      unreadCount          = cursor.getColumnIndexOrThrow(ThreadDatabase.UNREAD_COUNT);
+      unreadMentionCount   = cursor.getColumnIndexOrThrow(ThreadDatabase.UNREAD_MENTION_COUNT);
+      snippetType          = cursor.getColumnIndexOrThrow(ThreadDatabase.SNIPPET_TYPE);
+      archived             = cursor.getColumnIndexOrThrow(ThreadDatabase.ARCHIVED);
+      status               = cursor.getColumnIndexOrThrow(ThreadDatabase.STATUS);
+      deliveryReceiptCount = cursor.getColumnIndexOrThrow(ThreadDatabase.DELIVERY_RECEIPT_COUNT);
+      readReceiptCount     = cursor.getColumnIndexOrThrow(ThreadDatabase.READ_RECEIPT_COUNT);
+      expiresIn            = cursor.getColumnIndexOrThrow(ThreadDatabase.EXPIRES_IN);
+      lastSeen             = cursor.getColumnIndexOrThrow(ThreadDatabase.LAST_SEEN);
+      snippetUri           = cursor.getColumnIndexOrThrow(ThreadDatabase.SNIPPET_URI);
+      isPinned             = cursor.getColumnIndexOrThrow(ThreadDatabase.IS_PINNED);
+    }
+  }
 }
@@ -93,9 +93,11 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
   private static final int lokiV44                          = 65;
   private static final int lokiV45                          = 66;
   private static final int lokiV46                          = 67;
+  private static final int lokiV47                          = 68;
+  private static final int lokiV48                          = 69;
 
   // Loki - onUpgrade(...) must be updated to use Loki version numbers if Signal makes any database changes
-  private static final int    DATABASE_VERSION         = lokiV46;
+  private static final int    DATABASE_VERSION         = lokiV48;
   private static final int    MIN_DATABASE_VERSION     = lokiV7;
   private static final String CIPHER3_DATABASE_NAME    = "signal.db";
   public static final String  DATABASE_NAME            = "signal_v4.db";
@@ -282,6 +284,7 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
     db.execSQL(SmsDatabase.CREATE_TABLE);
     db.execSQL(MmsDatabase.CREATE_TABLE);
     db.execSQL(AttachmentDatabase.CREATE_TABLE);
+    db.execSQL(AttachmentDatabase.ADD_DATA_HASH_COLUMN);
     db.execSQL(ThreadDatabase.CREATE_TABLE);
     db.execSQL(DraftDatabase.CREATE_TABLE);
     db.execSQL(PushDatabase.CREATE_TABLE);
@@ -633,6 +636,16 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
         db.execSQL(LokiAPIDatabase.CREATE_LAST_LEGACY_MESSAGE_TABLE);
       }
 
+      if (oldVersion < lokiV47) {
+        executeStatements(db, SmsDatabase.CREATE_INDEXS);
+        executeStatements(db, MmsDatabase.CREATE_INDEXS);
+      }
+
+      if (oldVersion < lokiV48) {
+        db.execSQL(AttachmentDatabase.ADD_DATA_HASH_COLUMN);
+        executeStatements(db, AttachmentDatabase.CREATE_INDEXS);
+      }
+
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
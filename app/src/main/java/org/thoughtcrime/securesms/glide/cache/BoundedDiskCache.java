@@ -0,0 +1,284 @@
+package org.thoughtcrime.securesms.glide.cache;
+
+
+import android.content.Context;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.bumptech.glide.load.Key;
+import com.bumptech.glide.load.engine.cache.DiskCache;
+
+import org.session.libsignal.utilities.Hex;
+import org.session.libsignal.utilities.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A disk cache for Glide that's limited to a size, removing the least recently used files first.
+ * The files are written by the encrypted encoders in this package, so the cache only has to keep
+ * track of them. The order is kept across restarts in the files' modification times.
+ */
+public class BoundedDiskCache implements DiskCache {
+
+  private static final String TAG = BoundedDiskCache.class.getSimpleName();
+
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private final File directory;
+  private final long maxSizeBytes;
+
+  /** File names to their sizes, from least to most recently used. */
+  private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  private boolean initialized;
+  private long    sizeBytes;
+  private long    hitCount;
+  private long    missCount;
+  private long    evictionCount;
+
+  public BoundedDiskCache(@NonNull File directory, long maxSizeBytes) {
+    this.directory    = directory;
+    this.maxSizeBytes = maxSizeBytes;
+  }
+
+  @Override
+  public @Nullable File get(@NonNull Key key) {
+    String name = getName(key);
+
+    synchronized (this) {
+      initialize();
+
+      Long size = entries.get(name);
+      File file = new File(directory, name);
+
+      if (size == null) {
+        missCount++;
+        return null;
+      }
+
+      if (!file.exists()) {
+        // The file has been removed from under us, by the system clearing the cache directory
+        entries.remove(name);
+        sizeBytes -= size;
+        missCount++;
+        return null;
+      }
+
+      // Only keeps the order across restarts, so it doesn't matter if the filesystem doesn't allow it
+      //noinspection ResultOfMethodCallIgnored
+      file.setLastModified(System.currentTimeMillis());
+
+      hitCount++;
+      return file;
+    }
+  }
+
+  @Override
+  public void put(@NonNull Key key, @NonNull Writer writer) {
+    String name = getName(key);
+
+    synchronized (this) {
+      initialize();
+      if (entries.containsKey(name)) return;
+    }
+
+    File temp = null;
+
+    try {
+      temp = File.createTempFile(name, TEMP_SUFFIX, directory);
+
+      if (!writer.write(temp)) {
+        return;
+      }
+
+      synchronized (this) {
+        File file = new File(directory, name);
+
+        if (!temp.renameTo(file)) {
+          Log.w(TAG, "Couldn't move " + temp + " into the cache");
+          return;
+        }
+
+        Long previous = entries.put(name, file.length());
+        if (previous != null) sizeBytes -= previous;
+        sizeBytes += file.length();
+
+        trimToSize();
+      }
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    } finally {
+      if (temp != null && temp.exists()) {
+        //noinspection ResultOfMethodCallIgnored
+        temp.delete();
+      }
+    }
+  }
+
+  @Override
+  public synchronized void delete(@NonNull Key key) {
+    initialize();
+    remove(getName(key));
+  }
+
+  @Override
+  public synchronized void clear() {
+    initialize();
+
+    File[] files = directory.listFiles();
+
+    if (files != null) {
+      for (File file : files) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+      }
+    }
+
+    entries.clear();
+    sizeBytes = 0;
+  }
+
+  public synchronized long getSizeBytes() {
+    initialize();
+    return sizeBytes;
+  }
+
+  public long getMaxSizeBytes() {
+    return maxSizeBytes;
+  }
+
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  public synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
+  /**
+   * Reads the files already in the directory, oldest first, so that lookups don't touch the disk.
+   */
+  private void initialize() {
+    if (initialized) return;
+    initialized = true;
+
+    if (!directory.exists() && !directory.mkdirs()) {
+      Log.w(TAG, "Couldn't create " + directory);
+      return;
+    }
+
+    File[] files = directory.listFiles();
+
+    if (files == null) {
+      return;
+    }
+
+    long[] lastModified = new long[files.length];
+    for (int i = 0; i < files.length; i++) lastModified[i] = files[i].lastModified();
+
+    Integer[] order = new Integer[files.length];
+    for (int i = 0; i < order.length; i++) order[i] = i;
+    Arrays.sort(order, (a, b) -> Long.compare(lastModified[a], lastModified[b]));
+
+    for (int index : order) {
+      File file = files[index];
+
+      if (file.getName().endsWith(TEMP_SUFFIX)) {
+        // Left behind by a write that didn't finish
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+      } else {
+        entries.put(file.getName(), file.length());
+        sizeBytes += file.length();
+      }
+    }
+
+    trimToSize();
+  }
+
+  private void trimToSize() {
+    Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+    int                               evicted  = 0;
+
+    while (sizeBytes > maxSizeBytes && iterator.hasNext()) {
+      Map.Entry<String, Long> eldest = iterator.next();
+
+      iterator.remove();
+      sizeBytes -= eldest.getValue();
+      evicted++;
+
+      //noinspection ResultOfMethodCallIgnored
+      new File(directory, eldest.getKey()).delete();
+    }
+
+    if (evicted > 0) {
+      evictionCount += evicted;
+      Log.d(TAG, "Evicted " + evicted + " files, " + sizeBytes + "/" + maxSizeBytes + " bytes used, " +
+                 hitCount + " hits, " + missCount + " misses, " + evictionCount + " evictions");
+    }
+  }
+
+  private void remove(@NonNull String name) {
+    Long size = entries.remove(name);
+
+    if (size != null) {
+      sizeBytes -= size;
+      //noinspection ResultOfMethodCallIgnored
+      new File(directory, name).delete();
+    }
+  }
+
+  private static @NonNull String getName(@NonNull Key key) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      key.updateDiskCacheKey(digest);
+      return Hex.toStringCondensed(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  public static class Factory implements DiskCache.Factory {
+
+    private static final String DIRECTORY_NAME     = "encrypted_image_cache";
+    private static final String OLD_DIRECTORY_NAME = DiskCache.Factory.DEFAULT_DISK_CACHE_DIR;
+
+    private final Context context;
+    private final long    maxSizeBytes;
+
+    public Factory(@NonNull Context context, long maxSizeBytes) {
+      this.context      = context.getApplicationContext();
+      this.maxSizeBytes = maxSizeBytes;
+    }
+
+    @Override
+    public @Nullable DiskCache build() {
+      // Glide builds the cache on its disk thread, so the files from its own cache are removed here
+      deleteRecursively(new File(context.getCacheDir(), OLD_DIRECTORY_NAME));
+
+      return new BoundedDiskCache(new File(context.getCacheDir(), DIRECTORY_NAME), maxSizeBytes);
+    }
+
+    private static void deleteRecursively(@NonNull File file) {
+      File[] children = file.listFiles();
+
+      if (children != null) {
+        for (File child : children) deleteRecursively(child);
+      }
+
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+  }
+}
@@ -24,6 +24,10 @@ class HomeDiffUtil(
         val oldItem = old[oldItemPosition]
         val newItem = new[newItemPosition]
 
+        // Threads that didn't change keep their record (see HomeThreadList), so only the unread
+        // marker, which isn't part of the record, needs checking
+        if (oldItem === newItem) { return configFactory.convoVolatile?.getConversationUnread(newItem) != true }
+
         // return early to save getDisplayBody or expensive calls
         var isSameItem = true
 
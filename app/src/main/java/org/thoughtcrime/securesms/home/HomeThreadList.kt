@@ -0,0 +1,48 @@
+package org.thoughtcrime.securesms.home
+
+import org.thoughtcrime.securesms.database.ThreadDatabase
+import org.thoughtcrime.securesms.database.model.ThreadRecord
+
+/**
+ * The threads shown on the home screen, in the order of [ThreadDatabase.getApprovedConversationList].
+ *
+ * After the initial load only the threads that changed are read back from the database and merged
+ * into the existing list, so an incoming message builds one [ThreadRecord] instead of one per
+ * thread. Unchanged threads keep their existing records, which lets the adapter's diff skip them.
+ */
+class HomeThreadList(
+    private val loadAll: () -> List<ThreadRecord>,
+    private val load: (Set<Long>) -> List<ThreadRecord>
+) {
+    private var threads: List<ThreadRecord>? = null
+
+    /**
+     * Reloads [changedThreadIDs] (or every thread if null, or if nothing has been loaded yet) and
+     * returns the updated list. Changed threads that are missing from what [load] returns are removed.
+     */
+    @Synchronized
+    fun update(changedThreadIDs: Set<Long>?): List<ThreadRecord> {
+        val current = threads
+        val updated = when {
+            current == null || changedThreadIDs == null -> loadAll()
+            changedThreadIDs.isEmpty() -> current
+            else -> merge(current, changedThreadIDs, load(changedThreadIDs))
+        }
+        threads = updated
+        return updated
+    }
+
+    private fun merge(current: List<ThreadRecord>, changedThreadIDs: Set<Long>, changed: List<ThreadRecord>): List<ThreadRecord> {
+        val result = current.filterTo(ArrayList(current.size + changed.size)) { it.threadId !in changedThreadIDs }
+        for (thread in changed) {
+            val index = result.binarySearch { order.compare(it, thread) }
+            result.add(if (index < 0) -(index + 1) else index, thread)
+        }
+        return result
+    }
+
+    companion object {
+        // Matches the ORDER BY of ThreadDatabase's conversation list queries
+        private val order = compareByDescending<ThreadRecord> { it.isPinned }.thenByDescending { it.date }
+    }
+}
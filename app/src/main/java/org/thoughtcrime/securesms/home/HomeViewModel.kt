@@ -1,16 +1,16 @@
 package org.thoughtcrime.securesms.home
 
 import android.content.Context
+import android.database.ContentObserver
+import android.database.Cursor
+import android.net.Uri
 import androidx.lifecycle.LiveData
 import androidx.lifecycle.MutableLiveData
 import androidx.lifecycle.ViewModel
 import androidx.lifecycle.viewModelScope
-import app.cash.copper.flow.observeQuery
 import dagger.hilt.android.lifecycle.HiltViewModel
 import kotlinx.coroutines.*
 import kotlinx.coroutines.channels.Channel
-import kotlinx.coroutines.flow.collect
-import kotlinx.coroutines.flow.onEach
 import org.thoughtcrime.securesms.database.DatabaseContentProviders
 import org.thoughtcrime.securesms.database.ThreadDatabase
 import org.thoughtcrime.securesms.database.model.ThreadRecord
@@ -28,8 +28,16 @@ class HomeViewModel @Inject constructor(private val threadDb: ThreadDatabase): V
     val conversations: LiveData<List<ThreadRecord>> = _conversations
 
     private val listUpdateChannel = Channel<Unit>(capacity = Channel.CONFLATED)
+    // The threads that changed since the list was last updated, guarded by itself
+    private val changedThreadIDs = mutableSetOf<Long>()
+    private var isReloadNeeded = true
 
-    fun tryUpdateChannel() = listUpdateChannel.trySend(Unit)
+    private val threadList = HomeThreadList(
+        loadAll = { threadDb.approvedConversationList.use(::readThreads) },
+        load = { threadIDs -> threadDb.getApprovedConversationList(threadIDs).use(::readThreads) }
+    )
+
+    fun tryUpdateChannel() = requestUpdate(null)
 
     fun getObservable(context: Context): LiveData<List<ThreadRecord>> {
         // If the context has changed (eg. the activity gets recreated) then
@@ -40,26 +48,31 @@ class HomeViewModel @Inject constructor(private val threadDb: ThreadDatabase): V
             updateJobs.forEach { it.cancel() }
             updateJobs.clear()
 
+            val contentResolver = context.contentResolver
+            val observer = object : ContentObserver(null) {
+                override fun onChange(selfChange: Boolean, uri: Uri?) {
+                    val threadID = DatabaseContentProviders.ConversationList.getThreadId(uri)
+                    requestUpdate(if (threadID >= 0) threadID else null)
+                }
+            }
+            // Changes may have been missed while nothing was observing
+            requestUpdate(null)
             updateJobs.add(
-                executor.launch(Dispatchers.IO) {
-                    context.contentResolver
-                        .observeQuery(DatabaseContentProviders.ConversationList.CONTENT_URI)
-                        .onEach { listUpdateChannel.trySend(Unit) }
-                        .collect()
+                executor.launch {
+                    contentResolver.registerContentObserver(DatabaseContentProviders.ConversationList.CONTENT_URI, true, observer)
+                    try {
+                        awaitCancellation()
+                    } finally {
+                        contentResolver.unregisterContentObserver(observer)
+                    }
                 }
             )
             updateJobs.add(
                 executor.launch(Dispatchers.IO) {
                     for (update in listUpdateChannel) {
-                        threadDb.approvedConversationList.use { openCursor ->
-                            val reader = threadDb.readerFor(openCursor)
-                            val threads = mutableListOf<ThreadRecord>()
-                            while (true) {
-                                threads += reader.next ?: break
-                            }
-                            withContext(Dispatchers.Main) {
-                                _conversations.value = threads
-                            }
+                        val threads = threadList.update(takeChangedThreadIDs())
+                        withContext(Dispatchers.Main) {
+                            _conversations.value = threads
                         }
                     }
                 }
@@ -68,4 +81,39 @@ class HomeViewModel @Inject constructor(private val threadDb: ThreadDatabase): V
         return conversations
     }
 
-}
\ No newline at end of file
+    /**
+     * Schedules an update of [threadID]'s entry in the list, or of the whole list if null.
+     */
+    private fun requestUpdate(threadID: Long?) {
+        synchronized(changedThreadIDs) {
+            if (threadID == null) {
+                isReloadNeeded = true
+            } else {
+                changedThreadIDs.add(threadID)
+            }
+        }
+        listUpdateChannel.trySend(Unit)
+    }
+
+    /**
+     * @return the threads that changed since the last call, or null if the whole list needs reloading.
+     */
+    private fun takeChangedThreadIDs(): Set<Long>? {
+        synchronized(changedThreadIDs) {
+            val result = if (isReloadNeeded) null else changedThreadIDs.toSet()
+            isReloadNeeded = false
+            changedThreadIDs.clear()
+            return result
+        }
+    }
+
+    private fun readThreads(cursor: Cursor): List<ThreadRecord> {
+        val reader = threadDb.readerFor(cursor)
+        val threads = mutableListOf<ThreadRecord>()
+        while (true) {
+            threads += reader.next ?: break
+        }
+        return threads
+    }
+
+}
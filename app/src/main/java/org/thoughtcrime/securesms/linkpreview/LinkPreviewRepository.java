@@ -150,7 +150,7 @@ public class LinkPreviewRepository {
 
         byte[]               data      = readFully(bodyStream);
         Bitmap               bitmap    = BitmapFactory.decodeByteArray(data, 0, data.length);
-        Optional<Attachment> thumbnail = bitmapToAttachment(bitmap, Bitmap.CompressFormat.JPEG, MediaTypes.IMAGE_JPEG);
+        Optional<Attachment> thumbnail = bitmapToAttachment(context, bitmap, Bitmap.CompressFormat.JPEG, MediaTypes.IMAGE_JPEG);
 
         if (bitmap != null) bitmap.recycle();
 
@@ -165,7 +165,8 @@ public class LinkPreviewRepository {
     return controller;
   }
 
-  private static Optional<Attachment> bitmapToAttachment(@Nullable Bitmap bitmap,
+  private static Optional<Attachment> bitmapToAttachment(@NonNull Context context,
+                                                         @Nullable Bitmap bitmap,
                                                          @NonNull Bitmap.CompressFormat format,
                                                          @NonNull String contentType)
   {
@@ -178,7 +179,7 @@ public class LinkPreviewRepository {
     bitmap.compress(format, 80, baos);
 
     byte[] bytes = baos.toByteArray();
-    Uri    uri   = BlobProvider.getInstance().forData(bytes).createForSingleSessionInMemory();
+    Uri    uri   = BlobProvider.getInstance().forData(bytes).createForSingleSessionInMemory(context);
 
     return Optional.of(new UriAttachment(uri,
            uri,
@@ -31,6 +31,7 @@ import org.thoughtcrime.securesms.glide.ChunkedImageUrlLoader;
 import org.thoughtcrime.securesms.glide.ContactPhotoLoader;
 import org.thoughtcrime.securesms.glide.OkHttpUrlLoader;
 import org.thoughtcrime.securesms.glide.PlaceholderAvatarLoader;
+import org.thoughtcrime.securesms.glide.cache.BoundedDiskCache;
 import org.thoughtcrime.securesms.glide.cache.EncryptedBitmapCacheDecoder;
 import org.thoughtcrime.securesms.glide.cache.EncryptedBitmapResourceEncoder;
 import org.thoughtcrime.securesms.glide.cache.EncryptedCacheEncoder;
@@ -45,6 +46,8 @@ import java.io.InputStream;
 @GlideModule
 public class SignalGlideModule extends AppGlideModule {
 
+  private static final long DISK_CACHE_SIZE_BYTES = 100 * 1024 * 1024;
+
   @Override
   public boolean isManifestParsingEnabled() {
     return false;
@@ -53,6 +56,7 @@ public class SignalGlideModule extends AppGlideModule {
   @Override
   public void applyOptions(Context context, GlideBuilder builder) {
     builder.setLogLevel(Log.ERROR);
+    builder.setDiskCache(new BoundedDiskCache.Factory(context, DISK_CACHE_SIZE_BYTES));
 //    builder.setDiskCache(new NoopDiskCacheFactory());
   }
 
@@ -109,6 +109,8 @@ public class DefaultMessageNotifier implements MessageNotifier {
   private static final String NOTIFICATION_GROUP        = "messages";
   private static final long   MIN_AUDIBLE_PERIOD_MILLIS = TimeUnit.SECONDS.toMillis(5);
   private static final long   DESKTOP_ACTIVITY_PERIOD   = TimeUnit.MINUTES.toMillis(1);
+  // Notifications only show the most recent few messages, so there's no point loading every unread one
+  private static final int    MAX_NOTIFICATION_MESSAGES = 50;
 
   private volatile static       long               visibleThread                = -1;
   private volatile static       boolean            homeScreenVisible            = false;
@@ -270,7 +272,9 @@ public class DefaultMessageNotifier implements MessageNotifier {
     Cursor pushCursor  = null;
 
     try {
-      telcoCursor = DatabaseComponent.get(context).mmsSmsDatabase().getUnread(); // TODO: add a notification specific lighter query here
+      MmsSmsDatabase mmsSmsDatabase = DatabaseComponent.get(context).mmsSmsDatabase();
+      int            limit          = MAX_NOTIFICATION_MESSAGES;
+      telcoCursor = mmsSmsDatabase.getUnread(limit);
 
       if ((telcoCursor == null || telcoCursor.isAfterLast()) || !TextSecurePreferences.hasSeenWelcomeScreen(context))
       {
@@ -280,8 +284,23 @@ public class DefaultMessageNotifier implements MessageNotifier {
         return;
       }
 
+      int               loadedCount       = telcoCursor.getCount();
       NotificationState notificationState = constructNotificationState(context, telcoCursor);
 
+      // Message requests and messages without a mention in mentions only threads are only left out
+      // here, so load further back until there are enough to show or there's nothing more to load
+      while (notificationState.getNotifications().size() < MAX_NOTIFICATION_MESSAGES && loadedCount >= limit) {
+        telcoCursor.close();
+        limit             *= 4;
+        telcoCursor        = mmsSmsDatabase.getUnread(limit);
+        loadedCount        = telcoCursor.getCount();
+        notificationState  = constructNotificationState(context, telcoCursor);
+      }
+
+      if (loadedCount >= limit) {
+        notificationState.addUnloadedMessages(Math.max(0, mmsSmsDatabase.getUnreadTotalCount() - loadedCount));
+      }
+
       if (signal && (System.currentTimeMillis() - lastAudibleNotification) < MIN_AUDIBLE_PERIOD_MILLIS) {
         signal = false;
       } else if (signal) {
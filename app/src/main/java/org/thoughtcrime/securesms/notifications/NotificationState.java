@@ -46,6 +46,14 @@ public class NotificationState {
     notificationCount++;
   }
 
+  /**
+   * Counts unread messages that weren't loaded, and so have no notification item, towards
+   * {@link #getMessageCount()}.
+   */
+  public void addUnloadedMessages(int count) {
+    notificationCount += count;
+  }
+
   public @Nullable Uri getRingtone(@NonNull Context context) {
     if (!notifications.isEmpty()) {
       Recipient recipient = notifications.getFirst().getRecipient();
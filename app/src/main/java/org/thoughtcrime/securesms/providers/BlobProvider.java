@@ -22,8 +22,6 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -51,9 +49,16 @@ public class BlobProvider {
     addURI(AUTHORITY, PATH, MATCH);
   }};
 
-  private static final BlobProvider INSTANCE = new BlobProvider();
+  // In-memory blobs past this are written to disk instead
+  private static final long MAX_MEMORY_BYTES = Runtime.getRuntime().maxMemory() / 16;
 
-  private final Map<Uri, byte[]> memoryBlobs = new HashMap<>();
+  private static final BlobProvider INSTANCE = new BlobProvider(MAX_MEMORY_BYTES);
+
+  private final MemoryBlobStore<Uri> memoryBlobs;
+
+  private BlobProvider(long maxMemoryBytes) {
+    this.memoryBlobs = new MemoryBlobStore<>(maxMemoryBytes);
+  }
 
 
   public static BlobProvider getInstance() {
@@ -78,18 +83,15 @@ public class BlobProvider {
    * Retrieve a stream for the content with the specified URI.
    * @throws IOException If the stream fails to open or the spec of the URI doesn't match.
    */
-  public synchronized @NonNull InputStream getStream(@NonNull Context context, @NonNull Uri uri) throws IOException {
+  public @NonNull InputStream getStream(@NonNull Context context, @NonNull Uri uri) throws IOException {
     if (isAuthority(uri)) {
       StorageType storageType = StorageType.decode(uri.getPathSegments().get(STORAGE_TYPE_PATH_SEGMENT));
 
       if (storageType.isMemory()) {
-        byte[] data = memoryBlobs.get(uri);
+        InputStream stream = memoryBlobs.get(uri, storageType == StorageType.SINGLE_USE_MEMORY);
 
-        if (data != null) {
-          if (storageType == StorageType.SINGLE_USE_MEMORY) {
-            memoryBlobs.remove(uri);
-          }
-          return new ByteArrayInputStream(data);
+        if (stream != null) {
+          return stream;
         } else {
           throw new IOException("Failed to find in-memory blob for: " + uri);
         }
@@ -108,7 +110,7 @@ public class BlobProvider {
   /**
    * Delete the content with the specified URI.
    */
-  public synchronized void delete(@NonNull Context context, @NonNull Uri uri) {
+  public void delete(@NonNull Context context, @NonNull Uri uri) {
     if (!isAuthority(uri)) {
       Log.d(TAG, "Can't delete. Not the authority for uri: " + uri);
       return;
@@ -136,7 +138,7 @@ public class BlobProvider {
   /**
    * Indicates a new app session has started, allowing old single-session blobs to be deleted.
    */
-  public synchronized void onSessionStart(@NonNull Context context) {
+  public void onSessionStart(@NonNull Context context) {
     File directory = getOrCreateCacheDirectory(context, SINGLE_SESSION_DIRECTORY);
     for (File file : directory.listFiles()) {
       file.delete();
@@ -173,7 +175,7 @@ public class BlobProvider {
   }
 
   @WorkerThread
-  private synchronized @NonNull Uri writeBlobSpecToDisk(@NonNull Context context, @NonNull BlobSpec blobSpec, @Nullable ErrorListener errorListener) throws IOException {
+  private @NonNull Uri writeBlobSpecToDisk(@NonNull Context context, @NonNull BlobSpec blobSpec, @Nullable ErrorListener errorListener) throws IOException {
     AttachmentSecret attachmentSecret = AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret();
     String           directory        = getDirectory(blobSpec.getStorageType());
     File             outputFile       = new File(getOrCreateCacheDirectory(context, directory), buildFileName(blobSpec.id));
@@ -192,9 +194,9 @@ public class BlobProvider {
     return buildUri(blobSpec);
   }
 
-  private synchronized @NonNull Uri writeBlobSpecToMemory(@NonNull BlobSpec blobSpec, @NonNull byte[] data) {
+  private @NonNull Uri writeBlobSpecToMemory(@NonNull Context context, @NonNull BlobSpec blobSpec, @NonNull byte[] data) {
     Uri uri = buildUri(blobSpec);
-    memoryBlobs.put(uri, data);
+    memoryBlobs.put(uri, data, new DiskSpill(context.getApplicationContext()));
     return uri;
   }
 
@@ -297,8 +299,8 @@ public class BlobProvider {
      * Create a blob that is stored in memory and can only be read a single time. After a single
      * read, it will be removed from storage. Useful for when a Uri is needed to read transient data.
      */
-    public Uri createForSingleUseInMemory() {
-      return writeBlobSpecToMemory(buildBlobSpec(StorageType.SINGLE_USE_MEMORY), data);
+    public Uri createForSingleUseInMemory(@NonNull Context context) {
+      return writeBlobSpecToMemory(context, buildBlobSpec(StorageType.SINGLE_USE_MEMORY), data);
     }
 
     /**
@@ -306,8 +308,38 @@ public class BlobProvider {
      * always try to call {@link BlobProvider#delete(Context, Uri)} after you're done with the blob
      * to free up memory.
      */
-    public Uri createForSingleSessionInMemory() {
-      return writeBlobSpecToMemory(buildBlobSpec(StorageType.SINGLE_SESSION_MEMORY), data);
+    public Uri createForSingleSessionInMemory(@NonNull Context context) {
+      return writeBlobSpecToMemory(context, buildBlobSpec(StorageType.SINGLE_SESSION_MEMORY), data);
+    }
+  }
+
+  /**
+   * Writes in-memory blobs that don't fit in memory to the single session directory, encrypted like
+   * the other blobs on disk.
+   */
+  private static class DiskSpill implements MemoryBlobStore.Spill {
+
+    private final Context context;
+
+    private DiskSpill(@NonNull Context context) {
+      this.context = context;
+    }
+
+    @Override
+    public @NonNull File write(@NonNull byte[] data) throws IOException {
+      AttachmentSecret attachmentSecret = AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret();
+      File             file             = new File(getOrCreateCacheDirectory(context, SINGLE_SESSION_DIRECTORY), buildFileName(UUID.randomUUID().toString()));
+
+      try (OutputStream outputStream = ModernEncryptingPartOutputStream.createFor(attachmentSecret, file, true).second) {
+        outputStream.write(data);
+      }
+
+      return file;
+    }
+
+    @Override
+    public @NonNull InputStream read(@NonNull File file) throws IOException {
+      return ModernDecryptingPartInputStream.createFor(AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(), file, 0);
     }
   }
 
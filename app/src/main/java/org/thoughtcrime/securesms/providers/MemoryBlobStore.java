@@ -0,0 +1,122 @@
+package org.thoughtcrime.securesms.providers;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.session.libsignal.utilities.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the in-memory blobs of {@link BlobProvider} without a single lock, keeping at most
+ * {@code maxMemoryBytes} in memory. Blobs that would go over that are written to disk through a
+ * {@link Spill} instead, and read back from there.
+ */
+class MemoryBlobStore<K> {
+
+  private static final String TAG = MemoryBlobStore.class.getSimpleName();
+
+  interface Spill {
+    @NonNull File write(@NonNull byte[] data) throws IOException;
+    @NonNull InputStream read(@NonNull File file) throws IOException;
+  }
+
+  private final ConcurrentHashMap<K, Blob> blobs       = new ConcurrentHashMap<>();
+  private final AtomicLong                 memoryBytes = new AtomicLong();
+  private final long                       maxMemoryBytes;
+
+  MemoryBlobStore(long maxMemoryBytes) {
+    this.maxMemoryBytes = maxMemoryBytes;
+  }
+
+  void put(@NonNull K key, @NonNull byte[] data, @NonNull Spill spill) {
+    Blob blob = null;
+
+    if (!reserve(data.length)) {
+      try {
+        blob = new Blob(null, spill.write(data), spill);
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to write blob to disk, keeping it in memory.", e);
+        memoryBytes.addAndGet(data.length);
+      }
+    }
+
+    if (blob == null) {
+      blob = new Blob(data, null, null);
+    }
+
+    Blob previous = blobs.put(key, blob);
+    if (previous != null) release(previous);
+  }
+
+  /**
+   * @return a stream of the blob, or null if there isn't one for {@code key}. If {@code remove} is
+   *         set, the blob is removed, though the stream can still be read.
+   */
+  @Nullable InputStream get(@NonNull K key, boolean remove) throws IOException {
+    Blob blob = remove ? blobs.remove(key) : blobs.get(key);
+
+    if (blob == null) {
+      return null;
+    }
+
+    if (blob.data != null) {
+      if (remove) release(blob);
+      return new ByteArrayInputStream(blob.data);
+    }
+
+    // An open file can still be read after it's deleted
+    InputStream stream = blob.spill.read(blob.file);
+    if (remove) release(blob);
+    return stream;
+  }
+
+  void remove(@NonNull K key) {
+    Blob blob = blobs.remove(key);
+    if (blob != null) release(blob);
+  }
+
+  long getMemoryBytes() {
+    return memoryBytes.get();
+  }
+
+  private boolean reserve(int length) {
+    while (true) {
+      long current = memoryBytes.get();
+
+      if (current + length > maxMemoryBytes) {
+        return false;
+      }
+
+      if (memoryBytes.compareAndSet(current, current + length)) {
+        return true;
+      }
+    }
+  }
+
+  @SuppressWarnings("ResultOfMethodCallIgnored")
+  private void release(@NonNull Blob blob) {
+    if (blob.data != null) {
+      memoryBytes.addAndGet(-blob.data.length);
+    } else {
+      blob.file.delete();
+    }
+  }
+
+  private static class Blob {
+    private final byte[] data;
+    private final File   file;
+    private final Spill  spill;
+
+    private Blob(@Nullable byte[] data, @Nullable File file, @Nullable Spill spill) {
+      this.data  = data;
+      this.file  = file;
+      this.spill = spill;
+    }
+  }
+}
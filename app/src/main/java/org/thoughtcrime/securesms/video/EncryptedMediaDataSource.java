@@ -9,7 +9,7 @@ import androidx.annotation.Nullable;
 
 import org.thoughtcrime.securesms.crypto.AttachmentSecret;
 import org.thoughtcrime.securesms.crypto.ClassicDecryptingPartInputStream;
-import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
+import org.thoughtcrime.securesms.crypto.ModernDecryptingPartFile;
 import org.session.libsession.utilities.Util;
 
 import java.io.File;
@@ -24,6 +24,8 @@ public class EncryptedMediaDataSource extends MediaDataSource {
   private final byte[]           random;
   private final long             length;
 
+  private @Nullable ModernDecryptingPartFile modernFile;
+
   public EncryptedMediaDataSource(@NonNull AttachmentSecret attachmentSecret, @NonNull File mediaFile, @Nullable byte[] random, long length) {
     this.attachmentSecret = attachmentSecret;
     this.mediaFile        = mediaFile;
@@ -58,12 +60,15 @@ public class EncryptedMediaDataSource extends MediaDataSource {
   private int readAtModern(long position, byte[] bytes, int offset, int length) throws IOException {
     assert(random != null);
 
-    InputStream inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, mediaFile, position);
-    int         returnValue = inputStream.read(bytes, offset, length);
+    // Kept open between reads, as the media player makes a lot of small ones
+    ModernDecryptingPartFile file;
 
-    inputStream.close();
+    synchronized (this) {
+      if (modernFile == null) modernFile = new ModernDecryptingPartFile(attachmentSecret, random, mediaFile);
+      file = modernFile;
+    }
 
-    return returnValue;
+    return file.read(position, bytes, offset, length);
   }
 
   @Override
@@ -72,7 +77,10 @@ public class EncryptedMediaDataSource extends MediaDataSource {
   }
 
   @Override
-  public void close() throws IOException {
-
+  public synchronized void close() throws IOException {
+    if (modernFile != null) {
+      modernFile.close();
+      modernFile = null;
+    }
   }
 }
@@ -8,12 +8,17 @@ import android.net.ConnectivityManager
 import android.net.Network
 import org.session.libsignal.utilities.Log
 
-class NetworkChangeReceiver(private val onNetworkChangedCallback: (Boolean)->Unit) {
+/**
+ * @param ignoreInitialState whether to skip the sticky broadcast delivered on registration, which
+ * only reports the current connectivity rather than a change.
+ */
+class NetworkChangeReceiver(private val onNetworkChangedCallback: (Boolean)->Unit, private val ignoreInitialState: Boolean = false) {
 
     private val networkList: MutableSet<Network> = mutableSetOf()
 
     val broadcastDelegate = object: BroadcastReceiver() {
         override fun onReceive(context: Context, intent: Intent) {
+            if (ignoreInitialState && isInitialStickyBroadcast) { return }
             receiveBroadcast(context, intent)
         }
     }
@@ -0,0 +1,174 @@
+package org.thoughtcrime.securesms.attachments
+
+import android.app.Application
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.io.BufferedInputStream
+import java.io.ByteArrayOutputStream
+import java.io.InputStream
+import java.net.Socket
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.random.Random
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE, application = Application::class)
+class AttachmentServerTest {
+
+    private val data = Random(1).nextBytes(300_000)
+    private val reads = AtomicInteger()
+    @Volatile private var readGate: CountDownLatch? = null
+
+    private val dataSource = object : AttachmentServer.DataSource {
+        override fun read(position: Long, buffer: ByteArray, offset: Int, length: Int): Int {
+            reads.incrementAndGet()
+            readGate?.let { it.countDown(); it.await(10, TimeUnit.SECONDS) }
+            if (position >= data.size) return -1
+            val count = minOf(length.toLong(), data.size - position).toInt()
+            System.arraycopy(data, position.toInt(), buffer, offset, count)
+            return count
+        }
+
+        override fun close() = Unit
+    }
+
+    private val server = AttachmentServer(dataSource, data.size.toLong(), "audio/mpeg").apply { start() }
+    private val uri = server.uri
+
+    @After
+    fun tearDown() {
+        server.stop()
+    }
+
+    private class Response(val status: Int, val headers: Map<String, String>, val body: ByteArray)
+
+    private fun connect() = Socket(uri.host, uri.port).apply { soTimeout = 10_000 }
+
+    private fun Socket.request(range: String? = null, path: String = uri.path!!, extraHeaders: String = ""): Response {
+        val request = "GET $path HTTP/1.1\r\nHost: 127.0.0.1\r\n" +
+            (range?.let { "Range: $it\r\n" } ?: "") + extraHeaders + "\r\n"
+        getOutputStream().apply { write(request.toByteArray()); flush() }
+        return readResponse(input)
+    }
+
+    private val inputs = ConcurrentHashMap<Socket, InputStream>()
+    private val Socket.input get() = inputs.getOrPut(this) { BufferedInputStream(getInputStream()) }
+
+    private fun readLine(input: InputStream): String? {
+        val line = ByteArrayOutputStream()
+        while (true) {
+            val b = input.read()
+            if (b == -1) return if (line.size() == 0) null else line.toString()
+            if (b == '\n'.code) return line.toString().trimEnd('\r')
+            line.write(b)
+        }
+    }
+
+    private fun readResponse(input: InputStream): Response {
+        val status = readLine(input)!!.split(" ")[1].toInt()
+        val headers = generateSequence { readLine(input)?.takeIf { it.isNotEmpty() } }
+            .associate { it.substringBefore(':').lowercase() to it.substringAfter(':').trim() }
+        val body = ByteArray(headers.getValue("content-length").toInt())
+        var read = 0
+        while (read < body.size) read += input.read(body, read, body.size - read).also { check(it > 0) }
+        return Response(status, headers, body)
+    }
+
+    @Test
+    fun `it should serve byte ranges`() {
+        connect().use { socket ->
+            socket.request("bytes=1000-1999").run {
+                assertEquals(206, status)
+                assertEquals("bytes 1000-1999/300000", headers["content-range"])
+                assertArrayEquals(data.copyOfRange(1000, 2000), body)
+            }
+            socket.request("bytes=250000-").run {
+                assertEquals(206, status)
+                assertArrayEquals(data.copyOfRange(250_000, data.size), body)
+            }
+            socket.request("bytes=-500").run {
+                assertEquals("bytes 299500-299999/300000", headers["content-range"])
+                assertArrayEquals(data.copyOfRange(299_500, data.size), body)
+            }
+            socket.request("bytes=299000-400000").run {
+                assertArrayEquals(data.copyOfRange(299_000, data.size), body)
+            }
+            socket.request("bytes=300000-").run {
+                assertEquals(416, status)
+                assertEquals("bytes */300000", headers["content-range"])
+            }
+            socket.request().run {
+                assertEquals(200, status)
+                assertEquals("bytes", headers["accept-ranges"])
+                assertArrayEquals(data, body)
+            }
+        }
+    }
+
+    @Test
+    fun `it should keep a connection open until asked to close it`() {
+        connect().use { socket ->
+            repeat(20) { index ->
+                val start = index * 10_000
+                assertArrayEquals(data.copyOfRange(start, start + 100), socket.request("bytes=$start-${start + 99}").body)
+            }
+            val last = socket.request("bytes=0-9", extraHeaders = "Connection: close\r\n")
+            assertEquals("close", last.headers["connection"])
+            assertNull(readLine(socket.input))
+        }
+    }
+
+    @Test
+    fun `it should serve several connections at once`() {
+        val connections = 3
+        readGate = CountDownLatch(connections)
+        val executor = Executors.newFixedThreadPool(connections)
+
+        // Each read waits until every connection has started reading, so this only passes if they're served in parallel
+        val responses = executor.invokeAll((0 until connections).map { index ->
+            Callable { connect().use { it.request("bytes=${index * 1000}-${index * 1000 + 999}") } }
+        }, 10, TimeUnit.SECONDS)
+
+        responses.forEachIndexed { index, response ->
+            assertArrayEquals(data.copyOfRange(index * 1000, index * 1000 + 1000), response.get().body)
+        }
+        executor.shutdown()
+    }
+
+    @Test
+    fun `it should close the longest idle connection to make room for another`() {
+        // Fill every thread with a connection left waiting for its next request
+        val idle = (0 until 4).map { index ->
+            connect().also {
+                assertEquals(206, it.request("bytes=$index-$index").status)
+                Thread.sleep(20)
+            }
+        }
+
+        connect().use { socket ->
+            assertArrayEquals(data.copyOfRange(0, 100), socket.request("bytes=0-99").body)
+        }
+        assertNull(readLine(idle.first().input))
+        assertEquals(206, idle.last().request("bytes=0-9").status)
+        idle.forEach { it.close() }
+    }
+
+    @Test
+    fun `it should refuse a request without the auth token`() {
+        connect().use { socket ->
+            assertEquals(403, socket.request(path = "/0123456789abcdef").status)
+            assertNull(readLine(socket.input))
+        }
+        assertEquals(0, reads.get())
+    }
+}
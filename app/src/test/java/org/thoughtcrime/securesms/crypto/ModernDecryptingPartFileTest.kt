@@ -0,0 +1,103 @@
+package org.thoughtcrime.securesms.crypto
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import javax.crypto.Cipher
+import javax.crypto.Mac
+import javax.crypto.spec.IvParameterSpec
+import javax.crypto.spec.SecretKeySpec
+import kotlin.random.Random
+
+class ModernDecryptingPartFileTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val random = Random(1)
+    private val attachmentSecret = AttachmentSecret(random.nextBytes(32), random.nextBytes(32), random.nextBytes(32))
+    private val plaintext = random.nextBytes(1_000_000)
+    private val partRandom = random.nextBytes(32)
+
+    // Encrypts as ModernEncryptingPartOutputStream does (which needs android.util.Pair)
+    private val file: File by lazy {
+        val mac = Mac.getInstance("HmacSHA256")
+        mac.init(SecretKeySpec(attachmentSecret.modernKey, "HmacSHA256"))
+        val cipher = Cipher.getInstance("AES/CTR/NoPadding")
+        cipher.init(Cipher.ENCRYPT_MODE, SecretKeySpec(mac.doFinal(partRandom), "AES"), IvParameterSpec(ByteArray(16)))
+        folder.newFile().apply { writeBytes(cipher.doFinal(plaintext)) }
+    }
+
+    // Reads at random positions, with runs of sequential reads as a media player makes
+    private val reads = (0 until 2_000).map { index ->
+        val position = if (index % 4 == 0) random.nextLong(plaintext.size - 20_000L) else -1L
+        position to 1 + random.nextInt(4096)
+    }
+
+    private fun readAll(read: (Long, ByteArray, Int) -> Int): List<ByteArray> {
+        var position = 0L
+        return reads.map { (seekPosition, length) ->
+            if (seekPosition >= 0) { position = seekPosition }
+            val buffer = ByteArray(length)
+            val count = read(position, buffer, length)
+            if (count > 0) { position += count }
+            buffer.copyOf(maxOf(count, 0))
+        }
+    }
+
+    private fun readWithStreams(): List<ByteArray> = readAll { position, buffer, length ->
+        // A CipherInputStream returns at most a few hundred bytes per read, so read until the buffer's full
+        ModernDecryptingPartInputStream.createFor(attachmentSecret, partRandom, file, position).use { inputStream ->
+            var count = 0
+            while (count < length) { count += inputStream.read(buffer, count, length - count) }
+            count
+        }
+    }
+
+    private fun readWithFile(): List<ByteArray> = ModernDecryptingPartFile(attachmentSecret, partRandom, file).use { decryptingFile ->
+        readAll { position, buffer, length -> decryptingFile.read(position, buffer, 0, length) }
+    }
+
+    @Test
+    fun `it should decrypt the same bytes as the input stream`() {
+        val expected = readWithStreams()
+        val actual = readWithFile()
+        assertEquals(expected.size, actual.size)
+        expected.zip(actual).forEach { (expectedRead, actualRead) -> assertArrayEquals(expectedRead, actualRead) }
+    }
+
+    @Test
+    fun `it should decrypt the whole file`() {
+        val result = ByteArray(plaintext.size)
+        ModernDecryptingPartFile(attachmentSecret, partRandom, file).use { decryptingFile ->
+            var position = 0
+            while (position < result.size) {
+                position += decryptingFile.read(position.toLong(), result, position, minOf(1000, result.size - position))
+            }
+            assertEquals(-1, decryptingFile.read(result.size.toLong(), ByteArray(10), 0, 10))
+            assertEquals(-1, decryptingFile.read(result.size + 5L, ByteArray(10), 0, 10))
+        }
+        assertArrayEquals(plaintext, result)
+    }
+
+    @Test
+    fun `it should read faster than opening a stream per read`() {
+        // Warm up both
+        readWithStreams()
+        readWithFile()
+
+        val streamsStart = System.nanoTime()
+        readWithStreams()
+        val streamsNanos = System.nanoTime() - streamsStart
+
+        val fileStart = System.nanoTime()
+        readWithFile()
+        val fileNanos = System.nanoTime() - fileStart
+
+        assertTrue("File took ${fileNanos / 1000}us, streams took ${streamsNanos / 1000}us", fileNanos < streamsNanos)
+    }
+}
@@ -0,0 +1,137 @@
+package org.thoughtcrime.securesms.database
+
+import android.app.Application
+import android.content.ContentValues
+import android.content.Context
+import android.database.sqlite.SQLiteDatabase
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.mockito.kotlin.any
+import org.mockito.kotlin.doReturn
+import org.mockito.kotlin.mock
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import org.session.libsession.messaging.sending_receiving.attachments.AttachmentId
+import org.session.libsession.messaging.sending_receiving.attachments.AttachmentTransferProgress
+import org.thoughtcrime.securesms.ApplicationContext
+import org.thoughtcrime.securesms.crypto.AttachmentSecret
+import org.thoughtcrime.securesms.dependencies.DatabaseComponent
+import java.io.File
+import kotlin.random.Random
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE, application = Application::class)
+class AttachmentDatabaseDeduplicationTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private lateinit var db: SQLiteDatabase
+    private lateinit var partsDirectory: File
+    private lateinit var attachmentDatabase: AttachmentDatabase
+
+    private val mmsId = 7L
+
+    @Before
+    fun setUp() {
+        db = SQLiteDatabase.create(null)
+        db.execSQL(AttachmentDatabase.CREATE_TABLE)
+        db.execSQL(AttachmentDatabase.ADD_DATA_HASH_COLUMN)
+        AttachmentDatabase.CREATE_INDEXS.forEach(db::execSQL)
+
+        partsDirectory = folder.newFolder("parts")
+        val mmsDatabase = mock<MmsDatabase> { on { getThreadIdForMessage(any()) } doReturn 1L }
+        val databaseComponent = mock<DatabaseComponent> { on { mmsDatabase() } doReturn mmsDatabase }
+        val application = mock<ApplicationContext> { on { this.databaseComponent } doReturn databaseComponent }
+        val context = mock<Context> {
+            on { getDir(any(), any()) } doReturn partsDirectory
+            on { contentResolver } doReturn mock()
+            on { applicationContext } doReturn application
+        }
+        ConversationNotificationDebouncer.shared = mock()
+        val attachmentSecret = AttachmentSecret(Random(1).nextBytes(32), Random(2).nextBytes(32), Random(3).nextBytes(32))
+        attachmentDatabase = AttachmentDatabase(context, testOpenHelper(db), attachmentSecret)
+    }
+
+    @After
+    fun tearDown() {
+        db.close()
+    }
+
+    /**
+     * Adds an attachment that's waiting to be downloaded, as a received message does.
+     */
+    private fun insertPlaceholder(uniqueId: Long): AttachmentId {
+        val rowId = db.insert(AttachmentDatabase.TABLE_NAME, null, ContentValues().apply {
+            put(AttachmentDatabase.MMS_ID, mmsId)
+            put(AttachmentDatabase.UNIQUE_ID, uniqueId)
+            put(AttachmentDatabase.CONTENT_TYPE, "application/octet-stream")
+            put(AttachmentDatabase.TRANSFER_STATE, AttachmentTransferProgress.TRANSFER_PROGRESS_PENDING)
+        })
+        return AttachmentId(rowId, uniqueId)
+    }
+
+    private fun download(content: ByteArray): AttachmentId {
+        val attachmentId = insertPlaceholder(System.nanoTime())
+        attachmentDatabase.insertAttachmentsForPlaceholder(mmsId, attachmentId, content.inputStream())
+        return attachmentId
+    }
+
+    private fun dataFiles(): List<File> = partsDirectory.listFiles()!!.toList()
+
+    private fun read(attachmentId: AttachmentId): ByteArray =
+        attachmentDatabase.getAttachmentStream(attachmentId, 0).use { it.readBytes() }
+
+    @Test
+    fun `it should write one file for attachments with the same content`() {
+        val content = Random(4).nextBytes(10_000)
+        val attachmentIds = (1..3).map { download(content) }
+
+        assertEquals(1, dataFiles().size)
+        attachmentIds.forEach { assertArrayEquals(content, read(it)) }
+    }
+
+    @Test
+    fun `it should write separate files for attachments with different content`() {
+        val first = download(Random(4).nextBytes(10_000))
+        val second = download(Random(5).nextBytes(10_000))
+
+        assertEquals(2, dataFiles().size)
+        assertFalse(read(first).contentEquals(read(second)))
+    }
+
+    @Test
+    fun `it should keep a shared file until the last attachment using it is deleted`() {
+        val content = Random(4).nextBytes(10_000)
+        val first = download(content)
+        val second = download(content)
+        val file = dataFiles().single()
+
+        attachmentDatabase.deleteAttachment(first)
+        assertTrue(file.exists())
+        assertArrayEquals(content, read(second))
+
+        attachmentDatabase.deleteAttachment(second)
+        assertFalse(file.exists())
+        assertEquals(0, dataFiles().size)
+    }
+
+    @Test
+    fun `it should write a new file once the shared one has been deleted`() {
+        val content = Random(4).nextBytes(10_000)
+        attachmentDatabase.deleteAttachment(download(content))
+        assertEquals(0, dataFiles().size)
+
+        val attachmentId = download(content)
+        assertEquals(1, dataFiles().size)
+        assertArrayEquals(content, read(attachmentId))
+    }
+}
@@ -0,0 +1,62 @@
+package org.thoughtcrime.securesms.database
+
+import android.app.Application
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import org.session.libsession.messaging.sending_receiving.attachments.DatabaseAttachment
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE, application = Application::class)
+class AttachmentDatabaseJsonTest {
+
+    // An attachment object as built by json_object(...) in the conversation queries
+    private fun attachmentJson(rowId: Long, mmsId: Long = 7): String = """
+        {"_id":$rowId,"unique_id":${rowId * 1000},"mid":$mmsId,"data_size":${rowId * 10},
+        "file_name":"file $rowId.jpg","_data":${if (rowId % 2 == 0L) "\"/parts/part$rowId.mms\"" else "null"},
+        "thumbnail":${if (rowId % 3 == 0L) "\"/parts/thumb$rowId.mms\"" else "null"},"ct":"image/jpeg",
+        "cl":"location $rowId","fast_preflight_id":null,"voice_note":${rowId % 2},"width":${rowId + 1},
+        "height":${rowId + 2},"quote":0,"cd":"key \"$rowId\"","name":null,"pending_push":${rowId % 4},
+        "caption":${if (rowId % 5 == 0L) "\"caption, with [brackets]\"" else "null"},
+        "sticker_pack_id":null,"sticker_pack_key":null,"sticker_id":-1}
+    """.trimIndent()
+
+    private fun DatabaseAttachment.fields() = listOf(
+        attachmentId.rowId, attachmentId.uniqueId, mmsId, size, fileName, hasData(), hasThumbnail(), contentType,
+        location, fastPreflightId, isVoiceNote, width, height, isQuote, key, relay, transferState, caption
+    )
+
+    private fun expectedFields(rowId: Long) = listOf(
+        rowId, rowId * 1000, 7L, rowId * 10, "file $rowId.jpg", rowId % 2 == 0L, rowId % 3 == 0L, "image/jpeg",
+        "location $rowId", null, rowId % 2 == 1L, (rowId + 1).toInt(), (rowId + 2).toInt(), false, "key \"$rowId\"",
+        null, (rowId % 4).toInt(), if (rowId % 5 == 0L) "caption, with [brackets]" else null
+    )
+
+    @Test
+    fun `it should read every attachment in order without duplicates`() {
+        val rowIds = (1L..200L).toList()
+        // The joins in the conversation queries repeat attachments, as a reaction per attachment would
+        val repeated = rowIds.flatMap { rowId -> if (rowId % 7 == 0L) listOf(rowId, rowIds.first(), rowId) else listOf(rowId) }
+        val json = repeated.joinToString(",", "[", "]") { attachmentJson(it) }
+
+        val attachments = AttachmentDatabase.getAttachments(json)
+
+        assertEquals(rowIds.map(::expectedFields), attachments.map { it.fields() })
+    }
+
+    @Test
+    fun `it should read a message without attachments as empty`() {
+        val json = """[{"_id":null,"unique_id":null,"mid":null,"data_size":null,"file_name":null,"_data":null,"thumbnail":null,"ct":null,"caption":null}]"""
+        assertTrue(AttachmentDatabase.getAttachments(json).isEmpty())
+        assertTrue(AttachmentDatabase.getAttachments("[]").isEmpty())
+    }
+
+    @Test
+    fun `it should read a single attachment`() {
+        val attachments = AttachmentDatabase.getAttachments("[${attachmentJson(6)}]")
+        assertEquals(listOf(expectedFields(6)), attachments.map { it.fields() })
+    }
+}
@@ -0,0 +1,188 @@
+package org.thoughtcrime.securesms.database
+
+import android.app.Application
+import android.content.Context
+import android.database.sqlite.SQLiteDatabase
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.MockedStatic
+import org.mockito.Mockito.mockStatic
+import org.mockito.kotlin.any
+import org.mockito.kotlin.clearInvocations
+import org.mockito.kotlin.doAnswer
+import org.mockito.kotlin.doReturn
+import org.mockito.kotlin.eq
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.times
+import org.mockito.kotlin.verify
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import org.session.libsession.messaging.jobs.BatchMessageReceiveJob
+import org.session.libsession.messaging.messages.signal.IncomingEncryptedMessage
+import org.session.libsession.messaging.messages.signal.IncomingTextMessage
+import org.session.libsession.utilities.Address
+import org.session.libsession.utilities.Util
+import org.session.libsession.utilities.recipients.Recipient
+import org.session.libsignal.utilities.guava.Optional
+import org.thoughtcrime.securesms.ApplicationContext
+import org.thoughtcrime.securesms.dependencies.DatabaseComponent
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE, application = Application::class)
+class BatchMessageInsertTest {
+
+    private val senders = listOf("05" + "aa".repeat(32), "05" + "bb".repeat(32))
+    // Creating a thread for this sender fails
+    private val badSender = "05" + "ff".repeat(32)
+
+    private lateinit var db: SQLiteDatabase
+    private lateinit var smsDatabase: SmsDatabase
+    private lateinit var storage: Storage
+    private lateinit var staticMocks: List<MockedStatic<*>>
+
+    // Writes made outside a transaction are committed on their own, the rest when the outermost transaction ends
+    private var commits = 0
+
+    private val threadDatabase = mock<ThreadDatabase> {
+        on { getOrCreateThreadIdFor(any<Recipient>()) } doAnswer { invocation ->
+            val sender = invocation.getArgument<Recipient>(0).address.serialize()
+            if (sender == badSender) throw IllegalStateException("Couldn't create a thread")
+            senders.indexOf(sender) + 1L
+        }
+    }
+
+    @Before
+    fun setUp() {
+        db = SQLiteDatabase.create(null)
+        db.execSQL(SmsDatabase.CREATE_TABLE)
+        db.execSQL(SmsDatabase.CREATE_REACTIONS_UNREAD_COMMAND)
+        db.execSQL(SmsDatabase.CREATE_HAS_MENTION_COMMAND)
+        val helper = testOpenHelper(db) { method ->
+            if (!db.inTransaction() && (method == "insert" || method.startsWith("beginTransaction"))) commits += 1
+        }
+
+        val databaseComponent = mock<DatabaseComponent> { on { threadDatabase() } doReturn threadDatabase }
+        val application = mock<ApplicationContext> { on { this.databaseComponent } doReturn databaseComponent }
+        val context = mock<Context> { on { applicationContext } doReturn application }
+        ConversationNotificationDebouncer.shared = mock()
+        staticMocks = listOf(
+            mockStatic(Recipient::class.java).apply {
+                `when`<Recipient> { Recipient.from(any<Context>(), any<Address>(), any<Boolean>()) }.thenAnswer { invocation ->
+                    mock<Recipient> { on { address } doReturn invocation.getArgument<Address>(1) }
+                }
+            },
+            // Decides whether messages arrive unread, which depends on the device
+            mockStatic(Util::class.java)
+        )
+        smsDatabase = SmsDatabase(context, helper)
+        storage = Storage(context, helper, mock())
+    }
+
+    @After
+    fun tearDown() {
+        staticMocks.forEach { it.close() }
+        db.close()
+    }
+
+    private fun message(sender: String, timestamp: Long): IncomingTextMessage {
+        val textMessage = IncomingTextMessage(Address.fromSerialized(sender), 1, timestamp, "Message $timestamp",
+            Optional.absent(), 0, 0, false, false)
+        return IncomingEncryptedMessage(textMessage, textMessage.messageBody)
+    }
+
+    private fun rows(): List<List<String?>> =
+        db.rawQuery("SELECT * FROM sms ORDER BY _id", null).use { cursor ->
+            generateSequence { if (cursor.moveToNext()) (0 until cursor.columnCount).map(cursor::getString) else null }.toList()
+        }
+
+    private fun sentTimestamps(): List<Long> =
+        db.rawQuery("SELECT date_sent FROM sms ORDER BY _id", null).use { cursor ->
+            generateSequence { if (cursor.moveToNext()) cursor.getLong(0) else null }.toList()
+        }
+
+    /**
+     * Inserts [messages] with [insertAll] in one transaction, as the job does, falling back to inserting
+     * them one at a time. Returns whether they were committed together, and the rows in the table when
+     * the job fell back.
+     */
+    private fun insertInTransaction(messages: List<IncomingTextMessage>, insertAll: (List<IncomingTextMessage>) -> Unit): Pair<Boolean, List<List<String?>>?> {
+        var rowsWhenFallingBack: List<List<String?>>? = null
+        val isCommitted = BatchMessageReceiveJob.handleInTransaction(storage, messages, insertAll) { message ->
+            if (rowsWhenFallingBack == null) { rowsWhenFallingBack = rows() }
+            try {
+                smsDatabase.insertMessageInbox(message, 0, false)
+            } catch (e: IllegalStateException) {
+                // Dropped, as the job does
+            }
+        }
+        return Pair(isCommitted, rowsWhenFallingBack)
+    }
+
+    @Test
+    fun `it should insert a batch in one commit with the same rows as inserting one at a time`() {
+        val messages = (1..100L).map { message(senders[(it % 2).toInt()], it) }
+        messages.forEach { smsDatabase.insertMessageInbox(it, 0, true) }
+        val individually = rows()
+        assertEquals(100, commits)
+        verify(threadDatabase, times(100)).update(any(), eq(true), eq(true))
+
+        db.delete(SmsDatabase.TABLE_NAME, null, null)
+        commits = 0
+        clearInvocations(threadDatabase)
+        val results = smsDatabase.insertMessagesInbox(messages, messages.map { 0L }, true)
+        assertEquals(1, commits)
+        assertEquals(individually, rows())
+        assertEquals((1..100L).toList(), results.map { it.get().messageId })
+        // Each of the two threads is only updated once
+        verify(threadDatabase).update(eq(1L), eq(true), eq(true))
+        verify(threadDatabase).update(eq(2L), eq(true), eq(true))
+        verify(threadDatabase, times(2)).update(any(), any(), any())
+    }
+
+    @Test
+    fun `it should commit a batch through the job in one transaction`() {
+        val messages = (1..10L).map { message(senders[0], it) }
+        val (isCommitted, rowsWhenFallingBack) = insertInTransaction(messages) { batch ->
+            smsDatabase.insertMessagesInbox(batch, batch.map { 0L }, false)
+        }
+        assertTrue(isCommitted)
+        assertNull(rowsWhenFallingBack)
+        assertEquals(1, commits)
+        assertEquals((1..10L).toList(), sentTimestamps())
+    }
+
+    @Test
+    fun `it should roll back a batch with a failing message and insert the others one at a time`() {
+        val messages = (1..10L).map { message(if (it == 5L) badSender else senders[0], it) }
+        val (isCommitted, rowsWhenFallingBack) = insertInTransaction(messages) { batch ->
+            smsDatabase.insertMessagesInbox(batch, batch.map { 0L }, false)
+        }
+        assertFalse(isCommitted)
+        // The messages before the failing one were rolled back rather than committed twice
+        assertEquals(emptyList<List<String?>>(), rowsWhenFallingBack)
+        assertEquals((1..10L).filter { it != 5L }, sentTimestamps())
+    }
+
+    @Test
+    fun `it should fall back when a nested transaction fails even though its exception was caught`() {
+        val messages = (1..10L).map { message(if (it == 5L) badSender else senders[0], it) }
+        val (isCommitted, rowsWhenFallingBack) = insertInTransaction(messages) { batch ->
+            batch.forEach { message ->
+                try {
+                    storage.inTransaction { smsDatabase.insertMessageInbox(message, 0, false) }
+                } catch (e: IllegalStateException) {
+                    // Caught, but the failed nested transaction still rolls back the one it's in
+                }
+            }
+        }
+        assertFalse(isCommitted)
+        assertEquals(emptyList<List<String?>>(), rowsWhenFallingBack)
+        assertEquals((1..10L).filter { it != 5L }, sentTimestamps())
+    }
+}
@@ -0,0 +1,105 @@
+package org.thoughtcrime.securesms.database
+
+import android.app.Application
+import android.net.Uri
+import android.os.Handler
+import android.os.Looper
+import androidx.test.core.app.ApplicationProvider
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.Shadows.shadowOf
+import org.robolectric.annotation.Config
+import org.robolectric.shadows.ShadowLooper
+import java.util.concurrent.TimeUnit
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE, application = Application::class)
+class ConversationNotificationDebouncerTest {
+
+    private val context = ApplicationProvider.getApplicationContext<Application>()
+    private val handler = Handler(Looper.getMainLooper())
+    private var conversationListChangeCount = 0
+    private val debouncer: ConversationNotificationDebouncer by lazy {
+        ConversationNotificationDebouncer(context, handler) {
+            conversationListChangeCount += 1
+            handler.post { debouncer.publishConversationList() }
+        }
+    }
+
+    private fun notifiedUris(): List<Uri> = shadowOf(context.contentResolver).notifiedUris.map { it.uri }
+
+    private fun idle() = ShadowLooper.idleMainLooper(200, TimeUnit.MILLISECONDS)
+
+    @Test
+    fun `it should publish a bulk insert once per thread`() {
+        debouncer.batch(listOf(1L, 2L)) {
+            for (i in 0 until 500) {
+                debouncer.notify(1L + i % 2)
+                debouncer.notifyConversationList(1L + i % 2)
+            }
+            idle()
+            assertEquals(emptyList<Uri>(), notifiedUris())
+            assertEquals(0, conversationListChangeCount)
+        }
+        idle()
+        val expected = listOf(1L, 2L).flatMap {
+            listOf(DatabaseContentProviders.Conversation.getUriForThread(it), DatabaseContentProviders.ConversationList.getUriForThread(it))
+        }
+        assertEquals(expected.toSet(), notifiedUris().toSet())
+        assertEquals(4, notifiedUris().size)
+        assertEquals(1, conversationListChangeCount)
+    }
+
+    @Test
+    fun `it should publish the whole conversation list if any change isn't specific to a thread`() {
+        debouncer.batch(listOf(1L)) {
+            debouncer.notifyConversationList(1)
+            debouncer.notifyConversationList()
+        }
+        idle()
+        assertEquals(listOf(DatabaseContentProviders.ConversationList.CONTENT_URI), notifiedUris())
+    }
+
+    @Test
+    fun `it should coalesce notifications within the window`() {
+        repeat(100) { debouncer.notify(1) }
+        idle()
+        assertEquals(listOf(DatabaseContentProviders.Conversation.getUriForThread(1)), notifiedUris())
+        debouncer.notify(1)
+        idle()
+        assertEquals(2, notifiedUris().size)
+    }
+
+    @Test
+    fun `it should only hold back the threads in open batches`() {
+        debouncer.beginBatch(listOf(1L, 2L))
+        debouncer.beginBatch(listOf(2L, 3L))
+        listOf(1L, 2L, 3L, 4L).forEach {
+            debouncer.notify(it)
+            debouncer.notifyConversationList(it)
+        }
+        idle()
+        assertEquals(
+            setOf(DatabaseContentProviders.Conversation.getUriForThread(4), DatabaseContentProviders.ConversationList.getUriForThread(4)),
+            notifiedUris().toSet()
+        )
+
+        // Thread 2 is still held back by the second batch
+        debouncer.endBatch(listOf(1L, 2L))
+        idle()
+        assertEquals(
+            setOf(1L, 4L).flatMap { listOf(DatabaseContentProviders.Conversation.getUriForThread(it), DatabaseContentProviders.ConversationList.getUriForThread(it)) }.toSet(),
+            notifiedUris().toSet()
+        )
+
+        debouncer.endBatch(listOf(2L, 3L))
+        idle()
+        assertEquals(
+            setOf(1L, 2L, 3L, 4L).flatMap { listOf(DatabaseContentProviders.Conversation.getUriForThread(it), DatabaseContentProviders.ConversationList.getUriForThread(it)) }.toSet(),
+            notifiedUris().toSet()
+        )
+        assertEquals(8, notifiedUris().size)
+    }
+}
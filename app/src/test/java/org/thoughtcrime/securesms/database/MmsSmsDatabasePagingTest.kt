@@ -0,0 +1,302 @@
+package org.thoughtcrime.securesms.database
+
+import android.app.Application
+import android.database.sqlite.SQLiteDatabase
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import kotlin.random.Random
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE, application = Application::class)
+class MmsSmsDatabasePagingTest {
+
+    private lateinit var db: SQLiteDatabase
+
+    @Before
+    fun setUp() {
+        db = SQLiteDatabase.create(null)
+        // Only the columns the indexes and the queries under test touch
+        db.execSQL("CREATE TABLE sms (_id INTEGER PRIMARY KEY, thread_id INTEGER, address TEXT, date INTEGER, date_sent INTEGER, read INTEGER, notified INTEGER, reactions_unread INTEGER DEFAULT 0, type INTEGER)")
+        db.execSQL("CREATE TABLE mms (_id INTEGER PRIMARY KEY, thread_id INTEGER, address TEXT, date INTEGER, date_received INTEGER, read INTEGER, notified INTEGER, reactions_unread INTEGER DEFAULT 0, msg_box INTEGER)")
+        db.execSQL("CREATE TABLE thread (_id INTEGER PRIMARY KEY, recipient_ids TEXT)")
+        db.execSQL("CREATE TABLE recipient_preferences (_id INTEGER PRIMARY KEY, recipient_ids TEXT UNIQUE, mute_until INTEGER DEFAULT 0, notify_type INTEGER DEFAULT 0)")
+        SmsDatabase.CREATE_INDEXS.forEach(db::execSQL)
+        MmsDatabase.CREATE_INDEXS.forEach(db::execSQL)
+    }
+
+    @After
+    fun tearDown() {
+        db.close()
+    }
+
+    /**
+     * Inserts [count] messages into [threadId], alternating between the sms and mms tables, with
+     * sent timestamps 1..count.
+     */
+    private fun seedThread(threadId: Long, count: Int, author: String = "05abc") {
+        db.beginTransaction()
+        try {
+            for (timestamp in 1..count) {
+                if (timestamp % 2 == 0) {
+                    db.execSQL("INSERT INTO sms (thread_id, address, date, date_sent, read, notified, type) VALUES ($threadId, '$author', $timestamp, $timestamp, 1, 1, 0)")
+                } else {
+                    db.execSQL("INSERT INTO mms (thread_id, address, date, date_received, read, notified, msg_box) VALUES ($threadId, '$author', $timestamp, $timestamp, 1, 1, 0)")
+                }
+            }
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+    }
+
+    private fun pageStart(threadId: Long, beforeTime: Long, limit: Int): Long =
+        db.rawQuery(MmsSmsDatabase.buildPageStartQuery(threadId, beforeTime, limit), null).use { cursor ->
+            if (cursor.moveToFirst()) cursor.getLong(0) else -1L
+        }
+
+    private fun queryLong(query: String, vararg args: Long): Long {
+        val queryArgs = (args.toList() + args.toList()).map { it.toString() }.toTypedArray()
+        return db.rawQuery(query, queryArgs).use { cursor -> if (cursor.moveToFirst()) cursor.getLong(0) else 0L }
+    }
+
+    private val now = 1_000_000L
+
+    private fun unreadStart(limit: Int): Long =
+        db.rawQuery(MmsSmsDatabase.UNREAD_START_QUERY, arrayOf(now.toString(), now.toString(), (limit - 1).toString())).use { cursor ->
+            if (cursor.moveToFirst()) cursor.getLong(0) else -1L
+        }
+
+    private fun unreadSmsIds(): List<Long> =
+        db.rawQuery("SELECT _id FROM sms WHERE ${MmsSmsDatabase.UNREAD_SELECTION} ORDER BY _id", arrayOf(now.toString())).use { cursor ->
+            generateSequence { if (cursor.moveToNext()) cursor.getLong(0) else null }.toList()
+        }
+
+    /**
+     * The ids of the messages getUnread(limit) loads once UNREAD_START_QUERY has found [start].
+     */
+    private fun unreadWindowIds(start: Long): List<Long> =
+        db.rawQuery(
+            "SELECT _id FROM (" +
+            "SELECT _id, thread_id, read, notified, reactions_unread, date_sent AS normalized_date_sent FROM sms" +
+            " UNION ALL SELECT _id, thread_id, read, notified, reactions_unread, date AS normalized_date_sent FROM mms" +
+            ") WHERE ${MmsSmsDatabase.UNREAD_WINDOW_SELECTION} ORDER BY _id",
+            arrayOf(now.toString(), start.toString())
+        ).use { cursor ->
+            generateSequence { if (cursor.moveToNext()) cursor.getLong(0) else null }.toList()
+        }
+
+    private fun queryPlan(query: String, argCount: Int = 0): String =
+        db.rawQuery("EXPLAIN QUERY PLAN $query", Array(argCount) { "0" }).use { cursor ->
+            val detailIndex = cursor.getColumnIndexOrThrow("detail")
+            generateSequence { if (cursor.moveToNext()) cursor.getString(detailIndex) else null }.joinToString("\n")
+        }
+
+    @Test
+    fun `it should return the start of the newest page across both tables`() {
+        seedThread(1, 1000)
+        seedThread(2, 1000)
+        assertEquals(901L, pageStart(1, Long.MAX_VALUE, 100))
+        assertEquals(801L, pageStart(1, 901, 100))
+        assertEquals(1L, pageStart(1, 101, 100))
+        assertEquals(-1L, pageStart(1, 100, 100))
+    }
+
+    @Test
+    fun `it should only walk the thread and date sent indexes`() {
+        val plan = queryPlan(MmsSmsDatabase.buildPageStartQuery(1, Long.MAX_VALUE, 100))
+        assertTrue(plan, plan.contains("sms_thread_date_sent_index"))
+        assertTrue(plan, plan.contains("mms_thread_date_sent_index"))
+        assertFalse(plan, plan.contains("SCAN TABLE sms") || plan.contains("SCAN sms"))
+        assertFalse(plan, plan.contains("SCAN TABLE mms") || plan.contains("SCAN mms"))
+    }
+
+    @Test
+    fun `it should check for older and newer messages using the thread and date sent indexes`() {
+        seedThread(1, 1000)
+        seedThread(2, 50000)
+        assertEquals(1L, queryLong(MmsSmsDatabase.HAS_MESSAGE_BEFORE_QUERY, 1, 2))
+        assertEquals(0L, queryLong(MmsSmsDatabase.HAS_MESSAGE_BEFORE_QUERY, 1, 1))
+        assertEquals(1L, queryLong(MmsSmsDatabase.HAS_MESSAGE_AFTER_QUERY, 1, 999))
+        assertEquals(0L, queryLong(MmsSmsDatabase.HAS_MESSAGE_AFTER_QUERY, 1, 1000))
+
+        for (query in listOf(MmsSmsDatabase.HAS_MESSAGE_BEFORE_QUERY, MmsSmsDatabase.HAS_MESSAGE_AFTER_QUERY)) {
+            val plan = queryPlan(query, 4)
+            assertTrue(plan, plan.contains("sms_thread_date_sent_index"))
+            assertTrue(plan, plan.contains("mms_thread_date_sent_index"))
+        }
+    }
+
+    @Test
+    fun `it should count unread messages using an index`() {
+        seedThread(1, 1000)
+        db.execSQL("UPDATE sms SET read = 0, notified = 0 WHERE thread_id = 1 AND date_sent > 990")
+        db.execSQL("UPDATE mms SET read = 0, notified = 0 WHERE thread_id = 1 AND date > 990")
+        assertEquals(10L, queryLong(MmsSmsDatabase.UNREAD_COUNT_QUERY, 1))
+        assertEquals(0L, queryLong(MmsSmsDatabase.UNREAD_COUNT_QUERY, 2))
+
+        val plan = queryPlan(MmsSmsDatabase.UNREAD_COUNT_QUERY, 2)
+        assertTrue(plan, plan.contains("SEARCH TABLE sms USING") || plan.contains("SEARCH sms USING"))
+        assertTrue(plan, plan.contains("SEARCH TABLE mms USING") || plan.contains("SEARCH mms USING"))
+    }
+
+    @Test
+    fun `it should find the position of a message in a large thread by counting`() {
+        seedThread(1, 100000)
+        // Ascending, with and without a loaded window, and descending
+        assertEquals(49999L, queryLong(MmsSmsDatabase.OLDER_MESSAGE_COUNT_QUERY, 1, 0, 50000))
+        assertEquals(9999L, queryLong(MmsSmsDatabase.OLDER_MESSAGE_COUNT_QUERY, 1, 40001, 50000))
+        assertEquals(50000L, queryLong(MmsSmsDatabase.NEWER_MESSAGE_COUNT_QUERY, 1, 50000))
+
+        db.rawQuery(MmsSmsDatabase.MESSAGE_ADDRESSES_QUERY, arrayOf("1", "50000", "1", "50000")).use { cursor ->
+            assertEquals(1, cursor.count)
+            assertTrue(cursor.moveToFirst())
+            assertEquals("05abc", cursor.getString(0))
+        }
+
+        for ((query, argCount) in listOf(MmsSmsDatabase.OLDER_MESSAGE_COUNT_QUERY to 6, MmsSmsDatabase.NEWER_MESSAGE_COUNT_QUERY to 4, MmsSmsDatabase.MESSAGE_ADDRESSES_QUERY to 4)) {
+            val plan = queryPlan(query, argCount)
+            assertTrue(plan, plan.contains("sms_thread_date_sent_index"))
+            assertTrue(plan, plan.contains("mms_thread_date_sent_index"))
+        }
+    }
+
+    @Test
+    fun `it should find where the newest unread messages start without loading them`() {
+        seedThread(1, 100000)
+        db.execSQL("UPDATE sms SET read = 0, notified = 0 WHERE date_sent > 50000")
+        db.execSQL("UPDATE mms SET read = 0, notified = 0 WHERE date > 50000")
+        // A read message with an unread reaction is notified too, but is loaded whatever the window
+        db.execSQL("UPDATE sms SET reactions_unread = 1, notified = 0 WHERE date_sent = 100")
+
+        assertEquals(99951L, unreadStart(50))
+        assertEquals(50001L, unreadStart(50000))
+        assertEquals(-1L, unreadStart(50001))
+        assertEquals(50001L, queryLong(MmsSmsDatabase.UNREAD_TOTAL_COUNT_QUERY, now))
+    }
+
+    @Test
+    fun `it should leave muted and silent threads out of the newest unread messages`() {
+        db.execSQL("INSERT INTO thread (_id, recipient_ids) VALUES (1, '05dm'), (2, 'community'), (3, 'silent'), (4, 'unmuted')")
+        db.execSQL("INSERT INTO recipient_preferences (recipient_ids, mute_until, notify_type) VALUES ('community', ${now + 1}, 0), ('silent', 0, 2), ('unmuted', ${now - 1}, 0)")
+        // An older message in an ordinary thread, then a busy muted community and a thread that never notifies
+        db.execSQL("INSERT INTO sms (_id, thread_id, date_sent, read, notified) VALUES (1, 1, 10, 0, 0)")
+        for (i in 0 until 200) {
+            db.execSQL("INSERT INTO sms (thread_id, date_sent, read, notified) VALUES (2, ${100 + i}, 0, 0)")
+            db.execSQL("INSERT INTO mms (thread_id, date, read, notified) VALUES (3, ${100 + i}, 0, 0)")
+        }
+        // A thread whose mute has run out
+        db.execSQL("INSERT INTO mms (_id, thread_id, date, read, notified) VALUES (1000, 4, 20, 0, 0)")
+
+        assertEquals(10L, unreadStart(2))
+        assertEquals(-1L, unreadStart(50))
+        assertEquals(2L, queryLong(MmsSmsDatabase.UNREAD_TOTAL_COUNT_QUERY, now))
+        assertEquals(listOf(1L), unreadSmsIds())
+    }
+
+    @Test
+    fun `it should find the newest message that isn't deleted`() {
+        seedThread(1, 1000)
+        seedThread(2, 2000)
+        for (deletedCount in listOf(0, 1, 10, 20, 999, 1000)) {
+            db.execSQL("UPDATE sms SET type = CASE WHEN date_sent > ${1000 - deletedCount} THEN ${MmsSmsColumns.Types.BASE_DELETED_TYPE} ELSE 0 END WHERE thread_id = 1")
+            db.execSQL("UPDATE mms SET msg_box = CASE WHEN date > ${1000 - deletedCount} THEN ${MmsSmsColumns.Types.BASE_DELETED_TYPE} ELSE 0 END WHERE thread_id = 1")
+
+            val expected = if (deletedCount == 1000) -1L else 1000L - deletedCount
+            assertEquals("$deletedCount deleted", expected, queryLong(MmsSmsDatabase.LAST_UNDELETED_DATE_SENT_QUERY, 1))
+        }
+        assertEquals(2000L, queryLong(MmsSmsDatabase.LAST_UNDELETED_DATE_SENT_QUERY, 2))
+        assertEquals(-1L, queryLong(MmsSmsDatabase.LAST_UNDELETED_DATE_SENT_QUERY, 3))
+
+        val plan = queryPlan(MmsSmsDatabase.LAST_UNDELETED_DATE_SENT_QUERY, 2)
+        assertTrue(plan, plan.contains("sms_thread_date_sent_index"))
+        assertTrue(plan, plan.contains("mms_thread_date_sent_index"))
+    }
+
+    private class Message(val table: String, val id: Long, val dateSent: Long, val type: Long) {
+        val isDeleted get() = (type and MmsSmsColumns.Types.BASE_TYPE_MASK) == MmsSmsColumns.Types.BASE_DELETED_TYPE
+    }
+
+    /**
+     * The messages in [threadId] newest first, the order the getConversationSnippet cursor had.
+     */
+    private fun messagesNewestFirst(threadId: Long): List<Message> =
+        db.rawQuery(
+            "SELECT 'sms', _id, date_sent AS normalized_date_sent, type FROM sms WHERE thread_id = ?" +
+            " UNION ALL SELECT 'mms', _id, date AS normalized_date_sent, msg_box FROM mms WHERE thread_id = ?" +
+            " ORDER BY normalized_date_sent DESC",
+            arrayOf(threadId.toString(), threadId.toString())
+        ).use { cursor ->
+            generateSequence { if (cursor.moveToNext()) Message(cursor.getString(0), cursor.getLong(1), cursor.getLong(2), cursor.getLong(3)) else null }.toList()
+        }
+
+    @Test
+    fun `it should find the same last undeleted message as the snippet cursor did`() {
+        val random = Random(35)
+        val threadCount = 300L
+        db.beginTransaction()
+        try {
+            for (threadId in 1..threadCount) {
+                repeat(random.nextInt(40)) {
+                    // Few distinct timestamps so that deleted and undeleted messages are often sent at the same time
+                    val dateSent = random.nextLong(30)
+                    val baseType = if (random.nextBoolean()) MmsSmsColumns.Types.BASE_DELETED_TYPE else MmsSmsColumns.Types.BASE_INBOX_TYPE
+                    val type = if (random.nextBoolean()) baseType or MmsSmsColumns.Types.SECURE_MESSAGE_BIT else baseType
+                    if (random.nextBoolean()) {
+                        db.execSQL("INSERT INTO sms (thread_id, date, date_sent, type) VALUES ($threadId, $dateSent, $dateSent, $type)")
+                    } else {
+                        db.execSQL("INSERT INTO mms (thread_id, date, date_received, msg_box) VALUES ($threadId, $dateSent, $dateSent, $type)")
+                    }
+                }
+            }
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+
+        for (threadId in 1..threadCount) {
+            val messages = messagesNewestFirst(threadId)
+            // What ThreadDatabase.update used to take: the first message off the cursor that isn't deleted
+            val expected = messages.firstOrNull { !it.isDeleted }
+            // What getLastUndeletedMessage does: find the sent time, then skip deleted messages sent at that time
+            val dateSent = queryLong(MmsSmsDatabase.LAST_UNDELETED_DATE_SENT_QUERY, threadId)
+            val actual = if (dateSent < 0) null else messages.filter { it.dateSent == dateSent }.firstOrNull { !it.isDeleted }
+
+            assertEquals("Thread $threadId", expected?.dateSent, actual?.dateSent)
+            assertEquals("Thread $threadId", expected == null, dateSent < 0)
+        }
+    }
+
+    @Test
+    fun `it should load a new reaction to an old message whatever the window`() {
+        for (i in 0 until 100) {
+            db.execSQL("INSERT INTO sms (_id, thread_id, date_sent, read, notified) VALUES (${1000 + i}, 1, ${1000 + i}, 0, 0)")
+        }
+        // A message that was read long ago gets a reaction
+        db.execSQL("INSERT INTO mms (_id, thread_id, date, read, notified, reactions_unread) VALUES (1, 1, 10, 1, 0, 1)")
+
+        val start = unreadStart(10)
+        assertEquals(1090L, start)
+        assertEquals(listOf(1L) + (1090L until 1100L), unreadWindowIds(start))
+    }
+
+    @Test
+    fun `it should notify reactions but not messages in threads that never notify`() {
+        db.execSQL("INSERT INTO thread (_id, recipient_ids) VALUES (1, 'silent'), (2, 'muted')")
+        db.execSQL("INSERT INTO recipient_preferences (recipient_ids, mute_until, notify_type) VALUES ('silent', 0, ${RecipientDatabase.NOTIFY_TYPE_NONE}), ('muted', ${now + 1}, 0)")
+        db.execSQL("INSERT INTO sms (_id, thread_id, date_sent, read, notified) VALUES (1, 1, 10, 0, 0)")
+        db.execSQL("INSERT INTO sms (_id, thread_id, date_sent, read, notified, reactions_unread) VALUES (2, 1, 20, 1, 0, 1)")
+        // Muting a thread silences its reactions as well
+        db.execSQL("INSERT INTO sms (_id, thread_id, date_sent, read, notified, reactions_unread) VALUES (3, 2, 30, 1, 0, 1)")
+
+        assertEquals(listOf(2L), unreadSmsIds())
+        assertEquals(1L, queryLong(MmsSmsDatabase.UNREAD_TOTAL_COUNT_QUERY, now))
+        assertEquals(-1L, unreadStart(1))
+    }
+}
@@ -0,0 +1,50 @@
+package org.thoughtcrime.securesms.database
+
+import net.zetetic.database.sqlcipher.SQLiteDatabase
+import org.mockito.Mockito
+import org.mockito.invocation.InvocationOnMock
+import org.mockito.kotlin.doReturn
+import org.mockito.kotlin.mock
+import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper
+import java.lang.reflect.InvocationTargetException
+
+/**
+ * An [SQLCipherOpenHelper] whose databases run every call on [db], a database opened with
+ * Robolectric's SQLite, so that the production database classes can be tested without loading
+ * SQLCipher. Each call goes to the framework method with the same name that takes its arguments,
+ * after [onCall] has been given the method's name.
+ */
+fun testOpenHelper(db: android.database.sqlite.SQLiteDatabase, onCall: (method: String) -> Unit = {}): SQLCipherOpenHelper {
+    val database = Mockito.mock(SQLiteDatabase::class.java) { invocation ->
+        onCall(invocation.method.name)
+        invokeOn(db, invocation)
+    }
+    return mock {
+        on { writableDatabase } doReturn database
+        on { readableDatabase } doReturn database
+    }
+}
+
+private fun invokeOn(db: android.database.sqlite.SQLiteDatabase, invocation: InvocationOnMock): Any? {
+    // Varargs such as rawQuery's bind arguments stay in their array
+    val arguments = invocation.rawArguments
+    val method = db.javaClass.methods.firstOrNull { candidate ->
+        candidate.name == invocation.method.name && candidate.parameterCount == arguments.size &&
+            candidate.parameterTypes.zip(arguments).all { (type, argument) -> accepts(type, argument) }
+    } ?: throw UnsupportedOperationException("Not supported by the test database: ${invocation.method}")
+    val converted = method.parameterTypes.zip(arguments).map { (type, argument) ->
+        if (type == Array<String>::class.java && argument is Array<*>) argument.map { it?.toString() }.toTypedArray() else argument
+    }
+    return try {
+        method.invoke(db, *converted.toTypedArray())
+    } catch (e: InvocationTargetException) {
+        throw e.targetException
+    }
+}
+
+private fun accepts(type: Class<*>, argument: Any?): Boolean = when {
+    argument == null -> !type.isPrimitive
+    type == Array<String>::class.java -> argument is Array<*>
+    type.isPrimitive -> type.kotlin.javaObjectType.isInstance(argument)
+    else -> type.isInstance(argument)
+}
@@ -0,0 +1,119 @@
+package org.thoughtcrime.securesms.glide.cache
+
+import android.app.Application
+import com.bumptech.glide.signature.ObjectKey
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.io.File
+import java.io.IOException
+import kotlin.random.Random
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE, application = Application::class)
+class BoundedDiskCacheTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val secret = Random(1).nextBytes(32)
+    private val coder = EncryptedCoder()
+
+    private fun BoundedDiskCache.put(name: String, data: ByteArray) =
+        put(ObjectKey(name)) { file -> file.writeBytes(data); true }
+
+    private fun BoundedDiskCache.putEncrypted(name: String, data: ByteArray) =
+        put(ObjectKey(name)) { file -> coder.createEncryptedOutputStream(secret, file).use { it.write(data) }; true }
+
+    private fun BoundedDiskCache.has(name: String) = get(ObjectKey(name)) != null
+
+    @Test
+    fun `it should evict the least recently used files first`() {
+        val cache = BoundedDiskCache(folder.root, 3_000)
+        cache.put("a", ByteArray(1_000))
+        cache.put("b", ByteArray(1_000))
+        cache.put("c", ByteArray(1_000))
+        assertNotNull(cache.get(ObjectKey("a")))
+
+        cache.put("d", ByteArray(1_000))
+        assertEquals(listOf(true, false, true, true), listOf("a", "b", "c", "d").map { cache.has(it) })
+
+        cache.put("e", ByteArray(2_000))
+        assertEquals(listOf(false, false, false, true, true), listOf("c", "a", "b", "d", "e").map { cache.has(it) })
+        assertEquals(3_000, cache.sizeBytes)
+        assertEquals(3, cache.evictionCount)
+        assertEquals(2, folder.root.listFiles()!!.size)
+    }
+
+    @Test
+    fun `it should count hits and misses`() {
+        val cache = BoundedDiskCache(folder.root, 3_000)
+        assertFalse(cache.has("a"))
+        cache.put("a", ByteArray(10))
+        assertNotNull(cache.get(ObjectKey("a")))
+        assertNotNull(cache.get(ObjectKey("a")))
+
+        assertEquals(2, cache.hitCount)
+        assertEquals(1, cache.missCount)
+        assertEquals(0, cache.evictionCount)
+    }
+
+    @Test
+    fun `it should keep the order and limit of files from before a restart`() {
+        val before = BoundedDiskCache(folder.root, 3_000)
+        listOf("a", "b", "c").forEachIndexed { index, name ->
+            before.put(name, ByteArray(1_000))
+            before.get(ObjectKey(name))!!.setLastModified(1_000_000L * (index + 1))
+        }
+        File(folder.root, "unfinished.tmp").writeBytes(ByteArray(10))
+
+        val after = BoundedDiskCache(folder.root, 2_000)
+        assertEquals(2_000, after.sizeBytes)
+        assertEquals(listOf(false, true, true), listOf("a", "b", "c").map { after.has(it) })
+        assertFalse(File(folder.root, "unfinished.tmp").exists())
+    }
+
+    @Test
+    fun `it should read back what was encrypted into the cache`() {
+        val cache = BoundedDiskCache(folder.root, 100_000)
+        val data = Random(2).nextBytes(50_000)
+        cache.putEncrypted("image", data)
+
+        val file = cache.get(ObjectKey("image"))!!
+        assertFalse("Cached file should be encrypted", file.readBytes().asList().windowed(32).contains(data.take(32)))
+        assertArrayEquals(data, coder.createEncryptedInputStream(secret, file).use { it.readBytes() })
+
+        val otherSecret = Random(3).nextBytes(32)
+        try {
+            coder.createEncryptedInputStream(otherSecret, file).close()
+            throw AssertionError("Expected the key change to be noticed")
+        } catch (e: IOException) {
+            // Expected
+        }
+    }
+
+    @Test
+    fun `it should drop a failed write and files that are deleted`() {
+        val cache = BoundedDiskCache(folder.root, 100_000)
+        cache.put(ObjectKey("failed")) { file -> file.writeBytes(ByteArray(10)); false }
+        assertNull(cache.get(ObjectKey("failed")))
+        assertEquals(0, folder.root.listFiles()!!.size)
+
+        cache.put("a", ByteArray(10))
+        cache.delete(ObjectKey("a"))
+        assertFalse(cache.has("a"))
+
+        cache.put("b", ByteArray(10))
+        cache.get(ObjectKey("b"))!!.delete()
+        assertFalse(cache.has("b"))
+        assertEquals(0, cache.sizeBytes)
+    }
+}
@@ -0,0 +1,81 @@
+package org.thoughtcrime.securesms.home
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Test
+import org.mockito.Mockito.mock
+import org.session.libsession.utilities.recipients.Recipient
+import org.thoughtcrime.securesms.database.model.ThreadRecord
+
+class HomeThreadListTest {
+
+    private val recipient = mock(Recipient::class.java)
+
+    // Stands in for the thread table: thread ID to (date, pinned). Dates are unique so the order is too
+    private val database = mutableMapOf<Long, Pair<Long, Boolean>>()
+    private var recordsBuilt = 0
+
+    private val threadList = HomeThreadList(
+        loadAll = { query(database.keys) },
+        load = { threadIDs -> query(threadIDs) }
+    )
+
+    private fun query(threadIDs: Set<Long>): List<ThreadRecord> =
+        threadIDs.mapNotNull { threadID -> database[threadID]?.let { (date, pinned) -> thread(threadID, date, pinned) } }
+            .sortedWith(compareByDescending<ThreadRecord> { it.isPinned }.thenByDescending { it.date })
+
+    private fun thread(threadID: Long, date: Long, pinned: Boolean = false): ThreadRecord {
+        recordsBuilt += 1
+        return ThreadRecord("", null, recipient, date, 1, 0, 0, threadID, 0, 0, 0, 0, false, 0, 0, 0, pinned)
+    }
+
+    private fun seed(threadCount: Int) {
+        for (threadID in 1L..threadCount) { database[threadID] = threadID * 2 to false }
+    }
+
+    @Test
+    fun `it should only build the records of the threads that changed`() {
+        seed(5000)
+        assertEquals(5000, threadList.update(null).size)
+        assertEquals(5000, recordsBuilt)
+
+        // A new message in an old thread moves it to the top
+        recordsBuilt = 0
+        database[10] = 20000L to false
+        val threads = threadList.update(setOf(10))
+        assertEquals(1, recordsBuilt)
+        assertEquals(query(database.keys).map { it.threadId }, threads.map { it.threadId })
+        assertEquals(10L, threads.first().threadId)
+    }
+
+    @Test
+    fun `it should keep the records of unchanged threads`() {
+        seed(100)
+        val before = threadList.update(null)
+        val after = threadList.update(setOf(50))
+        assertSame(before.first { it.threadId == 1L }, after.first { it.threadId == 1L })
+    }
+
+    @Test
+    fun `it should insert pinned and new threads and remove deleted ones in order`() {
+        seed(100)
+        threadList.update(null)
+
+        recordsBuilt = 0
+        database[20] = 40L to true
+        database[101] = 55L to false
+        database.remove(30)
+        val threads = threadList.update(setOf(20, 30, 101))
+        assertEquals(2, recordsBuilt)
+        assertEquals(query(database.keys).map { it.threadId }, threads.map { it.threadId })
+    }
+
+    @Test
+    fun `it should reload every thread when the change isn't specific to threads`() {
+        seed(100)
+        threadList.update(null)
+        recordsBuilt = 0
+        threadList.update(null)
+        assertEquals(100, recordsBuilt)
+    }
+}
@@ -0,0 +1,116 @@
+package org.thoughtcrime.securesms.providers
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.InputStream
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.random.Random
+
+class MemoryBlobStoreTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val spillCount = AtomicInteger()
+
+    private val spill = object : MemoryBlobStore.Spill {
+        override fun write(data: ByteArray): File {
+            spillCount.incrementAndGet()
+            return folder.newFile().apply { writeBytes(data) }
+        }
+
+        override fun read(file: File): InputStream = file.inputStream()
+    }
+
+    private fun MemoryBlobStore<String>.read(key: String, remove: Boolean = false): ByteArray? =
+        get(key, remove)?.use { it.readBytes() }
+
+    private fun spilledFiles(): Int = folder.root.listFiles()!!.size
+
+    @Test
+    fun `it should write blobs past the memory cap to disk`() {
+        val store = MemoryBlobStore<String>(1_000)
+        val blobs = (0 until 3).map { Random(it).nextBytes(400) }
+        blobs.forEachIndexed { index, blob -> store.put("blob $index", blob, spill) }
+
+        assertEquals(800, store.getMemoryBytes())
+        assertEquals(1, spillCount.get())
+        blobs.forEachIndexed { index, blob -> assertArrayEquals(blob, store.read("blob $index")) }
+
+        store.remove("blob 2")
+        assertEquals(0, spilledFiles())
+        store.remove("blob 0")
+        assertEquals(400, store.getMemoryBytes())
+
+        // Freed memory is used again
+        store.put("blob 3", blobs[0], spill)
+        assertEquals(800, store.getMemoryBytes())
+        assertEquals(1, spillCount.get())
+    }
+
+    @Test
+    fun `it should remove a single use blob once read`() {
+        val store = MemoryBlobStore<String>(100)
+        val small = Random(1).nextBytes(50)
+        val large = Random(2).nextBytes(500)
+        store.put("small", small, spill)
+        store.put("large", large, spill)
+
+        assertArrayEquals(small, store.read("small", remove = true))
+        assertArrayEquals(large, store.read("large", remove = true))
+        assertNull(store.read("small"))
+        assertNull(store.read("large"))
+        assertEquals(0, store.getMemoryBytes())
+        assertEquals(0, spilledFiles())
+    }
+
+    @Test
+    fun `it should release a blob that's replaced`() {
+        val store = MemoryBlobStore<String>(100)
+        store.put("blob", ByteArray(60), spill)
+        store.put("blob", ByteArray(30), spill)
+        assertEquals(30, store.getMemoryBytes())
+        assertEquals(0, spillCount.get())
+    }
+
+    @Test
+    fun `it should keep blobs correct and memory under the cap from many threads`() {
+        val maxMemoryBytes = 64L * 1024
+        val store = MemoryBlobStore<String>(maxMemoryBytes)
+        val executor = Executors.newFixedThreadPool(8)
+
+        val tasks = (0 until 8).map { thread ->
+            Callable {
+                val random = Random(thread)
+                repeat(500) { index ->
+                    val key = "$thread/$index"
+                    val blob = random.nextBytes(random.nextInt(1, 8 * 1024))
+                    store.put(key, blob, spill)
+                    assertTrue(store.getMemoryBytes() <= maxMemoryBytes)
+                    assertArrayEquals(blob, store.read(key))
+                    if (index % 2 == 0) {
+                        assertArrayEquals(blob, store.read(key, remove = true))
+                    }
+                }
+                repeat(500) { index -> store.remove("$thread/$index") }
+            }
+        }
+
+        executor.invokeAll(tasks).forEach { it.get() }
+        executor.shutdown()
+        executor.awaitTermination(10, TimeUnit.SECONDS)
+
+        assertTrue("Expected some blobs to spill", spillCount.get() > 0)
+        assertEquals(0, store.getMemoryBytes())
+        assertEquals(0, spilledFiles())
+    }
+}
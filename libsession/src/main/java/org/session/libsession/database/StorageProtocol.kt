@@ -15,6 +15,7 @@ import org.session.libsession.messaging.messages.Message
 import org.session.libsession.messaging.messages.control.ConfigurationMessage
 import org.session.libsession.messaging.messages.control.MessageRequestResponse
 import org.session.libsession.messaging.messages.visible.Attachment
+import org.session.libsession.messaging.messages.visible.PendingVisibleMessage
 import org.session.libsession.messaging.messages.visible.Profile
 import org.session.libsession.messaging.messages.visible.Reaction
 import org.session.libsession.messaging.messages.visible.VisibleMessage
@@ -46,6 +47,17 @@ interface StorageProtocol {
     fun setBlocksCommunityMessageRequests(recipient: Recipient, blocksMessageRequests: Boolean)
     fun setUserProfilePicture(newProfilePicture: String?, newProfileKey: ByteArray?)
     fun clearUserPic()
+    /**
+     * Runs [block], holding back the change notifications for [threadIds] until it's done so
+     * observers of those threads reload once rather than once per change.
+     */
+    fun <T> batchNotifications(threadIds: Collection<Long>, block: () -> T): T
+    /**
+     * Runs [block] in a single database transaction, so the writes it makes are committed together
+     * (transactions opened inside it are nested rather than committed separately). The transaction is
+     * rolled back if [block] throws, and throws if a nested transaction that failed rolled it back.
+     */
+    fun <T> inTransaction(block: () -> T): T
     // Signal
     fun getOrGenerateRegistrationID(): Int
 
@@ -196,6 +208,12 @@ interface StorageProtocol {
      * Returns the ID of the `TSIncomingMessage` that was constructed.
      */
     fun persist(message: VisibleMessage, quotes: QuoteModel?, linkPreview: List<LinkPreview?>, groupPublicKey: String?, openGroupID: String?, attachments: List<Attachment>, runThreadUpdate: Boolean): Long?
+    /**
+     * Persists [messages] as [persist] would, but in one transaction, updating and notifying each of
+     * their threads once rather than once per message. Returns the ID of each message, or null if it
+     * wasn't persisted.
+     */
+    fun persist(messages: List<PendingVisibleMessage>, runThreadUpdate: Boolean): List<Long?>
     fun markConversationAsRead(threadId: Long, lastSeenTime: Long, force: Boolean = false)
     fun getLastSeen(threadId: Long): Long
     fun updateThread(threadId: Long, unarchive: Boolean)
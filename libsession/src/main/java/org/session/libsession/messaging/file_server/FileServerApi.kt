@@ -10,6 +10,7 @@ import org.session.libsession.snode.OnionRequestAPI
 import org.session.libsignal.utilities.HTTP
 import org.session.libsignal.utilities.JsonUtil
 import org.session.libsignal.utilities.Log
+import java.io.OutputStream
 
 object FileServerApi {
 
@@ -102,4 +103,24 @@ object FileServerApi {
         val request = Request(verb = HTTP.Verb.GET, endpoint = "file/$file")
         return send(request)
     }
+
+    /**
+     * Downloads the bytes of [file] in [range] (an inclusive range, as in an HTTP Range header). Servers
+     * that don't support ranges respond with the whole file.
+     */
+    fun download(file: String, range: LongRange): Promise<ByteArray, Exception> {
+        val request = Request(
+            verb = HTTP.Verb.GET,
+            endpoint = "file/$file",
+            headers = mapOf("Range" to "bytes=${range.first}-${range.last}")
+        )
+        return send(request)
+    }
+
+    /**
+     * Downloads [file] and writes it to [outputStream] on the thread that received it.
+     */
+    fun download(file: String, outputStream: OutputStream): Promise<Unit, Exception> {
+        return download(file).map { outputStream.write(it) }
+    }
 }
\ No newline at end of file
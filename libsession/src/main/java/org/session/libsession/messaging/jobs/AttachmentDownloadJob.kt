@@ -12,11 +12,15 @@ import org.session.libsession.utilities.DecodedAudio
 import org.session.libsession.utilities.DownloadUtilities
 import org.session.libsession.utilities.InputStreamMediaDataSource
 import org.session.libsignal.streams.AttachmentCipherInputStream
+import org.session.libsignal.streams.AttachmentCipherOutputStream
+import org.session.libsignal.streams.PaddingInputStream
 import org.session.libsignal.utilities.Base64
 import org.session.libsignal.utilities.Log
 import java.io.File
 import java.io.FileInputStream
 import java.io.InputStream
+import java.util.Collections
+import java.util.concurrent.ConcurrentHashMap
 
 class AttachmentDownloadJob(val attachmentID: Long, val databaseMessageID: Long) : Job {
     override var delegate: JobDelegate? = null
@@ -37,6 +41,9 @@ class AttachmentDownloadJob(val attachmentID: Long, val databaseMessageID: Long)
     companion object {
         const val KEY: String = "AttachmentDownloadJob"
 
+        // IDs of the attachments being downloaded, each of which has a single partial download file
+        private val activeDownloads: MutableSet<Long> = Collections.newSetFromMap(ConcurrentHashMap())
+
         // Keys used for database storage
         private val ATTACHMENT_ID_KEY = "attachment_id"
         private val TS_INCOMING_MESSAGE_ID_KEY = "tsIncoming_message_id"
@@ -108,6 +115,8 @@ class AttachmentDownloadJob(val attachmentID: Long, val databaseMessageID: Long)
         }
 
         var tempFile: File? = null
+        var keepTempFile = false
+        var isDownloading = false
         try {
             val attachment = messageDataProvider.getDatabaseAttachment(attachmentID)
                 ?: return handleFailure(Error.NoAttachment, null)
@@ -115,13 +124,27 @@ class AttachmentDownloadJob(val attachmentID: Long, val databaseMessageID: Long)
                 handleFailure(Error.DuplicateData, attachment.attachmentId)
                 return
             }
+            // The same attachment can be queued more than once, and two jobs would append to the same partial file
+            isDownloading = activeDownloads.add(attachmentID)
+            if (!isDownloading) {
+                Log.d("AttachmentDownloadJob", "Attachment $attachmentID is already being downloaded")
+                handleSuccess(dispatcherName)
+                return
+            }
             messageDataProvider.setAttachmentState(AttachmentState.STARTED, attachment.attachmentId, this.databaseMessageID)
-            tempFile = createTempFile()
             val openGroup = storage.getOpenGroup(threadID)
             if (openGroup == null) {
                 Log.d("AttachmentDownloadJob", "downloading normal attachment")
-                DownloadUtilities.downloadFile(tempFile, attachment.url)
+                // Kept between attempts so that a retry can continue where the last one stopped
+                tempFile = getPartialDownloadFile()
+                try {
+                    DownloadUtilities.downloadFile(tempFile, attachment.url, getCiphertextLength(attachment))
+                } catch (e: Exception) {
+                    keepTempFile = failureCount + 1 < maxFailureCount
+                    throw e
+                }
             } else {
+                tempFile = createTempFile()
                 Log.d("AttachmentDownloadJob", "downloading open group attachment")
                 val url = HttpUrl.parse(attachment.url)!!
                 val fileID = url.pathSegments().last()
@@ -135,12 +158,14 @@ class AttachmentDownloadJob(val attachmentID: Long, val databaseMessageID: Long)
             Log.d("AttachmentDownloadJob", "inserting attachment")
             messageDataProvider.insertAttachment(databaseMessageID, attachment.attachmentId, inputStream)
             if (attachment.contentType.startsWith("audio/")) {
-                // process the duration
+                // process the duration and waveform
                     try {
                         InputStreamMediaDataSource(getInputStream(tempFile, attachment)).use { mediaDataSource ->
-                            val durationMs = (DecodedAudio.create(mediaDataSource).totalDuration / 1000.0).toLong()
-                            messageDataProvider.updateAudioAttachmentDuration(
+                            val waveform = DecodedAudio.extractWaveform(mediaDataSource, DecodedAudio.WAVEFORM_FRAMES)
+                            val durationMs = (waveform.duration / 1000.0).toLong()
+                            messageDataProvider.updateAudioAttachmentExtras(
                                 attachment.attachmentId,
+                                waveform.values,
                                 durationMs,
                                 threadID
                             )
@@ -155,8 +180,10 @@ class AttachmentDownloadJob(val attachmentID: Long, val databaseMessageID: Long)
             handleSuccess(dispatcherName)
         } catch (e: Exception) {
             Log.e("AttachmentDownloadJob", "Error processing attachment download", e)
-            tempFile?.delete()
+            if (!keepTempFile) { tempFile?.delete() }
             return handleFailure(e,null)
+        } finally {
+            if (isDownloading) { activeDownloads.remove(attachmentID) }
         }
     }
 
@@ -171,6 +198,14 @@ class AttachmentDownloadJob(val attachmentID: Long, val databaseMessageID: Long)
         }
     }
 
+    /**
+     * The length of the attachment as uploaded (padded and encrypted), or 0 if it isn't known.
+     */
+    private fun getCiphertextLength(attachment: DatabaseAttachment): Long {
+        if (attachment.size <= 0 || attachment.key.isNullOrEmpty()) { return 0 }
+        return AttachmentCipherOutputStream.getCiphertextLength(PaddingInputStream.getPaddedSize(attachment.size))
+    }
+
     private fun handleSuccess(dispatcherName: String) {
         Log.w("AttachmentDownloadJob", "Attachment downloaded successfully.")
         delegate?.handleJobSucceeded(this, dispatcherName)
@@ -184,6 +219,10 @@ class AttachmentDownloadJob(val attachmentID: Long, val databaseMessageID: Long)
         delegate?.handleJobFailed(this, dispatcherName, e)
     }
 
+    private fun getPartialDownloadFile(): File {
+        return File(MessagingModuleConfiguration.shared.context.cacheDir, "push-attachment-$attachmentID.part")
+    }
+
     private fun createTempFile(): File {
         val file = File.createTempFile("push-attachment", "tmp", MessagingModuleConfiguration.shared.context.cacheDir)
         file.deleteOnExit()
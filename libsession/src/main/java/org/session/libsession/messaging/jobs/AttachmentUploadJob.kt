@@ -4,7 +4,6 @@ import com.esotericsoftware.kryo.Kryo
 import com.esotericsoftware.kryo.io.Input
 import com.esotericsoftware.kryo.io.Output
 import nl.komponents.kovenant.Promise
-import okio.Buffer
 import org.session.libsession.messaging.MessagingModuleConfiguration
 import org.session.libsession.messaging.file_server.FileServerApi
 import org.session.libsession.messaging.messages.Destination
@@ -15,6 +14,7 @@ import org.session.libsession.messaging.utilities.Data
 import org.session.libsession.utilities.DecodedAudio
 import org.session.libsession.utilities.InputStreamMediaDataSource
 import org.session.libsession.utilities.UploadResult
+import org.session.libsession.utilities.readBytes
 import org.session.libsignal.messages.SignalServiceAttachmentStream
 import org.session.libsignal.streams.AttachmentCipherOutputStream
 import org.session.libsignal.streams.AttachmentCipherOutputStreamFactory
@@ -92,15 +92,13 @@ class AttachmentUploadJob(val attachmentID: Long, val threadID: String, val mess
         // encrypts as it writes data.
         val inputStream = if (encrypt) PaddingInputStream(attachment.inputStream, rawLength) else attachment.inputStream
         val outputStreamFactory = if (encrypt) AttachmentCipherOutputStreamFactory(key) else PlaintextOutputStreamFactory()
-        // Create a digesting request body but immediately read it out to a buffer. Doing this makes
+        // Create a digesting request body but immediately read it out to an array. Doing this makes
         // it easier to deal with inputStream and outputStreamFactory.
         val pad = PushAttachmentData(attachment.contentType, inputStream, length, outputStreamFactory, attachment.listener)
         val contentType = "application/octet-stream"
         val drb = DigestingRequestBody(pad.data, pad.outputStreamFactory, contentType, pad.dataSize, pad.listener)
         Log.d("Loki", "File size: ${length.toDouble() / 1000} kb.")
-        val b = Buffer()
-        drb.writeTo(b)
-        val data = b.readByteArray()
+        val data = drb.readBytes()
         // Upload the data
         val id = upload(data).get()
         val digest = drb.transmittedDigest
@@ -114,13 +112,14 @@ class AttachmentUploadJob(val attachmentID: Long, val threadID: String, val mess
         val messageDataProvider = MessagingModuleConfiguration.shared.messageDataProvider
         messageDataProvider.handleSuccessfulAttachmentUpload(attachmentID, attachment, attachmentKey, uploadResult)
         if (attachment.contentType.startsWith("audio/")) {
-            // process the duration
+            // process the duration and waveform
             try {
                 val inputStream = messageDataProvider.getAttachmentStream(attachmentID)!!.inputStream!!
                 InputStreamMediaDataSource(inputStream).use { mediaDataSource ->
-                    val durationMs = (DecodedAudio.create(mediaDataSource).totalDuration / 1000.0).toLong()
+                    val waveform = DecodedAudio.extractWaveform(mediaDataSource, DecodedAudio.WAVEFORM_FRAMES)
+                    val durationMs = (waveform.duration / 1000.0).toLong()
                     messageDataProvider.getDatabaseAttachment(attachmentID)?.attachmentId?.let { attachmentId ->
-                        messageDataProvider.updateAudioAttachmentDuration(attachmentId, durationMs, threadID.toLong())
+                        messageDataProvider.updateAudioAttachmentExtras(attachmentId, waveform.values, durationMs, threadID.toLong())
                     }
                 }
             } catch (e: Exception) {
@@ -7,6 +7,7 @@ import kotlinx.coroutines.awaitAll
 import kotlinx.coroutines.runBlocking
 import nl.komponents.kovenant.Promise
 import nl.komponents.kovenant.task
+import org.session.libsession.database.StorageProtocol
 import org.session.libsession.messaging.MessagingModuleConfiguration
 import org.session.libsession.messaging.messages.Message
 import org.session.libsession.messaging.messages.control.CallMessage
@@ -27,10 +28,12 @@ import org.session.libsession.messaging.sending_receiving.handle
 import org.session.libsession.messaging.sending_receiving.handleOpenGroupReactions
 import org.session.libsession.messaging.sending_receiving.handleUnsendRequest
 import org.session.libsession.messaging.sending_receiving.handleVisibleMessage
+import org.session.libsession.messaging.sending_receiving.handleVisibleMessages
 import org.session.libsession.messaging.utilities.Data
 import org.session.libsession.messaging.utilities.SessionId
 import org.session.libsession.messaging.utilities.SodiumUtilities
 import org.session.libsession.utilities.SSKEnvironment
+import org.session.libsignal.protos.SignalServiceProtos
 import org.session.libsignal.protos.UtilProtos
 import org.session.libsignal.utilities.IdPrefix
 import org.session.libsignal.utilities.Log
@@ -70,6 +73,40 @@ class BatchMessageReceiveJob(
         private val SERVER_HASH_KEY = "serverHash"
         private val OPEN_GROUP_MESSAGE_SERVER_ID_KEY = "openGroupMessageServerID"
         private val OPEN_GROUP_ID_KEY = "open_group_id"
+
+        /**
+         * Runs [handle] on [items] inside a single [StorageProtocol.inTransaction] so they're committed
+         * together. If it throws, or a transaction nested in it fails, the transaction is rolled back and
+         * every item is passed to [handleIndividually] instead, so one bad message doesn't lose the rest
+         * of the batch.
+         *
+         * @return true if the items were committed together.
+         */
+        fun <T> handleInTransaction(storage: StorageProtocol, items: List<T>, handle: (List<T>) -> Unit, handleIndividually: (T) -> Unit): Boolean {
+            try {
+                storage.inTransaction { handle(items) }
+                return true
+            } catch (e: Exception) {
+                Log.w(TAG, "Couldn't handle ${items.size} messages in one transaction, handling them individually", e)
+            }
+            items.forEach(handleIndividually)
+            return false
+        }
+
+        /**
+         * Splits the list into runs of consecutive elements with the same [key].
+         */
+        internal fun <T, K> List<T>.chunkedBy(key: (T) -> K): List<List<T>> {
+            val runs = mutableListOf<MutableList<T>>()
+            var lastKey: K? = null
+            forEach { element ->
+                val elementKey = key(element)
+                if (runs.isEmpty() || elementKey != lastKey) { runs += mutableListOf<T>() }
+                runs.last() += element
+                lastKey = elementKey
+            }
+            return runs
+        }
     }
 
     private fun shouldCreateThread(parsedMessage: ParsedMessage): Boolean {
@@ -141,51 +178,80 @@ class BatchMessageReceiveJob(
             }
 
             // iterate over threads and persist them (persistence is the longest constant in the batch process operation)
-            runBlocking(Dispatchers.IO) {
+            // holding back their change notifications so each thread (and its home screen row) only reloads once
+            storage.batchNotifications(threadMap.keys - NO_THREAD_MAPPING) { runBlocking(Dispatchers.IO) {
 
                 fun processMessages(threadId: Long, messages: List<ParsedMessage>) = async {
                     // The LinkedHashMap should preserve insertion order
                     val messageIds = linkedMapOf<Long, Pair<Boolean, Boolean>>()
                     val myLastSeen = storage.getLastSeen(threadId)
                     var newLastSeen = myLastSeen.takeUnless { it == -1L } ?: 0
-                    messages.forEach { (parameters, message, proto) ->
+                    fun isFromUser(message: VisibleMessage): Boolean {
+                        val isUserBlindedSender =
+                            message.sender == serverPublicKey?.let {
+                                SodiumUtilities.blindedKeyPair(
+                                    it,
+                                    MessagingModuleConfiguration.shared.getUserED25519KeyPair()!!
+                                )
+                            }?.let {
+                                SessionId(
+                                    IdPrefix.BLINDED, it.publicKey.asBytes
+                                ).hexString
+                            }
+                        return message.sender == localUserPublicKey || isUserBlindedSender
+                    }
+
+                    fun updateLastSeen(message: VisibleMessage, isUserSender: Boolean) {
+                        if (isUserSender) {
+                            // use sent timestamp here since that is technically the last one we have
+                            newLastSeen = max(newLastSeen, message.sentTimestamp!!)
+                        }
+                    }
+
+                    fun handlePersistedVisibleMessage(parameters: MessageReceiveParameters, message: VisibleMessage, messageId: Long?, isUserSender: Boolean, persistedMessageIds: MutableMap<Long, Pair<Boolean, Boolean>>) {
+                        if (messageId != null && message.reaction == null) {
+                            persistedMessageIds[messageId] = Pair(
+                                isUserSender,
+                                message.hasMention
+                            )
+                        }
+                        parameters.openGroupMessageServerID?.let {
+                            MessageReceiver.handleOpenGroupReactions(
+                                threadId,
+                                it,
+                                parameters.reactions
+                            )
+                        }
+                    }
+
+                    fun persistVisibleMessage(parameters: MessageReceiveParameters, message: VisibleMessage, proto: SignalServiceProtos.Content, persistedMessageIds: MutableMap<Long, Pair<Boolean, Boolean>>) {
+                        val isUserSender = isFromUser(message)
+                        updateLastSeen(message, isUserSender)
+                        val messageId = MessageReceiver.handleVisibleMessage(message, proto, openGroupID,
+                            threadId,
+                            runThreadUpdate = false,
+                            runProfileUpdate = true)
+                        handlePersistedVisibleMessage(parameters, message, messageId, isUserSender, persistedMessageIds)
+                    }
+
+                    fun persistVisibleMessages(parsedMessages: List<ParsedMessage>, persistedMessageIds: MutableMap<Long, Pair<Boolean, Boolean>>) {
+                        val visibleMessages = parsedMessages.map { it.message as VisibleMessage }
+                        val fromUser = visibleMessages.map(::isFromUser)
+                        visibleMessages.zip(fromUser).forEach { (message, isUserSender) -> updateLastSeen(message, isUserSender) }
+                        val messageIds = MessageReceiver.handleVisibleMessages(visibleMessages.zip(parsedMessages.map { it.proto }), openGroupID,
+                            threadId,
+                            runThreadUpdate = false,
+                            runProfileUpdate = true)
+                        parsedMessages.forEachIndexed { index, parsedMessage ->
+                            handlePersistedVisibleMessage(parsedMessage.parameters, visibleMessages[index], messageIds[index], fromUser[index], persistedMessageIds)
+                        }
+                    }
+
+                    fun handleMessage(parsedMessage: ParsedMessage) {
+                        val (parameters, message, proto) = parsedMessage
                         try {
                             when (message) {
-                                is VisibleMessage -> {
-                                    val isUserBlindedSender =
-                                        message.sender == serverPublicKey?.let {
-                                            SodiumUtilities.blindedKeyPair(
-                                                it,
-                                                MessagingModuleConfiguration.shared.getUserED25519KeyPair()!!
-                                            )
-                                        }?.let {
-                                            SessionId(
-                                                IdPrefix.BLINDED, it.publicKey.asBytes
-                                            ).hexString
-                                        }
-                                    if (message.sender == localUserPublicKey || isUserBlindedSender) {
-                                        // use sent timestamp here since that is technically the last one we have
-                                        newLastSeen = max(newLastSeen, message.sentTimestamp!!)
-                                    }
-                                    val messageId = MessageReceiver.handleVisibleMessage(message, proto, openGroupID,
-                                        threadId,
-                                        runThreadUpdate = false,
-                                        runProfileUpdate = true)
-
-                                    if (messageId != null && message.reaction == null) {
-                                        messageIds[messageId] = Pair(
-                                            (message.sender == localUserPublicKey || isUserBlindedSender),
-                                            message.hasMention
-                                        )
-                                    }
-                                    parameters.openGroupMessageServerID?.let {
-                                        MessageReceiver.handleOpenGroupReactions(
-                                            threadId,
-                                            it,
-                                            parameters.reactions
-                                        )
-                                    }
-                                }
+                                is VisibleMessage -> persistVisibleMessage(parameters, message, proto, messageIds)
 
                                 is UnsendRequest -> {
                                     val deletedMessageId =
@@ -209,6 +275,32 @@ class BatchMessageReceiveJob(
                             }
                         }
                     }
+
+                    // Runs of visible messages are persisted in one transaction rather than one per message
+                    // (control messages can have side effects outside the database so are handled on their own)
+                    messages.chunkedBy { it.message is VisibleMessage }.forEach { chunk ->
+                        if (chunk.size < 2 || chunk.first().message !is VisibleMessage) {
+                            chunk.forEach(::handleMessage)
+                            return@forEach
+                        }
+                        val runMessageIds = linkedMapOf<Long, Pair<Boolean, Boolean>>()
+                        val isCommitted = handleInTransaction(storage, chunk,
+                            handle = { parsedMessages ->
+                                // Quotes and reactions can refer to earlier messages in the run, so those have to be
+                                // persisted first
+                                val batches = mutableListOf<MutableList<ParsedMessage>>()
+                                parsedMessages.forEach { parsedMessage ->
+                                    val message = parsedMessage.message as VisibleMessage
+                                    if (batches.isEmpty() || message.quote != null || message.reaction != null) { batches += mutableListOf<ParsedMessage>() }
+                                    batches.last() += parsedMessage
+                                }
+                                batches.forEach { persistVisibleMessages(it, runMessageIds) }
+                            },
+                            handleIndividually = ::handleMessage
+                        )
+                        if (isCommitted) { messageIds.putAll(runMessageIds) }
+                    }
+
                     // increment unreads, notify, and update thread
                     // last seen will be the current last seen if not changed (re-computes the read counts for thread record)
                     // might have been updated from a different thread at this point
@@ -231,7 +323,7 @@ class BatchMessageReceiveJob(
                 if (noThreadMessages.isNotEmpty()) {
                     processMessages(NO_THREAD_MAPPING, noThreadMessages).await()
                 }
-            }
+            } }
             if (failures.isEmpty()) {
                 handleSuccess(dispatcherName)
             } else {
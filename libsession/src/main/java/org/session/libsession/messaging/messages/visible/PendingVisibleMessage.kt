@@ -0,0 +1,16 @@
+package org.session.libsession.messaging.messages.visible
+
+import org.session.libsession.messaging.sending_receiving.link_preview.LinkPreview
+import org.session.libsession.messaging.sending_receiving.quotes.QuoteModel
+
+/**
+ * A received [VisibleMessage] that's ready to be persisted, along with what was parsed from it.
+ */
+data class PendingVisibleMessage(
+    val message: VisibleMessage,
+    val quote: QuoteModel?,
+    val linkPreviews: List<LinkPreview?>,
+    val groupPublicKey: String?,
+    val openGroupID: String?,
+    val attachments: List<Attachment>
+)
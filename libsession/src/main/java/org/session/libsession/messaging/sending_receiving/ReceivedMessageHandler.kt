@@ -20,6 +20,7 @@ import org.session.libsession.messaging.messages.control.ReadReceipt
 import org.session.libsession.messaging.messages.control.TypingIndicator
 import org.session.libsession.messaging.messages.control.UnsendRequest
 import org.session.libsession.messaging.messages.visible.Attachment
+import org.session.libsession.messaging.messages.visible.PendingVisibleMessage
 import org.session.libsession.messaging.messages.visible.Reaction
 import org.session.libsession.messaging.messages.visible.VisibleMessage
 import org.session.libsession.messaging.open_groups.OpenGroupApi
@@ -288,6 +289,46 @@ fun MessageReceiver.handleVisibleMessage(
     runThreadUpdate: Boolean,
     runProfileUpdate: Boolean
 ): Long? {
+    val pendingMessage = prepareVisibleMessage(message, proto, openGroupID, threadId, runProfileUpdate) ?: return null
+    val messageID = MessagingModuleConfiguration.shared.storage.persist(pendingMessage.message, pendingMessage.quote,
+        pendingMessage.linkPreviews, pendingMessage.groupPublicKey, pendingMessage.openGroupID, pendingMessage.attachments, runThreadUpdate) ?: return null
+    handlePersistedVisibleMessage(pendingMessage, messageID)
+    return messageID
+}
+
+/**
+ * Handles [messages] as [handleVisibleMessage] would, but persists them together in one transaction.
+ * As none of them are persisted until they've all been prepared, none of them should quote or react
+ * to another. Returns the ID of each message, or null if it wasn't persisted.
+ */
+fun MessageReceiver.handleVisibleMessages(
+    messages: List<Pair<VisibleMessage, SignalServiceProtos.Content>>,
+    openGroupID: String?,
+    threadId: Long,
+    runThreadUpdate: Boolean,
+    runProfileUpdate: Boolean
+): List<Long?> {
+    val pendingMessages = messages.map { (message, proto) -> prepareVisibleMessage(message, proto, openGroupID, threadId, runProfileUpdate) }
+    val persistedMessageIDs = MessagingModuleConfiguration.shared.storage.persist(pendingMessages.filterNotNull(), runThreadUpdate).iterator()
+    return pendingMessages.map { pendingMessage ->
+        if (pendingMessage == null) return@map null
+        val messageID = persistedMessageIDs.next() ?: return@map null
+        handlePersistedVisibleMessage(pendingMessage, messageID)
+        messageID
+    }
+}
+
+/**
+ * Does everything [handleVisibleMessage] does before the message is persisted, returning what it
+ * should be persisted with, or null if it shouldn't be (it's outdated, or it's a reaction).
+ */
+private fun MessageReceiver.prepareVisibleMessage(
+    message: VisibleMessage,
+    proto: SignalServiceProtos.Content,
+    openGroupID: String?,
+    threadId: Long,
+    runProfileUpdate: Boolean
+): PendingVisibleMessage? {
     val storage = MessagingModuleConfiguration.shared.storage
     val context = MessagingModuleConfiguration.shared.context
     val userPublicKey = storage.getUserPublicKey()
@@ -418,19 +459,21 @@ fun MessageReceiver.handleVisibleMessage(
                 )
             }
 
-        // Persist the message
         message.threadID = threadID
-        val messageID = storage.persist(message, quoteModel, linkPreviews, message.groupPublicKey, openGroupID, attachments, runThreadUpdate) ?: return null
-        message.openGroupServerMessageID?.let {
-            val isSms = !message.isMediaMessage() && attachments.isEmpty()
-            storage.setOpenGroupServerMessageID(messageID, it, threadID, isSms)
-        }
-        SSKEnvironment.shared.messageExpirationManager.maybeStartExpiration(message)
-        return messageID
+        return PendingVisibleMessage(message, quoteModel, linkPreviews, message.groupPublicKey, openGroupID, attachments)
     }
     return null
 }
 
+private fun handlePersistedVisibleMessage(pendingMessage: PendingVisibleMessage, messageID: Long) {
+    val message = pendingMessage.message
+    message.openGroupServerMessageID?.let {
+        val isSms = !message.isMediaMessage() && pendingMessage.attachments.isEmpty()
+        MessagingModuleConfiguration.shared.storage.setOpenGroupServerMessageID(messageID, it, message.threadID!!, isSms)
+    }
+    SSKEnvironment.shared.messageExpirationManager.maybeStartExpiration(message)
+}
+
 fun MessageReceiver.handleOpenGroupReactions(
     threadId: Long,
     openGroupMessageServerID: Long,
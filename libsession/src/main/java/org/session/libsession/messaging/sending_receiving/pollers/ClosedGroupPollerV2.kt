@@ -15,6 +15,7 @@ import org.session.libsignal.utilities.Log
 import org.session.libsignal.utilities.Namespace
 import org.session.libsignal.utilities.defaultRequiresAuth
 import org.session.libsignal.utilities.hasNamespaces
+import java.security.SecureRandom
 import java.text.DateFormat
 import java.util.Date
 import java.util.concurrent.Executors
@@ -106,15 +107,17 @@ class ClosedGroupPollerV2 {
         val promise = SnodeAPI.getSwarm(groupPublicKey).bind { swarm ->
             val snode = swarm.getRandomElementOrNull() ?: throw InsufficientSnodesException() // Should be cryptographically secure
             if (!isPolling(groupPublicKey)) { throw PollingCanceledException() }
+            // A second swarm member to hedge retrieves with if the first one is slow
+            val hedgeTargets = listOf(snode) + (swarm - snode).shuffled(SecureRandom()).take(1)
             val currentForkInfo = SnodeAPI.forkInfo
             when {
-                currentForkInfo.defaultRequiresAuth() -> SnodeAPI.getRawMessages(snode, groupPublicKey, requiresAuth = false, namespace = Namespace.UNAUTHENTICATED_CLOSED_GROUP)
-                    .map { SnodeAPI.parseRawMessagesResponse(it, snode, groupPublicKey, Namespace.UNAUTHENTICATED_CLOSED_GROUP) }
+                currentForkInfo.defaultRequiresAuth() -> SnodeAPI.getRawMessagesHedged(hedgeTargets, groupPublicKey, requiresAuth = false, namespace = Namespace.UNAUTHENTICATED_CLOSED_GROUP)
+                    .map { (respondingSnode, rawResponse) -> SnodeAPI.parseRawMessagesResponse(rawResponse, respondingSnode, groupPublicKey, Namespace.UNAUTHENTICATED_CLOSED_GROUP) }
                 currentForkInfo.hasNamespaces() -> task {
-                    val unAuthed = SnodeAPI.getRawMessages(snode, groupPublicKey, requiresAuth = false, namespace = Namespace.UNAUTHENTICATED_CLOSED_GROUP)
-                        .map { SnodeAPI.parseRawMessagesResponse(it, snode, groupPublicKey, Namespace.UNAUTHENTICATED_CLOSED_GROUP) }
-                    val default = SnodeAPI.getRawMessages(snode, groupPublicKey, requiresAuth = false, namespace = Namespace.DEFAULT)
-                        .map { SnodeAPI.parseRawMessagesResponse(it, snode, groupPublicKey, Namespace.DEFAULT) }
+                    val unAuthed = SnodeAPI.getRawMessagesHedged(hedgeTargets, groupPublicKey, requiresAuth = false, namespace = Namespace.UNAUTHENTICATED_CLOSED_GROUP)
+                        .map { (respondingSnode, rawResponse) -> SnodeAPI.parseRawMessagesResponse(rawResponse, respondingSnode, groupPublicKey, Namespace.UNAUTHENTICATED_CLOSED_GROUP) }
+                    val default = SnodeAPI.getRawMessagesHedged(hedgeTargets, groupPublicKey, requiresAuth = false, namespace = Namespace.DEFAULT)
+                        .map { (respondingSnode, rawResponse) -> SnodeAPI.parseRawMessagesResponse(rawResponse, respondingSnode, groupPublicKey, Namespace.DEFAULT) }
                     val unAuthedResult = unAuthed.get()
                     val defaultResult = default.get()
                     val format = DateFormat.getTimeInstance()
@@ -123,8 +126,8 @@ class ClosedGroupPollerV2 {
                     }
                     unAuthedResult + defaultResult
                 }
-                else -> SnodeAPI.getRawMessages(snode, groupPublicKey, requiresAuth = false, namespace = Namespace.DEFAULT)
-                    .map { SnodeAPI.parseRawMessagesResponse(it, snode, groupPublicKey) }
+                else -> SnodeAPI.getRawMessagesHedged(hedgeTargets, groupPublicKey, requiresAuth = false, namespace = Namespace.DEFAULT)
+                    .map { (respondingSnode, rawResponse) -> SnodeAPI.parseRawMessagesResponse(rawResponse, respondingSnode, groupPublicKey) }
             }
         }
         promise.success { envelopes ->
@@ -1,6 +1,7 @@
 package org.session.libsession.messaging.utilities
 
 import com.google.protobuf.ByteString
+import com.google.protobuf.CodedInputStream
 import org.session.libsignal.utilities.Log
 import org.session.libsignal.protos.SignalServiceProtos.Envelope
 import org.session.libsignal.protos.WebSocketProtos.WebSocketMessage
@@ -69,11 +70,17 @@ object MessageWrapper {
     /**
      * `data` shouldn't be base 64 encoded.
      */
-    fun unwrap(data: ByteArray): Envelope {
+    fun unwrap(data: ByteArray): Envelope = unwrap(data, 0, data.size)
+
+    /**
+     * Unwraps the `length` bytes of `data` starting at `offset`, which allows parsing straight out of a reused buffer.
+     * `data` shouldn't be base 64 encoded.
+     */
+    fun unwrap(data: ByteArray, offset: Int, length: Int): Envelope {
         try {
-            val webSocketMessage = WebSocketMessage.parseFrom(data)
+            val webSocketMessage = WebSocketMessage.parseFrom(CodedInputStream.newInstance(data, offset, length))
             val envelopeAsData = webSocketMessage.request.body
-            return Envelope.parseFrom(envelopeAsData);
+            return Envelope.parseFrom(envelopeAsData.newCodedInput())
         } catch (e: Exception) {
             Log.d("Loki", "Failed to unwrap data: ${e.message}.")
             throw Error.FailedToUnwrapData
@@ -0,0 +1,129 @@
+package org.session.libsession.snode
+
+import nl.komponents.kovenant.Promise
+import nl.komponents.kovenant.deferred
+import org.session.libsignal.utilities.Log
+import org.session.libsignal.utilities.Snode
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import kotlin.math.ceil
+
+/**
+ * Sends an idempotent request to one snode and, if it hasn't answered within the tracked latency
+ * percentile, sends the same request to a second snode as well. Whichever response arrives first
+ * wins; the other one is ignored.
+ *
+ * Only use this for reads (e.g. retrieve), since the request may be executed more than once.
+ */
+internal class HedgedRequestDispatcher(
+    private val percentile: Double = 0.95,
+    private val minimumHedgeDelay: Long = 200L,
+    private val defaultHedgeDelay: Long = 2000L,
+    private val sampleSize: Int = 128,
+    private val timer: ScheduledExecutorService = sharedTimer,
+    private val clock: () -> Long = System::currentTimeMillis
+) {
+    private val samples = LongArray(sampleSize)
+    private var sampleCount = 0
+    private var nextSampleIndex = 0
+
+    @Synchronized
+    fun recordLatency(millis: Long) {
+        samples[nextSampleIndex] = millis
+        nextSampleIndex = (nextSampleIndex + 1) % sampleSize
+        if (sampleCount < sampleSize) { sampleCount += 1 }
+    }
+
+    /**
+     * The delay after which a second request is sent. Falls back to [defaultHedgeDelay] until
+     * enough samples have been collected to make the percentile meaningful.
+     */
+    @Synchronized
+    fun hedgeDelay(): Long {
+        if (sampleCount < minimumSampleCount) { return defaultHedgeDelay }
+        val sorted = samples.copyOf(sampleCount).apply { sort() }
+        val index = (ceil(percentile * sampleCount).toInt() - 1).coerceIn(0, sampleCount - 1)
+        return maxOf(sorted[index], minimumHedgeDelay)
+    }
+
+    /**
+     * Executes [request] against the first snode in [snodes] and hedges with the second one if
+     * needed. If the first request fails before the hedge delay has elapsed the second request is
+     * sent immediately. The resulting promise only fails if every request that was sent failed.
+     */
+    fun <T> execute(snodes: List<Snode>, request: (Snode) -> Promise<T, Exception>): Promise<Pair<Snode, T>, Exception> {
+        val primary = snodes.firstOrNull() ?: return Promise.ofFail(SnodeAPI.Error.Generic)
+        val secondary = snodes.getOrNull(1)
+        val deferred = deferred<Pair<Snode, T>, Exception>()
+        val lock = Any()
+        var isDone = false
+        var pendingCount = 0
+        var secondaryLaunched = secondary == null
+        var scheduledHedge: ScheduledFuture<*>? = null
+
+        fun launch(snode: Snode) {
+            val startTime = clock()
+            val promise: Promise<T, Exception> = try {
+                request(snode)
+            } catch (e: Exception) {
+                Promise.ofFail(e)
+            }
+            promise.success { result ->
+                // Responses that lose to the other request are sampled too, otherwise a slow snode would
+                // never count towards the percentile and the hedge delay would keep creeping down
+                recordLatency(clock() - startTime)
+                synchronized(lock) {
+                    if (isDone) { return@success }
+                    isDone = true
+                    scheduledHedge?.cancel(false)
+                }
+                deferred.resolve(snode to result)
+            }.fail { exception ->
+                var launchSecondary = false
+                var rejectNow = false
+                synchronized(lock) {
+                    if (isDone) { return@fail }
+                    pendingCount -= 1
+                    if (!secondaryLaunched) {
+                        secondaryLaunched = true
+                        scheduledHedge?.cancel(false)
+                        pendingCount += 1
+                        launchSecondary = true
+                    } else if (pendingCount == 0) {
+                        isDone = true
+                        rejectNow = true
+                    }
+                }
+                if (launchSecondary) {
+                    launch(secondary!!)
+                } else if (rejectNow) {
+                    deferred.reject(exception)
+                }
+            }
+        }
+
+        synchronized(lock) {
+            pendingCount += 1
+            if (secondary != null) {
+                scheduledHedge = timer.schedule(Runnable {
+                    synchronized(lock) {
+                        if (isDone || secondaryLaunched) { return@Runnable }
+                        secondaryLaunched = true
+                        pendingCount += 1
+                    }
+                    Log.d("Loki", "No response from $primary within hedge delay; also trying $secondary.")
+                    launch(secondary)
+                }, hedgeDelay(), TimeUnit.MILLISECONDS)
+            }
+        }
+        launch(primary)
+        return deferred.promise
+    }
+
+    companion object {
+        private const val minimumSampleCount = 16
+        private val sharedTimer: ScheduledExecutorService by lazy { Executors.newSingleThreadScheduledExecutor() }
+    }
+}
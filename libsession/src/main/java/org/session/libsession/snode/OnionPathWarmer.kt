@@ -0,0 +1,89 @@
+package org.session.libsession.snode
+
+import nl.komponents.kovenant.Promise
+import org.session.libsignal.utilities.Log
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+
+/**
+ * Builds and tests onion request paths ahead of time so the first request after a network switch
+ * doesn't have to pay for path building and guard snode testing inline.
+ *
+ * Triggers are debounced (connectivity changes tend to arrive in bursts) and at most one warm-up
+ * runs at a time; a trigger that arrives while a warm-up is in flight causes a single follow-up run.
+ */
+class OnionPathWarmer(
+    private val warmUp: () -> Promise<Unit, Exception>,
+    private val debounceMillis: Long = 1000L,
+    private val executor: ScheduledExecutorService = sharedExecutor
+) {
+    private var isConnected = true
+    private var scheduledWarmUp: ScheduledFuture<*>? = null
+    private var isWarmingUp = false
+    private var isFollowUpNeeded = false
+
+    /**
+     * To be called whenever the device's connectivity changes. Regaining (or switching)
+     * connectivity schedules a warm-up; losing it cancels any scheduled one.
+     */
+    @Synchronized
+    fun onConnectivityChanged(isConnected: Boolean) {
+        this.isConnected = isConnected
+        if (isConnected) {
+            schedule()
+        } else {
+            scheduledWarmUp?.cancel(false)
+            scheduledWarmUp = null
+            isFollowUpNeeded = false
+        }
+    }
+
+    /**
+     * To be called when the current paths are known to be unusable or incomplete.
+     */
+    @Synchronized
+    fun onPathsStale() {
+        if (isConnected) { schedule() }
+    }
+
+    private fun schedule() {
+        if (isWarmingUp) {
+            isFollowUpNeeded = true
+            return
+        }
+        scheduledWarmUp?.cancel(false)
+        scheduledWarmUp = executor.schedule(Runnable { run() }, debounceMillis, TimeUnit.MILLISECONDS)
+    }
+
+    private fun run() {
+        synchronized(this) {
+            scheduledWarmUp = null
+            if (!isConnected || isWarmingUp) { return }
+            isWarmingUp = true
+        }
+        val promise = try {
+            warmUp()
+        } catch (e: Exception) {
+            Promise.ofFail<Unit, Exception>(e)
+        }
+        promise.success {
+            Log.d("Loki", "Onion request paths warmed up.")
+        }.fail { exception ->
+            Log.d("Loki", "Couldn't warm up onion request paths due to error: $exception.")
+        }.always {
+            synchronized(this) {
+                isWarmingUp = false
+                if (isFollowUpNeeded && isConnected) {
+                    isFollowUpNeeded = false
+                    schedule()
+                }
+            }
+        }
+    }
+
+    companion object {
+        private val sharedExecutor: ScheduledExecutorService by lazy { Executors.newSingleThreadScheduledExecutor() }
+    }
+}
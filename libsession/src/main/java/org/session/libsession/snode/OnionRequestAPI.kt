@@ -44,6 +44,7 @@ object OnionRequestAPI {
     private val snodeFailureCount = mutableMapOf<Snode, Int>()
 
     var guardSnodes = setOf<Snode>()
+    val pathWarmer by lazy { OnionPathWarmer(::warmUpPaths) }
     var _paths: AtomicReference<List<Path>?> = AtomicReference(null)
     var paths: List<Path> // Not a set to ensure we consistently show the same path to the user
         get() {
@@ -285,6 +286,7 @@ object OnionRequestAPI {
         if (pathIndex == -1) { return }
         paths.removeAt(pathIndex)
         OnionRequestAPI.paths = paths
+        pathWarmer.onPathsStale()
     }
 
     /**
@@ -295,38 +297,24 @@ object OnionRequestAPI {
         destination: Destination,
         version: Version
     ): Promise<OnionBuildingResult, Exception> {
-        lateinit var guardSnode: Snode
-        lateinit var destinationSymmetricKey: ByteArray // Needed by LokiAPI to decrypt the response sent back by the destination
-        lateinit var encryptionResult: EncryptionResult
         val snodeToExclude = when (destination) {
             is Destination.Snode -> destination.snode
             is Destination.Server -> null
         }
-        return getPath(snodeToExclude).bind { path ->
-            guardSnode = path.first()
+        return getPath(snodeToExclude).map { path ->
+            // Build all layers on the thread that resolved the path rather than hopping threads per layer
             // Encrypt in reverse order, i.e. the destination first
-            OnionRequestEncryption.encryptPayloadForDestination(payload, destination, version).bind { r ->
-                destinationSymmetricKey = r.symmetricKey
-                // Recursively encrypt the layers of the onion (again in reverse order)
-                encryptionResult = r
-                @Suppress("NAME_SHADOWING") var path = path
-                var rhs = destination
-                fun addLayer(): Promise<EncryptionResult, Exception> {
-                    return if (path.isEmpty()) {
-                        Promise.of(encryptionResult)
-                    } else {
-                        val lhs = Destination.Snode(path.last())
-                        path = path.dropLast(1)
-                        OnionRequestEncryption.encryptHop(lhs, rhs, encryptionResult).bind { r ->
-                            encryptionResult = r
-                            rhs = lhs
-                            addLayer()
-                        }
-                    }
-                }
-                addLayer()
+            val destinationResult = OnionRequestEncryption.encryptPayloadForDestination(payload, destination, version)
+            // Encrypt the layers of the onion (again in reverse order)
+            var encryptionResult = destinationResult
+            var rhs = destination
+            for (snode in path.asReversed()) {
+                val lhs = Destination.Snode(snode)
+                encryptionResult = OnionRequestEncryption.encryptHop(lhs, rhs, encryptionResult)
+                rhs = lhs
             }
-        }.map { OnionBuildingResult(guardSnode, encryptionResult, destinationSymmetricKey) }
+            OnionBuildingResult(path.first(), encryptionResult, destinationResult.symmetricKey)
+        }
     }
 
     /**
@@ -430,6 +418,35 @@ object OnionRequestAPI {
     }
     // endregion
 
+    /**
+     * Tests the guard snodes of the current paths, drops the paths whose guard snode can't be reached
+     * (e.g. because the network changed) and builds new paths until `targetPathCount` paths are
+     * available. Used by [pathWarmer] to do this ahead of time rather than inline with a request.
+     */
+    internal fun warmUpPaths(): Promise<Unit, Exception> {
+        val paths = this.paths
+        if (paths.isEmpty()) { return buildPaths(listOf()).map { } }
+        val guardSnodeTests = paths.map { path ->
+            testSnode(path[0]).map { path to true }.recover { path to false }
+        }
+        return all(guardSnodeTests).bind { results ->
+            val (reachablePaths, unreachablePaths) = results.partition { (_, isReachable) -> isReachable }
+            unreachablePaths.forEach { (path, _) ->
+                Log.d("Loki", "Guard snode ${path[0]} is unreachable; dropping its path.")
+                dropGuardSnode(path[0])
+                pathFailureCount[path] = 0
+            }
+            if (unreachablePaths.isNotEmpty()) {
+                OnionRequestAPI.paths = reachablePaths.map { it.first }
+            }
+            if (reachablePaths.count() >= targetPathCount) {
+                Promise.of(Unit)
+            } else {
+                buildPaths(reachablePaths.map { it.first }).map { }
+            }
+        }
+    }
+
     // region Internal API
     /**
      * Sends an onion request to `snode`. Builds new paths as needed.
@@ -502,7 +519,11 @@ object OnionRequestAPI {
             if (request.body() != null) {
                 val bodyData = if (body is ByteArray) body else body.toString().toByteArray()
                 val bodyLengthData = "${bodyData.size}:".toByteArray(Charsets.US_ASCII)
-                prefixData + requestData + bodyLengthData + bodyData + suffixData
+                // Concatenated in one go rather than pairwise as the body can be an entire attachment
+                val parts = listOf(prefixData, requestData, bodyLengthData, bodyData, suffixData)
+                val result = ByteArray(parts.sumOf { it.size })
+                parts.fold(0) { offset, part -> part.copyInto(result, offset); offset + part.size }
+                result
             } else {
                 prefixData + requestData + suffixData
             }
@@ -661,17 +682,19 @@ object OnionRequestAPI {
         }
     }
 
-    private fun ByteArray.getBody(infoLength: Int, infoEndIndex: Int): ByteArray {
+    internal fun ByteArray.getBody(infoLength: Int, infoEndIndex: Int): ByteArray {
         // If there is no data in the response, i.e. only `l123:jsone`, then just return the ResponseInfo
         val infoLengthStringLength = infoLength.toString().length
         if (size <= infoLength + infoLengthStringLength + 2/*l and e bytes*/) {
             return byteArrayOf()
         }
-        // Extract the response data as well
-        val dataSlice = slice(infoEndIndex + 1 until size - 1)
-        val dataSepIdx = dataSlice.indexOfFirst { byteArrayOf(it).contentEquals(":".toByteArray()) }
-        val responseBody = dataSlice.slice(dataSepIdx + 1 until dataSlice.size)
-        return responseBody.toByteArray()
+        // Extract the response data as well. This works on the array directly rather than on slices, which
+        // would box every byte of what can be an entire attachment
+        val dataStartIndex = infoEndIndex + 1
+        val dataEndIndex = size - 1
+        val separator = ':'.code.toByte()
+        val dataSepIdx = (dataStartIndex until dataEndIndex).firstOrNull { this[it] == separator }
+        return copyOfRange(if (dataSepIdx != null) dataSepIdx + 1 else dataStartIndex, dataEndIndex)
     }
 
     // endregion
@@ -3,6 +3,7 @@
 package org.session.libsession.snode
 
 import android.os.Build
+import androidx.annotation.VisibleForTesting
 import com.goterl.lazysodium.LazySodiumAndroid
 import com.goterl.lazysodium.SodiumAndroid
 import com.goterl.lazysodium.exceptions.SodiumException
@@ -48,9 +49,10 @@ object SnodeAPI {
         get() = SnodeModule.shared.broadcaster
 
     internal var snodeFailureCount: MutableMap<Snode, Int> = mutableMapOf()
+    private val snodePoolStore by lazy { SnodePool({ database.getSnodePool() }, { database.setSnodePool(it) }) }
     internal var snodePool: Set<Snode>
-        get() = database.getSnodePool()
-        set(newValue) { database.setSnodePool(newValue) }
+        get() = snodePoolStore.current
+        set(newValue) { snodePoolStore.replace(newValue) }
     /**
      * The offset between the user's clock and the Service Node's clock. Used in cases where the
      * user's clock is incorrect.
@@ -86,6 +88,7 @@ object SnodeAPI {
         }
     }
     private const val snodeFailureThreshold = 3
+    private val retrieveHedger by lazy { HedgedRequestDispatcher() }
     private const val useOnionRequests = true
 
     const val useTestnet = false
@@ -325,6 +328,26 @@ object SnodeAPI {
     }
 
     fun getRawMessages(snode: Snode, publicKey: String, requiresAuth: Boolean = true, namespace: Int = 0): RawResponsePromise {
+        val parameters = try {
+            buildRetrieveParameters(snode, publicKey, requiresAuth, namespace)
+        } catch (e: Error) {
+            return Promise.ofFail(e)
+        }
+        // Make the request
+        return invoke(Snode.Method.Retrieve, snode, parameters, publicKey)
+    }
+
+    /**
+     * Hedged variant of [getRawMessages]: the retrieve request is sent to the first snode in [snodes]
+     * and, if that one is slow to respond, to the second one as well. The returned promise resolves
+     * with whichever response arrived first, along with the snode that sent it (which should be used
+     * when parsing the response so that the right last message hash gets updated).
+     */
+    fun getRawMessagesHedged(snodes: List<Snode>, publicKey: String, requiresAuth: Boolean = true, namespace: Int = 0): Promise<Pair<Snode, RawResponse>, Exception> {
+        return retrieveHedger.execute(snodes) { snode -> getRawMessages(snode, publicKey, requiresAuth, namespace) }
+    }
+
+    private fun buildRetrieveParameters(snode: Snode, publicKey: String, requiresAuth: Boolean, namespace: Int): Map<String, Any> {
         // Get last message hash
         val lastHashValue = database.getLastMessageHashValue(snode, publicKey, namespace) ?: ""
         val parameters = mutableMapOf<String, Any>(
@@ -335,11 +358,10 @@ object SnodeAPI {
         if (requiresAuth) {
             val userED25519KeyPair = try {
                 MessagingModuleConfiguration.shared.getUserED25519KeyPair()
-                    ?: return Promise.ofFail(Error.NoKeyPair)
             } catch (e: Exception) {
                 Log.e("Loki", "Error getting KeyPair", e)
-                return Promise.ofFail(Error.NoKeyPair)
-            }
+                throw Error.NoKeyPair
+            } ?: throw Error.NoKeyPair
             val timestamp = System.currentTimeMillis() + clockOffset
             val ed25519PublicKey = userED25519KeyPair.publicKey.asHexString
             val signature = ByteArray(Sign.BYTES)
@@ -354,7 +376,7 @@ object SnodeAPI {
                     userED25519KeyPair.secretKey.asBytes
                 )
             } catch (exception: Exception) {
-                return Promise.ofFail(Error.SigningFailed)
+                throw Error.SigningFailed
             }
             parameters["timestamp"] = timestamp
             parameters["pubkey_ed25519"] = ed25519PublicKey
@@ -366,9 +388,7 @@ object SnodeAPI {
         if (namespace != 0) {
             parameters["namespace"] = namespace
         }
-
-        // Make the request
-        return invoke(Snode.Method.Retrieve, snode, parameters, publicKey)
+        return parameters
     }
 
     fun buildAuthenticatedStoreBatchInfo(publicKey: String, namespace: Int, message: SnodeMessage): SnodeBatchRequestInfo? {
@@ -862,20 +882,29 @@ object SnodeAPI {
         return result
     }
 
-    private fun parseEnvelopes(rawMessages: List<*>): List<Pair<SignalServiceProtos.Envelope, String?>> {
+    @VisibleForTesting
+    internal fun parseEnvelopes(rawMessages: List<*>): List<Pair<SignalServiceProtos.Envelope, String?>> {
+        // Decode every message into the same buffer rather than allocating intermediate byte arrays per message
+        var buffer = ByteArray(0)
         return rawMessages.mapNotNull { rawMessage ->
             val rawMessageAsJSON = rawMessage as? Map<*, *>
             val base64EncodedData = rawMessageAsJSON?.get("data") as? String
-            val data = base64EncodedData?.let { Base64.decode(it) }
-            if (data != null) {
-                try {
-                    Pair(MessageWrapper.unwrap(data), rawMessageAsJSON.get("hash") as? String)
-                } catch (e: Exception) {
-                    Log.d("Loki", "Failed to unwrap data for message: ${rawMessage.prettifiedDescription()}.")
-                    null
-                }
-            } else {
+            if (base64EncodedData == null) {
                 Log.d("Loki", "Failed to decode data for message: ${rawMessage?.prettifiedDescription()}.")
+                return@mapNotNull null
+            }
+            val maxLength = Base64.getMaxDecodedLength(base64EncodedData.length)
+            if (buffer.size < maxLength) { buffer = ByteArray(maxLength) }
+            val length = try {
+                Base64.decodeInto(base64EncodedData, buffer)
+            } catch (e: Exception) {
+                Log.d("Loki", "Failed to decode data for message: ${rawMessage.prettifiedDescription()}.")
+                return@mapNotNull null
+            }
+            try {
+                Pair(MessageWrapper.unwrap(buffer, 0, length), rawMessageAsJSON.get("hash") as? String)
+            } catch (e: Exception) {
+                Log.d("Loki", "Failed to unwrap data for message: ${rawMessage.prettifiedDescription()}.")
                 null
             }
         }
@@ -909,18 +938,20 @@ object SnodeAPI {
     // Error Handling
     internal fun handleSnodeError(statusCode: Int, json: Map<*, *>?, snode: Snode, publicKey: String? = null): Exception? {
         fun handleBadSnode() {
-            val oldFailureCount = snodeFailureCount[snode] ?: 0
-            val newFailureCount = oldFailureCount + 1
-            snodeFailureCount[snode] = newFailureCount
+            val newFailureCount = synchronized(snodeFailureCount) {
+                val newFailureCount = (snodeFailureCount[snode] ?: 0) + 1
+                snodeFailureCount[snode] = newFailureCount
+                newFailureCount
+            }
             Log.d("Loki", "Couldn't reach snode at $snode; setting failure count to $newFailureCount.")
             if (newFailureCount >= snodeFailureThreshold) {
                 Log.d("Loki", "Failure threshold reached for: $snode; dropping it.")
                 if (publicKey != null) {
                     dropSnodeFromSwarmIfNeeded(snode, publicKey)
                 }
-                snodePool = snodePool.toMutableSet().minus(snode).toSet()
-                Log.d("Loki", "Snode pool count: ${snodePool.count()}.")
-                snodeFailureCount[snode] = 0
+                snodePoolStore.remove(snode)
+                Log.d("Loki", "Snode pool count: ${snodePoolStore.size}.")
+                synchronized(snodeFailureCount) { snodeFailureCount[snode] = 0 }
             }
         }
         when (statusCode) {
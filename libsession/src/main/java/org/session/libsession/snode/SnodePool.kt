@@ -0,0 +1,115 @@
+package org.session.libsession.snode
+
+import org.session.libsignal.utilities.Log
+import org.session.libsignal.utilities.Snode
+import java.util.Collections
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * In-memory snode pool backed by the database.
+ *
+ * Removals are applied to a concurrent set in place and persisted in batches, so dropping many
+ * snodes in quick succession (e.g. after a network switch) doesn't copy and re-persist the whole
+ * pool for every snode. Readers get an immutable snapshot that's only rebuilt after the pool has
+ * changed.
+ */
+internal class SnodePool(
+    private val load: () -> Set<Snode>,
+    private val persist: (Set<Snode>) -> Unit,
+    private val persistDelayMillis: Long = 1000L,
+    private val executor: ScheduledExecutorService = sharedExecutor
+) {
+    private val snodes: MutableSet<Snode> = Collections.newSetFromMap(ConcurrentHashMap())
+    private val isPersistScheduled = AtomicBoolean(false)
+    // Held while taking the value to persist and writing it, so writes land in the order the pool changed
+    private val persistLock = Any()
+    @Volatile private var isLoaded = false
+    @Volatile private var snapshot: Set<Snode>? = null
+
+    /**
+     * An immutable snapshot of the current pool.
+     */
+    val current: Set<Snode>
+        get() {
+            ensureLoaded()
+            return snapshot ?: synchronized(this) {
+                snapshot ?: snodes.toSet().also { snapshot = it }
+            }
+        }
+
+    val size: Int
+        get() {
+            ensureLoaded()
+            return snodes.size
+        }
+
+    /**
+     * Replaces the whole pool and persists it immediately.
+     */
+    fun replace(newValue: Set<Snode>) {
+        synchronized(persistLock) {
+            // Pending removals are superseded by the new pool, so a scheduled flush has nothing left to write
+            isPersistScheduled.set(false)
+            synchronized(this) {
+                snodes.clear()
+                snodes.addAll(newValue)
+                snapshot = null
+                isLoaded = true
+            }
+            persist(newValue)
+        }
+    }
+
+    /**
+     * Removes [snode] from the pool. The change is persisted together with any other removals
+     * that happen within [persistDelayMillis].
+     */
+    fun remove(snode: Snode): Boolean {
+        ensureLoaded()
+        if (!snodes.remove(snode)) { return false }
+        // Invalidate under the lock so a snapshot that's being built concurrently can't outlive this removal
+        synchronized(this) { snapshot = null }
+        schedulePersist()
+        return true
+    }
+
+    /**
+     * Persists any pending changes right away.
+     */
+    fun flush() {
+        synchronized(persistLock) {
+            if (isPersistScheduled.getAndSet(false)) {
+                persist(current)
+            }
+        }
+    }
+
+    private fun schedulePersist() {
+        if (!isPersistScheduled.compareAndSet(false, true)) { return }
+        executor.schedule(Runnable {
+            try {
+                flush()
+            } catch (e: Exception) {
+                Log.e("Loki", "Failed to persist snode pool", e)
+            }
+        }, persistDelayMillis, TimeUnit.MILLISECONDS)
+    }
+
+    private fun ensureLoaded() {
+        if (isLoaded) { return }
+        synchronized(this) {
+            if (isLoaded) { return }
+            snodes.addAll(load())
+            snapshot = null
+            isLoaded = true
+        }
+    }
+
+    companion object {
+        private val sharedExecutor: ScheduledExecutorService by lazy { Executors.newSingleThreadScheduledExecutor() }
+    }
+}
@@ -2,9 +2,12 @@ package org.session.libsession.utilities
 
 import okhttp3.MultipartBody
 import okhttp3.Request
+import okhttp3.RequestBody
 import okio.Buffer
+import okio.Okio
 import org.session.libsignal.utilities.Base64
 import java.io.IOException
+import java.io.OutputStream
 import java.util.Locale
 
 internal fun Request.getHeadersForOnionRequest(): Map<String, Any> {
@@ -32,10 +35,8 @@ internal fun Request.getHeadersForOnionRequest(): Map<String, Any> {
 internal fun Request.getBodyForOnionRequest(): Any? {
     try {
         val copyOfThis = newBuilder().build()
-        val buffer = Buffer()
         val body = copyOfThis.body() ?: return null
-        body.writeTo(buffer)
-        val bodyAsData = buffer.readByteArray()
+        val bodyAsData = body.readBytes()
         if (body is MultipartBody) {
             val base64EncodedBody: String = Base64.encodeBytes(bodyAsData)
             return mapOf( "fileUpload" to base64EncodedBody )
@@ -49,3 +50,41 @@ internal fun Request.getBodyForOnionRequest(): Any? {
         return null
     }
 }
+
+/**
+ * Writes the body out to an array. If the length is known the body is written straight into an array of
+ * that size rather than into a [Buffer] which is then copied out, so large bodies (attachments) are only
+ * held in memory once.
+ */
+internal fun RequestBody.readBytes(): ByteArray {
+    val length = contentLength()
+    if (length < 0 || length > Int.MAX_VALUE) {
+        val buffer = Buffer()
+        writeTo(buffer)
+        return buffer.readByteArray()
+    }
+    val result = ByteArray(length.toInt())
+    var position = 0
+    // Only used if the body turns out to be longer than its content length
+    val overflow = Buffer()
+    val sink = Okio.buffer(Okio.sink(object : OutputStream() {
+
+        override fun write(b: Int) {
+            write(byteArrayOf(b.toByte()), 0, 1)
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            val count = minOf(len, result.size - position)
+            System.arraycopy(b, off, result, position, count)
+            position += count
+            if (count < len) { overflow.write(b, off + count, len - count) }
+        }
+    }))
+    writeTo(sink)
+    sink.flush()
+    return when {
+        overflow.size() > 0 -> result + overflow.readByteArray()
+        position < result.size -> result.copyOf(position)
+        else -> result
+    }
+}
@@ -2,7 +2,6 @@ package org.session.libsession.utilities
 
 import androidx.annotation.WorkerThread
 import org.session.libsignal.crypto.CipherUtil.CIPHER_LOCK
-import org.session.libsignal.utilities.ByteUtil
 import org.session.libsignal.utilities.Util
 import org.session.libsignal.utilities.Hex
 import org.whispersystems.curve25519.Curve25519
@@ -53,7 +52,11 @@ internal object AESGCM {
         synchronized(CIPHER_LOCK) {
             val cipher = Cipher.getInstance("AES/GCM/NoPadding")
             cipher.init(Cipher.ENCRYPT_MODE, SecretKeySpec(symmetricKey, "AES"), GCMParameterSpec(gcmTagSize, iv))
-            return ByteUtil.combine(iv, cipher.doFinal(plaintext))
+            // Encrypt straight into the result rather than combining the IV and ciphertext afterwards
+            val result = ByteArray(ivSize + cipher.getOutputSize(plaintext.size))
+            System.arraycopy(iv, 0, result, 0, ivSize)
+            val ciphertextSize = cipher.doFinal(plaintext, 0, plaintext.size, result, ivSize)
+            return if (ivSize + ciphertextSize == result.size) result else result.copyOf(ivSize + ciphertextSize)
         }
     }
 
@@ -15,6 +15,7 @@ import java.io.InputStream
 import java.nio.ByteBuffer
 import java.nio.ByteOrder
 import java.nio.ShortBuffer
+import java.util.concurrent.CancellationException
 import kotlin.jvm.Throws
 import kotlin.math.ceil
 import kotlin.math.roundToInt
@@ -36,6 +37,9 @@ import kotlin.math.sqrt
 class DecodedAudio {
 
     companion object {
+        /** The number of RMS values stored for an audio attachment's waveform. */
+        const val WAVEFORM_FRAMES = 64
+
         @JvmStatic
         @Throws(IOException::class)
         fun create(fd: FileDescriptor, startOffset: Long, size: Long): DecodedAudio {
@@ -50,8 +54,177 @@ class DecodedAudio {
             val mediaExtractor = MediaExtractor().apply { setDataSource(dataSource) }
             return DecodedAudio(mediaExtractor, dataSource.size)
         }
+
+        /**
+         * Computes the same RMS values as [calculateRms] while decoding, a buffer at a time, rather
+         * than keeping all of the decoded audio in memory first.
+         *
+         * @param isCancelled checked after each decoded buffer, stopping with a
+         * [CancellationException] once it returns true.
+         */
+        @JvmStatic
+        @JvmOverloads
+        @RequiresApi(api = Build.VERSION_CODES.M)
+        @Throws(IOException::class)
+        fun extractWaveform(dataSource: MediaDataSource, maxFrames: Int, isCancelled: () -> Boolean = { false }): Waveform {
+            val extractor = MediaExtractor().apply { setDataSource(dataSource) }
+            val mediaFormat = selectAudioTrack(extractor)
+            val channels = mediaFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
+            val duration = getDuration(mediaFormat)
+            val rmsCalculator = RmsCalculator(getExpectedNumSamples(mediaFormat, duration), channels, maxFrames)
+
+            decode(extractor, mediaFormat) { decodedSamples, size, _ ->
+                rmsCalculator.add(ByteBuffer.wrap(decodedSamples, 0, size).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer())
+                !isCancelled()
+            }
+            if (isCancelled()) throw CancellationException()
+
+            return Waveform(rmsCalculator.finish(), duration)
+        }
+
+        @Throws(IOException::class)
+        private fun selectAudioTrack(extractor: MediaExtractor): MediaFormat {
+            // Find and select the first audio track present in the file.
+            for (trackIndex in 0 until extractor.trackCount) {
+                val format = extractor.getTrackFormat(trackIndex)
+                if (format.getString(MediaFormat.KEY_MIME)!!.startsWith("audio/")) {
+                    extractor.selectTrack(trackIndex)
+                    return format
+                }
+            }
+            throw IOException("No audio track found in the data source.")
+        }
+
+        private fun getDuration(mediaFormat: MediaFormat): Long {
+            // On some old APIs (23) this field might be missing.
+            return if (mediaFormat.containsKey(MediaFormat.KEY_DURATION)) {
+                mediaFormat.getLong(MediaFormat.KEY_DURATION)
+            } else {
+                -1L
+            }
+        }
+
+        // Expected total number of samples per channel.
+        private fun getExpectedNumSamples(mediaFormat: MediaFormat, totalDuration: Long): Int {
+            return if (totalDuration >= 0) {
+                ((totalDuration / 1000000f) * mediaFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE) + 0.5f).toInt()
+            } else {
+                Int.MAX_VALUE
+            }
+        }
+
+        /**
+         * Decodes the selected track of [extractor], passing each buffer of 16 bit PCM to [onOutput]
+         * along with the number of bytes of it and the number of encoded bytes read so far. Stops at
+         * the end of the track or if [onOutput] returns false.
+         */
+        @Throws(IOException::class)
+        private fun decode(extractor: MediaExtractor, mediaFormat: MediaFormat, onOutput: (ByteArray, Int, Int) -> Boolean) {
+            val channels = mediaFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
+            val expectedNumSamples = getExpectedNumSamples(mediaFormat, getDuration(mediaFormat))
+
+            val codec = MediaCodec.createDecoderByType(mediaFormat.getString(MediaFormat.KEY_MIME)!!)
+            codec.configure(mediaFormat, null, null, 0)
+            codec.start()
+
+            try {
+                // Check if the track is in PCM 16 bit encoding.
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                    try {
+                        val pcmEncoding = codec.outputFormat.getInteger(MediaFormat.KEY_PCM_ENCODING)
+                        if (pcmEncoding != AudioFormat.ENCODING_PCM_16BIT) {
+                            throw IOException("Unsupported PCM encoding code: $pcmEncoding")
+                        }
+                    } catch (e: NullPointerException) {
+                        // If KEY_PCM_ENCODING is not specified, means it's ENCODING_PCM_16BIT.
+                    }
+                }
+
+                var decodedSamplesSize: Int = 0  // size of the output buffer containing decoded samples.
+                var decodedSamples: ByteArray? = null
+                var decodedSize: Long = 0
+                var sampleSize: Int
+                val info = MediaCodec.BufferInfo()
+                var presentationTime: Long
+                var totalSizeRead: Int = 0
+                var doneReading = false
+
+                var firstSampleData = true
+                while (true) {
+                    // read data from file and feed it to the decoder input buffers.
+                    val inputBufferIndex: Int = codec.dequeueInputBuffer(100)
+                    if (!doneReading && inputBufferIndex >= 0) {
+                        sampleSize = extractor.readSampleData(codec.getInputBuffer(inputBufferIndex)!!, 0)
+                        if (firstSampleData
+                                && mediaFormat.getString(MediaFormat.KEY_MIME)!! == "audio/mp4a-latm"
+                                && sampleSize == 2
+                        ) {
+                            // For some reasons on some devices (e.g. the Samsung S3) you should not
+                            // provide the first two bytes of an AAC stream, otherwise the MediaCodec will
+                            // crash. These two bytes do not contain music data but basic info on the
+                            // stream (e.g. channel configuration and sampling frequency), and skipping them
+                            // seems OK with other devices (MediaCodec has already been configured and
+                            // already knows these parameters).
+                            extractor.advance()
+                            totalSizeRead += sampleSize
+                        } else if (sampleSize < 0) {
+                            // All samples have been read.
+                            codec.queueInputBuffer(
+                                    inputBufferIndex, 0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM
+                            )
+                            doneReading = true
+                        } else {
+                            presentationTime = extractor.sampleTime
+                            codec.queueInputBuffer(inputBufferIndex, 0, sampleSize, presentationTime, 0)
+                            extractor.advance()
+                            totalSizeRead += sampleSize
+                        }
+                        firstSampleData = false
+                    }
+
+                    // Get decoded stream from the decoder output buffers.
+                    val outputBufferIndex: Int = codec.dequeueOutputBuffer(info, 100)
+                    if (outputBufferIndex >= 0 && info.size > 0) {
+                        if (decodedSamplesSize < info.size) {
+                            decodedSamplesSize = info.size
+                            decodedSamples = ByteArray(decodedSamplesSize)
+                        }
+                        val outputBuffer: ByteBuffer = codec.getOutputBuffer(outputBufferIndex)!!
+                        outputBuffer.get(decodedSamples!!, 0, info.size)
+                        outputBuffer.clear()
+                        if (!onOutput(decodedSamples, info.size, totalSizeRead)) {
+                            break
+                        }
+                        decodedSize += info.size
+                        codec.releaseOutputBuffer(outputBufferIndex, false)
+                    }
+
+                    if ((info.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0
+                            || (decodedSize / (2 * channels)) >= expectedNumSamples
+                    ) {
+                        // We got all the decoded data from the decoder. Stop here.
+                        // Theoretically dequeueOutputBuffer(info, ...) should have set info.flags to
+                        // MediaCodec.BUFFER_FLAG_END_OF_STREAM. However some phones (e.g. Samsung S3)
+                        // won't do that for some files (e.g. with mono AAC files), in which case subsequent
+                        // calls to dequeueOutputBuffer may result in the application crashing, without
+                        // even an exception being thrown... Hence the second check.
+                        // (for mono AAC files, the S3 will actually double each sample, as if the stream
+                        // was stereo. The resulting stream is half what it's supposed to be and with a much
+                        // lower pitch.)
+                        break
+                    }
+                }
+            } finally {
+                extractor.release()
+                codec.stop()
+                codec.release()
+            }
+        }
     }
 
+    /** RMS [values] as returned by [calculateRms], and the [duration] in microseconds (-1 if unknown). */
+    class Waveform(val values: ByteArray, val duration: Long)
+
     val dataSize: Long
 
     /** Average bit rate in kbps. */
@@ -93,168 +266,57 @@ class DecodedAudio {
     private constructor(extractor: MediaExtractor, size: Long) {
         dataSize = size
 
-        var mediaFormat: MediaFormat? = null
-        // Find and select the first audio track present in the file.
-        for (trackIndex in 0 until extractor.trackCount) {
-            val format = extractor.getTrackFormat(trackIndex)
-            if (format.getString(MediaFormat.KEY_MIME)!!.startsWith("audio/")) {
-                extractor.selectTrack(trackIndex)
-                mediaFormat = format
-                break
-            }
-        }
-        if (mediaFormat == null) {
-            throw IOException("No audio track found in the data source.")
-        }
-
+        val mediaFormat = selectAudioTrack(extractor)
         channels = mediaFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
         sampleRate = mediaFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE)
-        // On some old APIs (23) this field might be missing.
-        totalDuration = if (mediaFormat.containsKey(MediaFormat.KEY_DURATION)) {
-            mediaFormat.getLong(MediaFormat.KEY_DURATION)
-        } else {
-            -1L
-        }
-
-        // Expected total number of samples per channel.
-        val expectedNumSamples = if (totalDuration >= 0) {
-            ((totalDuration / 1000000f) * sampleRate + 0.5f).toInt()
-        } else {
-            Int.MAX_VALUE
-        }
-
-        val codec = MediaCodec.createDecoderByType(mediaFormat.getString(MediaFormat.KEY_MIME)!!)
-        codec.configure(mediaFormat, null, null, 0)
-        codec.start()
-
-        // Check if the track is in PCM 16 bit encoding.
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-            try {
-                val pcmEncoding = codec.outputFormat.getInteger(MediaFormat.KEY_PCM_ENCODING)
-                if (pcmEncoding != AudioFormat.ENCODING_PCM_16BIT) {
-                    throw IOException("Unsupported PCM encoding code: $pcmEncoding")
-                }
-            } catch (e: NullPointerException) {
-                // If KEY_PCM_ENCODING is not specified, means it's ENCODING_PCM_16BIT.
-            }
-        }
-
-        var decodedSamplesSize: Int = 0  // size of the output buffer containing decoded samples.
-        var decodedSamples: ByteArray? = null
-        var sampleSize: Int
-        val info = MediaCodec.BufferInfo()
-        var presentationTime: Long
-        var totalSizeRead: Int = 0
-        var doneReading = false
+        totalDuration = getDuration(mediaFormat)
 
         // Set the size of the decoded samples buffer to 1MB (~6sec of a stereo stream at 44.1kHz).
         // For longer streams, the buffer size will be increased later on, calculating a rough
         // estimate of the total size needed to store all the samples in order to resize the buffer
         // only once.
         var decodedBytes: ByteBuffer = ByteBuffer.allocate(1 shl 20)
-        var firstSampleData = true
-        while (true) {
-            // read data from file and feed it to the decoder input buffers.
-            val inputBufferIndex: Int = codec.dequeueInputBuffer(100)
-            if (!doneReading && inputBufferIndex >= 0) {
-                sampleSize = extractor.readSampleData(codec.getInputBuffer(inputBufferIndex)!!, 0)
-                if (firstSampleData
-                        && mediaFormat.getString(MediaFormat.KEY_MIME)!! == "audio/mp4a-latm"
-                        && sampleSize == 2
-                ) {
-                    // For some reasons on some devices (e.g. the Samsung S3) you should not
-                    // provide the first two bytes of an AAC stream, otherwise the MediaCodec will
-                    // crash. These two bytes do not contain music data but basic info on the
-                    // stream (e.g. channel configuration and sampling frequency), and skipping them
-                    // seems OK with other devices (MediaCodec has already been configured and
-                    // already knows these parameters).
-                    extractor.advance()
-                    totalSizeRead += sampleSize
-                } else if (sampleSize < 0) {
-                    // All samples have been read.
-                    codec.queueInputBuffer(
-                            inputBufferIndex, 0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM
-                    )
-                    doneReading = true
-                } else {
-                    presentationTime = extractor.sampleTime
-                    codec.queueInputBuffer(inputBufferIndex, 0, sampleSize, presentationTime, 0)
-                    extractor.advance()
-                    totalSizeRead += sampleSize
+        decode(extractor, mediaFormat) { decodedSamples, size, totalSizeRead ->
+            // Check if buffer is big enough. Resize it if it's too small.
+            if (decodedBytes.remaining() < size) {
+                // Getting a rough estimate of the total size, allocate 20% more, and
+                // make sure to allocate at least 5MB more than the initial size.
+                val position = decodedBytes.position()
+                var newSize = ((position * (1.0 * dataSize / totalSizeRead)) * 1.2).toInt()
+                if (newSize - position < size + 5 * (1 shl 20)) {
+                    newSize = position + size + 5 * (1 shl 20)
                 }
-                firstSampleData = false
-            }
-
-            // Get decoded stream from the decoder output buffers.
-            val outputBufferIndex: Int = codec.dequeueOutputBuffer(info, 100)
-            if (outputBufferIndex >= 0 && info.size > 0) {
-                if (decodedSamplesSize < info.size) {
-                    decodedSamplesSize = info.size
-                    decodedSamples = ByteArray(decodedSamplesSize)
-                }
-                val outputBuffer: ByteBuffer = codec.getOutputBuffer(outputBufferIndex)!!
-                outputBuffer.get(decodedSamples!!, 0, info.size)
-                outputBuffer.clear()
-                // Check if buffer is big enough. Resize it if it's too small.
-                if (decodedBytes.remaining() < info.size) {
-                    // Getting a rough estimate of the total size, allocate 20% more, and
-                    // make sure to allocate at least 5MB more than the initial size.
-                    val position = decodedBytes.position()
-                    var newSize = ((position * (1.0 * dataSize / totalSizeRead)) * 1.2).toInt()
-                    if (newSize - position < info.size + 5 * (1 shl 20)) {
-                        newSize = position + info.size + 5 * (1 shl 20)
-                    }
-                    var newDecodedBytes: ByteBuffer? = null
-                    // Try to allocate memory. If we are OOM, try to run the garbage collector.
-                    var retry = 10
-                    while (retry > 0) {
-                        try {
-                            newDecodedBytes = ByteBuffer.allocate(newSize)
-                            break
-                        } catch (e: OutOfMemoryError) {
-                            // setting android:largeHeap="true" in <application> seem to help not
-                            // reaching this section.
-                            retry--
-                        }
-                    }
-                    if (retry == 0) {
-                        // Failed to allocate memory... Stop reading more data and finalize the
-                        // instance with the data decoded so far.
+                var newDecodedBytes: ByteBuffer? = null
+                // Try to allocate memory. If we are OOM, try to run the garbage collector.
+                var retry = 10
+                while (retry > 0) {
+                    try {
+                        newDecodedBytes = ByteBuffer.allocate(newSize)
                         break
+                    } catch (e: OutOfMemoryError) {
+                        // setting android:largeHeap="true" in <application> seem to help not
+                        // reaching this section.
+                        retry--
                     }
-                    decodedBytes.rewind()
-                    newDecodedBytes!!.put(decodedBytes)
-                    decodedBytes = newDecodedBytes
-                    decodedBytes.position(position)
                 }
-                decodedBytes.put(decodedSamples, 0, info.size)
-                codec.releaseOutputBuffer(outputBufferIndex, false)
-            }
-
-            if ((info.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0
-                    || (decodedBytes.position() / (2 * channels)) >= expectedNumSamples
-            ) {
-                // We got all the decoded data from the decoder. Stop here.
-                // Theoretically dequeueOutputBuffer(info, ...) should have set info.flags to
-                // MediaCodec.BUFFER_FLAG_END_OF_STREAM. However some phones (e.g. Samsung S3)
-                // won't do that for some files (e.g. with mono AAC files), in which case subsequent
-                // calls to dequeueOutputBuffer may result in the application crashing, without
-                // even an exception being thrown... Hence the second check.
-                // (for mono AAC files, the S3 will actually double each sample, as if the stream
-                // was stereo. The resulting stream is half what it's supposed to be and with a much
-                // lower pitch.)
-                break
+                if (retry == 0) {
+                    // Failed to allocate memory... Stop reading more data and finalize the
+                    // instance with the data decoded so far.
+                    return@decode false
+                }
+                decodedBytes.rewind()
+                newDecodedBytes!!.put(decodedBytes)
+                decodedBytes = newDecodedBytes
+                decodedBytes.position(position)
             }
+            decodedBytes.put(decodedSamples, 0, size)
+            true
         }
         numSamples = decodedBytes.position() / (channels * 2)  // One sample = 2 bytes.
         decodedBytes.rewind()
         decodedBytes.order(ByteOrder.LITTLE_ENDIAN)
         this.decodedSamples = decodedBytes.asShortBuffer()
         avgBitRate = ((dataSize * 8) * (sampleRate.toFloat() / numSamples) / 1000).toInt()
-
-        extractor.release()
-        codec.stop()
-        codec.release()
     }
 
     fun calculateRms(maxFrames: Int): ByteArray {
@@ -277,7 +339,7 @@ class DecodedAudio {
  *
  * @return normalized RMS values as a signed byte array.
  */
-private fun calculateRms(samples: ShortBuffer, numSamples: Int, channels: Int, maxFrames: Int): ByteArray {
+internal fun calculateRms(samples: ShortBuffer, numSamples: Int, channels: Int, maxFrames: Int): ByteArray {
     val numFrames: Int
     val frameStep: Float
 
@@ -325,6 +387,71 @@ private fun calculateRms(samples: ShortBuffer, numSamples: Int, channels: Int, m
     return rmsValues.map { value -> normalizedFloatToByte(value) }.toByteArray()
 }
 
+/**
+ * Computes the same RMS values as [calculateRms] from interleaved samples added a buffer at a time,
+ * for [numSamples] samples per channel. Samples past those are ignored, and frames with no samples
+ * are left at zero.
+ */
+internal class RmsCalculator(private val numSamples: Int, private val channels: Int, maxFrames: Int) {
+
+    private val frameStep: Float
+    private val rmsValues: FloatArray
+
+    private var squaredFrameSum = 0.0
+    private var currentFrameIdx = 0
+    private var channelSampleIdx = 0
+    // The channel of the next sample, as a buffer needn't end on a whole set of channels
+    private var channel = 0
+
+    init {
+        val samplesPerChannel = numSamples / channels
+        if (samplesPerChannel <= maxFrames) {
+            frameStep = 1f
+            rmsValues = FloatArray(samplesPerChannel)
+        } else {
+            frameStep = numSamples / maxFrames.toFloat()
+            rmsValues = FloatArray(maxFrames)
+        }
+    }
+
+    fun add(samples: ShortBuffer) {
+        while (samples.hasRemaining()) {
+            val sample = samples.get()
+            if (channel == 0 && channelSampleIdx < numSamples) {
+                addFirstChannelSample(sample)
+            }
+            channel = (channel + 1) % channels
+        }
+    }
+
+    private fun addFirstChannelSample(sample: Short) {
+        val frameIdx = (channelSampleIdx / frameStep).toInt()
+        channelSampleIdx++
+        if (frameIdx >= rmsValues.size) return
+
+        if (currentFrameIdx != frameIdx) {
+            // Calculate RMS value for the previous frame.
+            rmsValues[currentFrameIdx] = sqrt(squaredFrameSum.toFloat())
+            squaredFrameSum = 0.0
+            currentFrameIdx = frameIdx
+        }
+
+        val samplesInCurrentFrame = ceil((currentFrameIdx + 1) * frameStep) - ceil(currentFrameIdx * frameStep)
+        squaredFrameSum += (sample * sample) / samplesInCurrentFrame
+    }
+
+    fun finish(): ByteArray {
+        if (rmsValues.isEmpty()) return ByteArray(0)
+
+        // Calculate RMS value for the last frame.
+        rmsValues[currentFrameIdx] = sqrt(squaredFrameSum.toFloat())
+        normalizeArray(rmsValues)
+
+        // Convert normalized result to a signed byte array.
+        return rmsValues.map { value -> normalizedFloatToByte(value) }.toByteArray()
+    }
+}
+
 /**
  * Normalizes the array's values to [0..1] range.
  */
@@ -6,10 +6,14 @@ import org.session.libsignal.utilities.HTTP
 import org.session.libsignal.utilities.Log
 import java.io.File
 import java.io.FileOutputStream
+import java.io.IOException
 import java.io.OutputStream
 
 object DownloadUtilities {
 
+    // Large files are downloaded in ranges of this size so an interrupted download only loses the range in flight
+    private const val rangeSize = 2L * 1024 * 1024
+
     /**
      * Blocks the calling thread.
      */
@@ -31,6 +35,69 @@ object DownloadUtilities {
         if (exception != null) { throw exception }
     }
 
+    /**
+     * Downloads the file at [url], which is expected to be [length] bytes long, into [destination].
+     * Large files are downloaded in ranges appended to [destination] as they arrive, and if
+     * [destination] already holds the start of the file (from an earlier attempt that was interrupted)
+     * the download continues from the end of it rather than starting over.
+     *
+     * Blocks the calling thread.
+     */
+    @JvmStatic
+    fun downloadFile(destination: File, url: String, length: Long) {
+        if (length <= rangeSize) { return downloadFile(destination, url) }
+        val fileID = HttpUrl.parse(url)!!.pathSegments().last()
+        val isComplete = downloadRanges(destination, length, rangeSize) { range ->
+            try {
+                FileServerApi.download(fileID, range).get()
+            } catch (e: Exception) {
+                when (e) {
+                    // No need for the stack trace for HTTP errors
+                    is HTTP.HTTPRequestFailedException -> Log.e("Loki", "Couldn't download attachment range due to error: ${e.message}")
+                    else -> Log.e("Loki", "Couldn't download attachment range", e)
+                }
+                throw e
+            }
+        }
+        if (!isComplete) {
+            Log.w("Loki", "Attachment is larger than expected, downloading it in full.")
+            downloadFile(destination, url)
+        }
+    }
+
+    /**
+     * Appends the ranges of a [length] byte file fetched by [fetch] to [destination], starting from the
+     * end of what's already there. Each range gets two attempts.
+     *
+     * @return false if the file turned out to be longer than [length], in which case [destination] is left
+     * as it is.
+     * @throws IOException if a range ends before [length] is reached, leaving what arrived in [destination]
+     * so a later attempt can continue from there.
+     */
+    internal fun downloadRanges(destination: File, length: Long, rangeSize: Long, fetch: (LongRange) -> ByteArray): Boolean {
+        if (destination.length() > length) { destination.delete() }
+        while (destination.length() < length) {
+            val start = destination.length()
+            // The last range asks for a byte past the expected end, to tell whether the file is longer than expected
+            val range = start until minOf(start + rangeSize, length + 1)
+            val rangeLength = range.last - range.first + 1
+            val data = try { fetch(range) } catch (e: Exception) { fetch(range) }
+            if (data.size > rangeLength) {
+                // The server ignored the range and sent the whole file
+                if (data.size.toLong() != length) { return false }
+                destination.writeBytes(data)
+                return true
+            }
+            if (start + data.size > length) { return false }
+            FileOutputStream(destination, true).use { it.write(data) }
+            // Only the last range, which asks for a byte past the end, should come back short
+            if (data.size < rangeLength && destination.length() < length) {
+                throw IOException("Range $range ended at ${start + data.size} of $length bytes")
+            }
+        }
+        return true
+    }
+
     /**
      * Blocks the calling thread.
      */
@@ -39,9 +106,7 @@ object DownloadUtilities {
         val url = HttpUrl.parse(urlAsString)!!
         val fileID = url.pathSegments().last()
         try {
-            FileServerApi.download(fileID).get().let {
-                outputStream.write(it)
-            }
+            FileServerApi.download(fileID, outputStream).get()
         } catch (e: Exception) {
             when (e) {
                 // No need for the stack trace for HTTP errors
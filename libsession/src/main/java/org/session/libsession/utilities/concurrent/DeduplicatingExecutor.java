@@ -0,0 +1,72 @@
+package org.session.libsession.utilities.concurrent;
+
+import androidx.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Runs tasks on an executor, sharing a task between everyone who asks for the same key while it's
+ * queued or running rather than running it again.
+ *
+ * {@link #submit} queues a task to run in the background. {@link #run} is for a caller that needs
+ * the result now: a task that's still queued is run straight away on the calling thread instead of
+ * waiting its turn, and one that's already running is waited for.
+ */
+public class DeduplicatingExecutor<K, V> {
+
+  private final Executor              executor;
+  private final Map<K, FutureTask<V>> tasks = new HashMap<>();
+
+  public DeduplicatingExecutor(@NonNull Executor executor) {
+    this.executor = executor;
+  }
+
+  public @NonNull Future<V> submit(@NonNull K key, @NonNull Callable<V> callable) {
+    FutureTask<V> task;
+
+    synchronized (tasks) {
+      task = tasks.get(key);
+      if (task != null) return task;
+
+      task = newTask(key, callable);
+      tasks.put(key, task);
+    }
+
+    executor.execute(task);
+    return task;
+  }
+
+  public V run(@NonNull K key, @NonNull Callable<V> callable) throws InterruptedException, ExecutionException {
+    FutureTask<V> task;
+
+    synchronized (tasks) {
+      task = tasks.get(key);
+
+      if (task == null) {
+        task = newTask(key, callable);
+        tasks.put(key, task);
+      }
+    }
+
+    // Does nothing if the task has already been started, in which case this waits for it below
+    task.run();
+    return task.get();
+  }
+
+  private @NonNull FutureTask<V> newTask(@NonNull K key, @NonNull Callable<V> callable) {
+    return new FutureTask<V>(callable) {
+      @Override
+      protected void done() {
+        synchronized (tasks) {
+          if (tasks.get(key) == this) tasks.remove(key);
+        }
+      }
+    };
+  }
+}
@@ -2,6 +2,8 @@ package org.session.libsession.utilities.concurrent;
 
 import androidx.annotation.NonNull;
 
+import org.session.libsession.utilities.LinkedBlockingLifoQueue;
+
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -22,19 +24,38 @@ public class SignalExecutors {
     return executor;
   }
 
+  /**
+   * A pool of low priority threads that runs the most recently queued tasks first, for work where
+   * the latest requests are the ones the user is waiting on (like thumbnails for what's on screen).
+   */
+  public static ExecutorService newCachedLifoExecutor(final String name, int threads) {
+    NumberedThreadFactory threadFactory = new NumberedThreadFactory(name, Thread.MIN_PRIORITY);
+    ThreadPoolExecutor    executor      = new ThreadPoolExecutor(threads, threads, 15, TimeUnit.SECONDS, new LinkedBlockingLifoQueue<>(), threadFactory);
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
   private static class NumberedThreadFactory implements ThreadFactory {
 
     private final String        baseName;
+    private final int           priority;
     private final AtomicInteger counter;
 
     NumberedThreadFactory(@NonNull String baseName) {
+      this(baseName, Thread.NORM_PRIORITY);
+    }
+
+    NumberedThreadFactory(@NonNull String baseName, int priority) {
       this.baseName = baseName;
+      this.priority = priority;
       this.counter  = new AtomicInteger();
     }
 
     @Override
     public Thread newThread(@NonNull Runnable r) {
-      return new Thread(r, baseName + "-" + counter.getAndIncrement());
+      Thread thread = new Thread(r, baseName + "-" + counter.getAndIncrement());
+      thread.setPriority(priority);
+      return thread;
     }
   }
 }
@@ -0,0 +1,15 @@
+package org.session.libsession.messaging.jobs
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.session.libsession.messaging.jobs.BatchMessageReceiveJob.Companion.chunkedBy
+
+class BatchMessageReceiveJobTest {
+
+    @Test
+    fun `it should split a list into runs of the same key`() {
+        val runs = listOf(1, 3, 2, 4, 6, 5).chunkedBy { it % 2 == 0 }
+        assertEquals(listOf(listOf(1, 3), listOf(2, 4, 6), listOf(5)), runs)
+        assertEquals(emptyList<List<Int>>(), emptyList<Int>().chunkedBy { it })
+    }
+}
@@ -0,0 +1,22 @@
+package org.session.libsession.messaging.utilities
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.session.libsignal.protos.SignalServiceProtos.Envelope
+import kotlin.random.Random
+
+class MessageWrapperTest {
+
+    private fun wrap(index: Int, size: Int): ByteArray =
+        MessageWrapper.wrap(Envelope.Type.SESSION_MESSAGE, 1_000L + index, "05" + "ab".repeat(32), Random(index).nextBytes(size))
+
+    @Test
+    fun `it should unwrap a message from part of a larger buffer`() {
+        listOf(0, 1, 500, 100_000).forEachIndexed { index, size ->
+            val data = wrap(index, size)
+            // Surround the message with bytes that aren't part of it, as a reused buffer would
+            val buffer = Random(index).nextBytes(7) + data + Random(index).nextBytes(100)
+            assertEquals(MessageWrapper.unwrap(data), MessageWrapper.unwrap(buffer, 7, data.size))
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package org.session.libsession.snode
+
+import nl.komponents.kovenant.Deferred
+import nl.komponents.kovenant.Promise
+import nl.komponents.kovenant.deferred
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.mockito.kotlin.any
+import org.mockito.kotlin.doAnswer
+import org.mockito.kotlin.mock
+import org.session.libsignal.utilities.Snode
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+
+class HedgedRequestDispatcherTest {
+
+    private val slowSnode = Snode("https://10.0.0.1", 22021, null)
+    private val fastSnode = Snode("https://10.0.0.2", 22021, null)
+
+    // Time only moves when a test moves it, so latencies don't depend on how loaded the machine is
+    @Volatile private var now = 0L
+
+    private class ScheduledHedge(val delay: Long, val task: Runnable)
+
+    private val scheduledHedges = CopyOnWriteArrayList<ScheduledHedge>()
+    private val timer = mock<ScheduledExecutorService> {
+        on { schedule(any<Runnable>(), any(), any()) } doAnswer { invocation ->
+            scheduledHedges += ScheduledHedge(invocation.getArgument(1), invocation.getArgument(0))
+            mock<ScheduledFuture<*>>()
+        }
+    }
+
+    private class Request(val snode: Snode, val response: Deferred<String, Exception>)
+
+    private val requests = CopyOnWriteArrayList<Request>()
+
+    private fun send(snode: Snode): Promise<String, Exception> {
+        val response = deferred<String, Exception>()
+        requests += Request(snode, response)
+        return response.promise
+    }
+
+    private fun dispatcher(minimumHedgeDelay: Long, defaultHedgeDelay: Long) =
+        HedgedRequestDispatcher(minimumHedgeDelay = minimumHedgeDelay, defaultHedgeDelay = defaultHedgeDelay, timer = timer, clock = { now })
+
+    /**
+     * Fires the hedge scheduled for the latest request, as the timer would once its delay passed.
+     */
+    private fun fireHedge() {
+        val hedge = scheduledHedges.last()
+        now += hedge.delay
+        hedge.task.run()
+    }
+
+    /**
+     * Completes [request] and waits for the callbacks the dispatcher attached to it. Kovenant runs
+     * callbacks one at a time in the order they were added, so once ours has run, so have those.
+     */
+    private fun respond(request: Request, failure: Exception? = null) {
+        if (failure == null) request.response.resolve(request.snode.ip) else request.response.reject(failure)
+        val latch = CountDownLatch(1)
+        request.response.promise.always { latch.countDown() }
+        assertTrue(latch.await(5, TimeUnit.SECONDS))
+    }
+
+    private fun p99(latencies: List<Long>): Long {
+        val sorted = latencies.sorted()
+        return sorted[(sorted.size * 99 / 100).coerceAtMost(sorted.size - 1)]
+    }
+
+    @Test
+    fun `it should cut tail latency when one snode is occasionally slow`() {
+        val requestCount = 100
+        val dispatcher = dispatcher(minimumHedgeDelay = 50L, defaultHedgeDelay = 50L)
+        val latencies = (1..requestCount).map { index ->
+            val start = now
+            val result = dispatcher.execute(listOf(slowSnode, fastSnode), ::send)
+            val primary = requests.last()
+            // Every 50th request to the slow snode stalls, rarely enough to stay above the 95th percentile
+            if (index % 50 == 0) {
+                fireHedge()
+                val hedge = requests.last()
+                assertEquals(fastSnode, hedge.snode)
+                now += 10L
+                respond(hedge)
+                assertEquals(fastSnode, result.get().first)
+                val latency = now - start
+                now = start + 1000L
+                respond(primary)
+                latency
+            } else {
+                now += 10L
+                respond(primary)
+                assertEquals(slowSnode, result.get().first)
+                now - start
+            }
+        }
+        assertEquals("p99 latency", 60L, p99(latencies))
+        // Only the stalled requests should have been hedged
+        assertEquals(requestCount, requests.count { it.snode == slowSnode })
+        assertEquals(requestCount / 50, requests.count { it.snode == fastSnode })
+    }
+
+    @Test
+    fun `it should not hedge when the first snode responds in time`() {
+        val requestCount = 50
+        val dispatcher = dispatcher(minimumHedgeDelay = 500L, defaultHedgeDelay = 500L)
+        repeat(requestCount) {
+            val result = dispatcher.execute(listOf(slowSnode, fastSnode), ::send)
+            now += 5L
+            respond(requests.last())
+            assertEquals(slowSnode, result.get().first)
+            // The timer may still go off after the response arrived
+            fireHedge()
+        }
+        assertEquals(requestCount, requests.size)
+        assertTrue(requests.none { it.snode == fastSnode })
+    }
+
+    @Test
+    fun `it should fall back to the second snode immediately when the first one fails`() {
+        val dispatcher = dispatcher(minimumHedgeDelay = 5000L, defaultHedgeDelay = 5000L)
+        val result = dispatcher.execute(listOf(slowSnode, fastSnode), ::send)
+        respond(requests.single(), Exception("Unreachable"))
+        // The fallback is sent from the failure callback, before the hedge delay has elapsed
+        val fallback = requests.last()
+        assertEquals(fastSnode, fallback.snode)
+        respond(fallback)
+        assertEquals(fastSnode, result.get().first)
+        fireHedge()
+        assertEquals(2, requests.size)
+    }
+
+    @Test
+    fun `it should fail once every request has failed`() {
+        val dispatcher = dispatcher(minimumHedgeDelay = 50L, defaultHedgeDelay = 50L)
+        val result = dispatcher.execute(listOf(slowSnode, fastSnode), ::send)
+        fireHedge()
+        val (primary, hedge) = requests
+        respond(primary, Exception("Unreachable"))
+        assertFalse(result.isDone())
+        respond(hedge, Exception("Unreachable"))
+        assertTrue(result.isFailure())
+    }
+
+    @Test
+    fun `it should use the latency percentile as the hedge delay`() {
+        val dispatcher = HedgedRequestDispatcher(percentile = 0.9, minimumHedgeDelay = 0L, defaultHedgeDelay = 1234L, timer = timer)
+        assertEquals(1234L, dispatcher.hedgeDelay())
+        (1L..100L).forEach { dispatcher.recordLatency(it) }
+        assertEquals(90L, dispatcher.hedgeDelay())
+    }
+
+    @Test
+    fun `it should sample the latency of requests that lose to the hedge`() {
+        val dispatcher = dispatcher(minimumHedgeDelay = 0L, defaultHedgeDelay = 50L)
+        repeat(20) {
+            val start = now
+            val result = dispatcher.execute(listOf(slowSnode, fastSnode), ::send)
+            fireHedge()
+            val (primary, hedge) = requests.takeLast(2)
+            now += 10L
+            respond(hedge)
+            assertEquals(fastSnode, result.get().first)
+            // Let the slow request finish after it has lost
+            now = maxOf(now, start + 300L)
+            respond(primary)
+        }
+        assertTrue("Hedge delay was ${dispatcher.hedgeDelay()}ms", dispatcher.hedgeDelay() >= 300L)
+    }
+}
@@ -0,0 +1,81 @@
+package org.session.libsession.snode
+
+import nl.komponents.kovenant.Deferred
+import nl.komponents.kovenant.Promise
+import nl.komponents.kovenant.deferred
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executors
+
+class OnionPathWarmerTest {
+
+    private val executor = Executors.newSingleThreadScheduledExecutor()
+
+    /**
+     * Stands in for path building; every warm-up stays in flight until it's completed by the test.
+     */
+    private class FakePathBuilder {
+        val warmUps = CopyOnWriteArrayList<Deferred<Unit, Exception>>()
+
+        fun warmUp(): Promise<Unit, Exception> {
+            val deferred = deferred<Unit, Exception>()
+            warmUps.add(deferred)
+            return deferred.promise
+        }
+    }
+
+    private val pathBuilder = FakePathBuilder()
+    private val warmer = OnionPathWarmer(pathBuilder::warmUp, debounceMillis = 20L, executor = executor)
+
+    @After
+    fun tearDown() {
+        executor.shutdownNow()
+    }
+
+    private fun settle() = Thread.sleep(150)
+
+    @Test
+    fun `it should warm up paths when connectivity is regained`() {
+        warmer.onConnectivityChanged(false)
+        settle()
+        assertEquals(0, pathBuilder.warmUps.size)
+        warmer.onConnectivityChanged(true)
+        settle()
+        assertEquals(1, pathBuilder.warmUps.size)
+    }
+
+    @Test
+    fun `it should debounce bursts of connectivity changes`() {
+        repeat(5) { warmer.onConnectivityChanged(true) }
+        settle()
+        assertEquals(1, pathBuilder.warmUps.size)
+    }
+
+    @Test
+    fun `it should not warm up after connectivity is lost again`() {
+        warmer.onConnectivityChanged(true)
+        warmer.onConnectivityChanged(false)
+        warmer.onPathsStale()
+        settle()
+        assertEquals(0, pathBuilder.warmUps.size)
+    }
+
+    @Test
+    fun `it should run a single follow up warm up for triggers during a warm up`() {
+        warmer.onConnectivityChanged(true)
+        settle()
+        assertEquals(1, pathBuilder.warmUps.size)
+        warmer.onPathsStale()
+        warmer.onConnectivityChanged(true)
+        settle()
+        assertEquals(1, pathBuilder.warmUps.size)
+        pathBuilder.warmUps[0].reject(Exception("Couldn't reach guard snode"))
+        settle()
+        assertEquals(2, pathBuilder.warmUps.size)
+        pathBuilder.warmUps[1].resolve(Unit)
+        settle()
+        assertEquals(2, pathBuilder.warmUps.size)
+    }
+}
@@ -0,0 +1,111 @@
+package org.session.libsession.snode
+
+import com.sun.net.httpserver.HttpServer
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.mockito.kotlin.any
+import org.mockito.kotlin.doAnswer
+import org.mockito.kotlin.doReturn
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.never
+import org.mockito.kotlin.verify
+import org.session.libsignal.database.LokiAPIDatabaseProtocol
+import org.session.libsignal.utilities.Broadcaster
+import org.session.libsignal.utilities.ForkInfo
+import org.session.libsignal.utilities.Log
+import org.session.libsignal.utilities.Snode
+import java.net.InetSocketAddress
+import java.net.ServerSocket
+import java.util.Collections
+
+class OnionRequestAPITest {
+
+    // Answers the guard snode tests for every snode on the loopback network
+    private val server = HttpServer.create(InetSocketAddress(0), 0)
+    private val testedSnodes = Collections.synchronizedList(mutableListOf<String>())
+    // Nothing listens on this port, so a guard snode on it can't be reached
+    private val closedPort = ServerSocket(0).use { it.localPort }
+
+    private fun snode(host: Int, port: Int = server.address.port) = Snode("http://127.0.0.$host", port, null)
+
+    private val pool = (10 until 30).map { snode(it) }.toSet()
+    private val reachablePath = listOf(snode(2), snode(4), snode(5))
+    private val unreachablePath = listOf(snode(3, closedPort), snode(6), snode(7))
+
+    @Volatile private var storedPaths = listOf<List<Snode>>()
+    private val broadcaster = mock<Broadcaster>()
+
+    @Before
+    fun setUp() {
+        server.createContext("/get_stats/v1") { exchange ->
+            testedSnodes += exchange.localAddress.address.hostAddress
+            val response = """{"version":"2.5.0"}""".toByteArray()
+            exchange.sendResponseHeaders(200, response.size.toLong())
+            exchange.responseBody.use { it.write(response) }
+        }
+        server.start()
+        val storage = mock<LokiAPIDatabaseProtocol> {
+            on { getForkInfo() } doReturn ForkInfo(19, 0)
+            on { getSnodePool() } doReturn pool
+            on { getOnionRequestPaths() } doAnswer { storedPaths }
+            on { setOnionRequestPaths(any()) } doAnswer { storedPaths = it.getArgument(0) }
+            on { clearOnionRequestPaths() } doAnswer { storedPaths = listOf() }
+        }
+        SnodeModule.shared = SnodeModule(storage, broadcaster)
+        Log.initialize(mock())
+        SnodeAPI.snodePool = pool
+    }
+
+    @After
+    fun tearDown() {
+        OnionRequestAPI.paths = listOf()
+        OnionRequestAPI.guardSnodes = setOf()
+        server.stop(0)
+    }
+
+    private fun usePaths(vararg paths: List<Snode>) {
+        OnionRequestAPI.paths = paths.toList()
+        OnionRequestAPI.guardSnodes = paths.map { it[0] }.toSet()
+    }
+
+    @Test
+    fun `it should keep paths whose guard snodes are reachable`() {
+        val otherReachablePath = listOf(snode(3), snode(6), snode(7))
+        usePaths(reachablePath, otherReachablePath)
+        OnionRequestAPI.warmUpPaths().get()
+        assertEquals(listOf(reachablePath, otherReachablePath), OnionRequestAPI.paths)
+        assertEquals(setOf("127.0.0.2", "127.0.0.3"), testedSnodes.toSet())
+        verify(broadcaster, never()).broadcast("buildingPaths")
+    }
+
+    @Test
+    fun `it should replace a path whose guard snode can't be reached`() {
+        usePaths(reachablePath, unreachablePath)
+        OnionRequestAPI.warmUpPaths().get()
+        val paths = OnionRequestAPI.paths
+        assertEquals(OnionRequestAPI.targetPathCount, paths.size)
+        assertTrue(paths.contains(reachablePath))
+        val newPath = paths.single { it != reachablePath }
+        assertEquals(3, newPath.size)
+        assertTrue(pool.containsAll(newPath))
+        assertFalse(OnionRequestAPI.guardSnodes.contains(unreachablePath[0]))
+        // The replacement's guard snode has to have passed a test of its own
+        assertTrue(testedSnodes.contains(newPath[0].address.removePrefix("http://")))
+        assertEquals(paths, storedPaths)
+    }
+
+    @Test
+    fun `it should build paths when there are none`() {
+        usePaths()
+        OnionRequestAPI.warmUpPaths().get()
+        val paths = OnionRequestAPI.paths
+        assertEquals(OnionRequestAPI.targetPathCount, paths.size)
+        // No snode should be shared between paths
+        assertEquals(paths.sumOf { it.size }, paths.flatten().toSet().size)
+        assertTrue(pool.containsAll(paths.flatten()))
+    }
+}
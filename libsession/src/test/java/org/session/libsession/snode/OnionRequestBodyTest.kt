@@ -0,0 +1,83 @@
+package org.session.libsession.snode
+
+import okhttp3.MediaType
+import okhttp3.RequestBody
+import okio.BufferedSink
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.session.libsession.snode.OnionRequestAPI.getBody
+import org.session.libsession.utilities.readBytes
+import org.session.libsignal.streams.DigestingRequestBody
+import org.session.libsignal.streams.PlaintextOutputStreamFactory
+import java.io.ByteArrayInputStream
+import java.lang.management.ManagementFactory
+import kotlin.random.Random
+
+class OnionRequestBodyTest {
+
+    private val largeBody = Random(1).nextBytes(10_000_000)
+
+    // The plaintext of a v4 onion response: `l123:jsone` or `l123:json456:bodye`
+    private fun response(body: ByteArray?): Pair<ByteArray, Int> {
+        val info = """{"code":200}""".toByteArray()
+        val prefix = "l${info.size}:".toByteArray() + info
+        val plaintext = if (body != null) prefix + "${body.size}:".toByteArray() + body + "e".toByteArray() else prefix + "e".toByteArray()
+        return plaintext to info.size
+    }
+
+    private fun getBody(plaintext: ByteArray, infoLength: Int): ByteArray =
+        plaintext.getBody(infoLength, "l$infoLength".length + 1 + infoLength)
+
+    private fun allocatedBytes(block: () -> Unit): Long {
+        val threads = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val before = threads.getThreadAllocatedBytes(Thread.currentThread().id)
+        block()
+        return threads.getThreadAllocatedBytes(Thread.currentThread().id) - before
+    }
+
+    @Test
+    fun `it should extract the body of a response`() {
+        val body = "a body: with separators".toByteArray()
+        val (plaintext, infoLength) = response(body)
+        assertArrayEquals(body, getBody(plaintext, infoLength))
+    }
+
+    @Test
+    fun `it should return an empty body if the response has none`() {
+        val (plaintext, infoLength) = response(null)
+        assertEquals(0, getBody(plaintext, infoLength).size)
+    }
+
+    @Test
+    fun `it should extract a large body with a single copy`() {
+        val (plaintext, infoLength) = response(largeBody)
+        var body = ByteArray(0)
+        val allocated = allocatedBytes { body = getBody(plaintext, infoLength) }
+        assertArrayEquals(largeBody, body)
+        assertTrue("Allocated $allocated bytes", allocated < largeBody.size * 1.1)
+    }
+
+    @Test
+    fun `it should write an attachment body into a single array`() {
+        val requestBody = DigestingRequestBody(ByteArrayInputStream(largeBody), PlaintextOutputStreamFactory(), "application/octet-stream", largeBody.size.toLong(), null)
+        var bytes = ByteArray(0)
+        val allocated = allocatedBytes { bytes = requestBody.readBytes() }
+        assertArrayEquals(largeBody, bytes)
+        assertTrue("Allocated $allocated bytes", allocated < largeBody.size * 1.1)
+    }
+
+    @Test
+    fun `it should write a request body whose content length is wrong`() {
+        val data = "0123456789".toByteArray()
+        fun body(contentLength: Long) = object : RequestBody() {
+            override fun contentType() = MediaType.get("application/octet-stream")
+            override fun contentLength() = contentLength
+            override fun writeTo(sink: BufferedSink) { sink.write(data) }
+        }
+        assertArrayEquals(data, body(4).readBytes())
+        assertArrayEquals(data, body(20).readBytes())
+        assertArrayEquals(data, body(-1).readBytes())
+    }
+}
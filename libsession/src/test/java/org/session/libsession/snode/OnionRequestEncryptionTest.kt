@@ -0,0 +1,73 @@
+package org.session.libsession.snode
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.session.libsession.utilities.AESGCM
+import org.session.libsignal.utilities.JsonUtil
+import org.session.libsignal.utilities.toHexString
+import org.whispersystems.curve25519.Curve25519
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import javax.crypto.Cipher
+import javax.crypto.spec.GCMParameterSpec
+import javax.crypto.spec.SecretKeySpec
+import kotlin.random.Random
+
+class OnionRequestEncryptionTest {
+
+    private val json = mapOf("destination" to "a".repeat(64), "ephemeral_key" to "b".repeat(64))
+
+    // The layout encode produced before it wrote into a presized array
+    private fun concatenatedEncoding(ciphertext: ByteArray, json: Map<*, *>): ByteArray {
+        val ciphertextSizeAsData = ByteBuffer.allocate(Int.SIZE_BYTES).order(ByteOrder.LITTLE_ENDIAN).putInt(ciphertext.size).array()
+        return ciphertextSizeAsData + ciphertext + JsonUtil.toJson(json).toByteArray()
+    }
+
+    @Test
+    fun `it should encode a layer as before`() {
+        listOf(0, 1, 255, 256, 65_537, 1_000_000).forEach { size ->
+            val ciphertext = Random(size).nextBytes(size)
+            assertArrayEquals("Size $size", concatenatedEncoding(ciphertext, json), OnionRequestEncryption.encode(ciphertext, json))
+        }
+    }
+
+    @Test
+    fun `it should encode an empty json payload`() {
+        val ciphertext = Random(1).nextBytes(100)
+        assertArrayEquals(concatenatedEncoding(ciphertext, mapOf("headers" to "")), OnionRequestEncryption.encode(ciphertext, mapOf("headers" to "")))
+    }
+
+    @Test
+    fun `it should decrypt what it encrypts`() {
+        val symmetricKey = Random(1).nextBytes(32)
+        listOf(0, 1, 15, 16, 17, 100_000).forEach { size ->
+            val plaintext = Random(size).nextBytes(size)
+            val ivAndCiphertext = AESGCM.encrypt(plaintext, symmetricKey)
+            assertEquals(AESGCM.ivSize + size + AESGCM.gcmTagSize / 8, ivAndCiphertext.size)
+            assertArrayEquals("Size $size", plaintext, AESGCM.decrypt(ivAndCiphertext, symmetricKey))
+        }
+    }
+
+    @Test
+    fun `it should write the iv ahead of the ciphertext`() {
+        val symmetricKey = Random(2).nextBytes(32)
+        val plaintext = Random(3).nextBytes(1_000)
+        val ivAndCiphertext = AESGCM.encrypt(plaintext, symmetricKey)
+        // Decrypt independently of AESGCM.decrypt to check the layout the previous combine produced
+        val iv = ivAndCiphertext.copyOfRange(0, AESGCM.ivSize)
+        val cipher = Cipher.getInstance("AES/GCM/NoPadding")
+        cipher.init(Cipher.DECRYPT_MODE, SecretKeySpec(symmetricKey, "AES"), GCMParameterSpec(AESGCM.gcmTagSize, iv))
+        assertArrayEquals(plaintext, cipher.doFinal(ivAndCiphertext, AESGCM.ivSize, ivAndCiphertext.size - AESGCM.ivSize))
+    }
+
+    @Test
+    fun `it should decrypt a layer encrypted for a public key`() {
+        val keyPair = Curve25519.getInstance(Curve25519.BEST).generateKeyPair()
+        val plaintext = OnionRequestEncryption.encode(Random(4).nextBytes(10_000), json)
+        val result = AESGCM.encrypt(plaintext, keyPair.publicKey.toHexString())
+        val symmetricKey = AESGCM.generateSymmetricKey(result.ephemeralPublicKey, keyPair.privateKey)
+        assertArrayEquals(result.symmetricKey, symmetricKey)
+        assertArrayEquals(plaintext, AESGCM.decrypt(result.ciphertext, symmetricKey))
+    }
+}
@@ -0,0 +1,57 @@
+package org.session.libsession.snode
+
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+import org.mockito.kotlin.doReturn
+import org.mockito.kotlin.mock
+import org.session.libsession.messaging.utilities.MessageWrapper
+import org.session.libsignal.database.LokiAPIDatabaseProtocol
+import org.session.libsignal.protos.SignalServiceProtos.Envelope
+import org.session.libsignal.utilities.Base64
+import org.session.libsignal.utilities.ForkInfo
+import org.session.libsignal.utilities.Log
+import kotlin.random.Random
+
+class SnodeAPITest {
+
+    @Before
+    fun setUp() {
+        val storage = mock<LokiAPIDatabaseProtocol> { on { getForkInfo() } doReturn ForkInfo(19, 0) }
+        SnodeModule.shared = SnodeModule(storage, mock())
+        Log.initialize(mock())
+    }
+
+    // Sizes go up and down so that the shared buffer is both grown and reused with stale bytes past the end
+    private val sizes = listOf(64, 100_000, 1, 3_000, 500, 250_000, 0, 64)
+
+    private fun rawMessage(index: Int, size: Int): Map<String, Any> {
+        val content = Random(index).nextBytes(size)
+        val data = MessageWrapper.wrap(Envelope.Type.SESSION_MESSAGE, 1_000L + index, "05" + "ab".repeat(32), content)
+        return mapOf("data" to Base64.encodeBytes(data), "hash" to "hash$index")
+    }
+
+    @Test
+    fun `it should parse a batch of messages of mixed sizes`() {
+        val rawMessages = sizes.mapIndexed { index, size -> rawMessage(index, size) }
+        val envelopes = SnodeAPI.parseEnvelopes(rawMessages)
+        assertEquals(rawMessages.size, envelopes.size)
+        envelopes.forEachIndexed { index, (envelope, hash) ->
+            assertEquals(MessageWrapper.unwrap(Base64.decode(rawMessages[index]["data"] as String)), envelope)
+            assertEquals(sizes[index], envelope.content.size())
+            assertEquals("hash$index", hash)
+        }
+    }
+
+    @Test
+    fun `it should skip messages that can't be parsed`() {
+        val rawMessages = listOf(
+            rawMessage(0, 100_000),
+            mapOf("hash" to "missing"),
+            mapOf("data" to "not base64!", "hash" to "invalid"),
+            mapOf("data" to Base64.encodeBytes("garbage".toByteArray()), "hash" to "garbage"),
+            rawMessage(4, 10)
+        )
+        assertEquals(listOf("hash0", "hash4"), SnodeAPI.parseEnvelopes(rawMessages).map { it.second })
+    }
+}
@@ -0,0 +1,127 @@
+package org.session.libsession.snode
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.session.libsignal.utilities.Snode
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class SnodePoolTest {
+
+    private val executor = Executors.newSingleThreadScheduledExecutor()
+    private val persistCount = AtomicInteger()
+    @Volatile private var persisted: Set<Snode> = setOf()
+
+    private fun snodes(count: Int) = (0 until count).map { Snode("https://10.0.${it / 256}.${it % 256}", 22021, null) }.toSet()
+
+    private fun pool(initial: Set<Snode>, persistDelayMillis: Long = 50L, onPersist: () -> Unit = {}) = SnodePool(
+        load = { initial },
+        persist = { onPersist(); persistCount.incrementAndGet(); persisted = it },
+        persistDelayMillis = persistDelayMillis,
+        executor = executor
+    )
+
+    @After
+    fun tearDown() {
+        executor.shutdownNow()
+    }
+
+    @Test
+    fun `it should batch persistence of parallel drops`() {
+        val all = snodes(1000)
+        val pool = pool(all)
+        val toDrop = all.take(800)
+        val threadCount = 8
+        val workers = Executors.newFixedThreadPool(threadCount)
+        val start = CountDownLatch(1)
+        val done = CountDownLatch(threadCount)
+        val staleReads = AtomicInteger()
+        toDrop.chunked(toDrop.size / threadCount).forEach { chunk ->
+            workers.execute {
+                start.await()
+                chunk.forEach { snode ->
+                    pool.remove(snode)
+                    // Readers should always see a consistent snapshot while drops are happening
+                    if (pool.current.contains(snode)) { staleReads.incrementAndGet() }
+                }
+                done.countDown()
+            }
+        }
+        start.countDown()
+        assertTrue(done.await(10, TimeUnit.SECONDS))
+        workers.shutdown()
+        pool.flush()
+
+        assertEquals(0, staleReads.get())
+        val expected = all - toDrop
+        assertEquals(expected, pool.current)
+        assertEquals(expected.size, pool.size)
+        assertEquals(expected, persisted)
+        // Hundreds of drops should only have been persisted a handful of times
+        assertTrue("Persisted ${persistCount.get()} times", persistCount.get() < 10)
+    }
+
+    @Test
+    fun `it should persist removals after the delay`() {
+        val all = snodes(20)
+        val pool = pool(all, persistDelayMillis = 10L)
+        val dropped = all.first()
+        assertTrue(pool.remove(dropped))
+        assertEquals(false, pool.remove(dropped))
+        Thread.sleep(200)
+        assertEquals(1, persistCount.get())
+        assertEquals(all - dropped, persisted)
+    }
+
+    @Test
+    fun `it should persist replacements immediately`() {
+        val pool = pool(snodes(5))
+        val replacement = snodes(10)
+        pool.replace(replacement)
+        assertEquals(replacement, persisted)
+        assertEquals(replacement, pool.current)
+    }
+
+    @Test
+    fun `it should not let a pending removal be persisted after a replacement`() {
+        val all = snodes(20)
+        // Long enough that the scheduled flush never runs during the test
+        val pool = pool(all, persistDelayMillis = 60_000L)
+        assertTrue(pool.remove(all.first()))
+        val replacement = snodes(10)
+        pool.replace(replacement)
+        pool.flush()
+        assertEquals(1, persistCount.get())
+        assertEquals(replacement, persisted)
+    }
+
+    @Test
+    fun `it should not let a flush in progress overwrite a replacement`() {
+        val all = snodes(20)
+        val isFlushing = CountDownLatch(1)
+        val finishFlush = CountDownLatch(1)
+        val pool = pool(all, persistDelayMillis = 60_000L, onPersist = {
+            if (isFlushing.count > 0) {
+                isFlushing.countDown()
+                finishFlush.await()
+            }
+        })
+        assertTrue(pool.remove(all.first()))
+        val flush = Thread { pool.flush() }.apply { start() }
+        assertTrue(isFlushing.await(10, TimeUnit.SECONDS))
+        val replacement = snodes(10)
+        val replace = Thread { pool.replace(replacement) }.apply { start() }
+        // The replacement has to wait for the flush that's already writing
+        replace.join(100)
+        assertTrue(replace.isAlive)
+        finishFlush.countDown()
+        flush.join()
+        replace.join()
+        assertEquals(replacement, persisted)
+        assertEquals(replacement, pool.current)
+    }
+}
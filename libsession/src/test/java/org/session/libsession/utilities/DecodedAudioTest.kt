@@ -0,0 +1,65 @@
+package org.session.libsession.utilities
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.nio.ShortBuffer
+import kotlin.math.PI
+import kotlin.math.sin
+import kotlin.random.Random
+
+class DecodedAudioTest {
+
+    // A tone that swells and fades, with some noise, interleaved across the channels
+    private fun pcm(numSamples: Int, channels: Int, random: Random = Random(1)): ShortArray =
+        ShortArray(numSamples * channels) { index ->
+            val sampleIdx = index / channels
+            val envelope = sin(PI * sampleIdx / numSamples)
+            val tone = sin(2 * PI * 440 * sampleIdx / 44_100) * envelope * 20_000
+            (tone + random.nextInt(-500, 500)).toInt().toShort()
+        }
+
+    // Feeds the samples through in buffers of random sizes, as MediaCodec output arrives
+    private fun streamedRms(samples: ShortArray, numSamples: Int, channels: Int, maxFrames: Int, random: Random = Random(2)): ByteArray {
+        val calculator = RmsCalculator(numSamples, channels, maxFrames)
+        var offset = 0
+        while (offset < samples.size) {
+            val length = minOf(random.nextInt(1, 5_000), samples.size - offset)
+            calculator.add(ShortBuffer.wrap(samples, offset, length).slice())
+            offset += length
+        }
+        return calculator.finish()
+    }
+
+    @Test
+    fun `it should compute the same waveform while streaming`() {
+        listOf(1, 2).forEach { channels ->
+            listOf(441_000, 44_100, 12_345).forEach { numSamples ->
+                listOf(64, 100).forEach { maxFrames ->
+                    val samples = pcm(numSamples, channels)
+                    val expected = calculateRms(ShortBuffer.wrap(samples), numSamples, channels, maxFrames)
+                    assertArrayEquals("$channels channels, $numSamples samples, $maxFrames frames",
+                        expected, streamedRms(samples, numSamples, channels, maxFrames))
+                }
+            }
+        }
+    }
+
+    @Test
+    fun `it should compute the same waveform for fewer samples than frames`() {
+        val samples = pcm(50, 1)
+        assertArrayEquals(calculateRms(ShortBuffer.wrap(samples), 50, 1, 64), streamedRms(samples, 50, 1, 64))
+    }
+
+    @Test
+    fun `it should ignore samples past the expected number`() {
+        val samples = pcm(44_100, 2)
+        val extra = samples + pcm(1_000, 2, Random(3))
+        assertArrayEquals(streamedRms(samples, 44_100, 2, 64), streamedRms(extra, 44_100, 2, 64))
+    }
+
+    @Test
+    fun `it should return no values for no samples`() {
+        assertEquals(0, RmsCalculator(0, 1, 64).finish().size)
+    }
+}
@@ -0,0 +1,94 @@
+package org.session.libsession.utilities
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.IOException
+import kotlin.random.Random
+
+class DownloadUtilitiesTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val file = Random(1).nextBytes(10_000)
+    private val requestedRanges = mutableListOf<LongRange>()
+
+    // Stands in for a server supporting ranges, which drops the connection for the given requests
+    private fun server(content: ByteArray = file, failingRequests: Set<Int> = setOf()): (LongRange) -> ByteArray = { range ->
+        requestedRanges += range
+        if (requestedRanges.size - 1 in failingRequests) throw IOException("Connection dropped")
+        content.copyOfRange(range.first.toInt(), minOf(range.last.toInt() + 1, content.size))
+    }
+
+    @Test
+    fun `it should download a file in ranges`() {
+        val destination = folder.newFile()
+        assertTrue(DownloadUtilities.downloadRanges(destination, file.size.toLong(), 4_000, server()))
+        assertArrayEquals(file, destination.readBytes())
+        assertEquals(listOf(0L until 4_000L, 4_000L until 8_000L, 8_000L until 10_001L), requestedRanges)
+    }
+
+    @Test
+    fun `it should continue an interrupted download where it stopped`() {
+        val destination = folder.newFile()
+        // Both attempts at the second range fail, failing the download
+        try {
+            DownloadUtilities.downloadRanges(destination, file.size.toLong(), 4_000, server(failingRequests = setOf(1, 2)))
+        } catch (e: IOException) {
+            // Expected
+        }
+        assertEquals(4_000L, destination.length())
+
+        requestedRanges.clear()
+        assertTrue(DownloadUtilities.downloadRanges(destination, file.size.toLong(), 4_000, server()))
+        assertArrayEquals(file, destination.readBytes())
+        assertEquals(4_000L, requestedRanges.first().first)
+    }
+
+    @Test
+    fun `it should retry a range once`() {
+        val destination = folder.newFile()
+        assertTrue(DownloadUtilities.downloadRanges(destination, file.size.toLong(), 4_000, server(failingRequests = setOf(1))))
+        assertArrayEquals(file, destination.readBytes())
+    }
+
+    @Test
+    fun `it should accept the whole file from a server that ignores ranges`() {
+        val destination = folder.newFile()
+        destination.writeBytes(file.copyOf(4_000))
+        assertTrue(DownloadUtilities.downloadRanges(destination, file.size.toLong(), 4_000) { file })
+        assertArrayEquals(file, destination.readBytes())
+    }
+
+    @Test
+    fun `it should report a file that's longer than expected`() {
+        val destination = folder.newFile()
+        val longer = file + byteArrayOf(1)
+        assertFalse(DownloadUtilities.downloadRanges(destination, file.size.toLong(), 4_000, server(longer)))
+    }
+
+    @Test
+    fun `it should keep a range that ends early for a later attempt`() {
+        val destination = folder.newFile()
+        val truncated: (LongRange) -> ByteArray = { range ->
+            requestedRanges += range
+            // The connection closes cleanly partway through the second range
+            file.copyOfRange(range.first.toInt(), minOf(range.last.toInt() + 1, 6_000))
+        }
+        try {
+            DownloadUtilities.downloadRanges(destination, file.size.toLong(), 4_000, truncated)
+            throw AssertionError("Expected the short range to fail the download")
+        } catch (e: IOException) {
+            // Expected
+        }
+        assertEquals(6_000L, destination.length())
+
+        assertTrue(DownloadUtilities.downloadRanges(destination, file.size.toLong(), 4_000, server()))
+        assertArrayEquals(file, destination.readBytes())
+    }
+}
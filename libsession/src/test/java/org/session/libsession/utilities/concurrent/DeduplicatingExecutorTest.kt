@@ -0,0 +1,92 @@
+package org.session.libsession.utilities.concurrent
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class DeduplicatingExecutorTest {
+
+    private val pool = SignalExecutors.newCachedLifoExecutor("test", 4)
+    private val calls = ConcurrentHashMap<Int, AtomicInteger>()
+    private val running = AtomicInteger()
+    private val maxRunning = AtomicInteger()
+
+    @After
+    fun tearDown() {
+        pool.shutdownNow()
+    }
+
+    private fun task(key: Int, block: () -> Unit = { Thread.sleep(20) }) = Callable {
+        calls.getOrPut(key) { AtomicInteger() }.incrementAndGet()
+        maxRunning.accumulateAndGet(running.incrementAndGet()) { a, b -> maxOf(a, b) }
+        try {
+            block()
+        } finally {
+            running.decrementAndGet()
+        }
+        "result $key on ${Thread.currentThread().name}"
+    }
+
+    @Test
+    fun `it should run many requests in parallel and each key once`() {
+        val executor = DeduplicatingExecutor<Int, String>(pool)
+        val futures = (0 until 200).map { index -> executor.submit(index % 20, task(index % 20)) }
+
+        futures.forEach { it.get(10, TimeUnit.SECONDS) }
+        assertEquals((0 until 20).toSet(), calls.keys)
+        calls.values.forEach { assertEquals(1, it.get()) }
+        assertTrue("At most ${maxRunning.get()} running at once", maxRunning.get() in 2..4)
+    }
+
+    @Test
+    fun `it should run a queued task on the calling thread`() {
+        val serial = Executors.newSingleThreadExecutor()
+        val gate = CountDownLatch(1)
+        serial.execute { gate.await() }
+
+        val executor = DeduplicatingExecutor<Int, String>(serial)
+        val queued = executor.submit(1, task(1))
+        val result = executor.run(1, task(1))
+
+        assertEquals("result 1 on ${Thread.currentThread().name}", result)
+        assertEquals(result, queued.get())
+        gate.countDown()
+        serial.shutdown()
+        serial.awaitTermination(10, TimeUnit.SECONDS)
+        assertEquals(1, calls.getValue(1).get())
+    }
+
+    @Test
+    fun `it should wait for a task that's already running`() {
+        val started = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val executor = DeduplicatingExecutor<Int, String>(pool)
+        val inFlight = executor.submit(1, task(1) { started.countDown(); release.await() })
+        started.await()
+
+        val waiter = Executors.newSingleThreadExecutor()
+        val waiting = waiter.submit<String> { executor.run(1, task(1)) }
+        // Give the waiter time to get to the running task before it finishes
+        Thread.sleep(200)
+        release.countDown()
+
+        assertEquals(inFlight.get(), waiting.get(10, TimeUnit.SECONDS))
+        assertEquals(1, calls.getValue(1).get())
+        waiter.shutdown()
+    }
+
+    @Test
+    fun `it should run a key again once its task has finished`() {
+        val executor = DeduplicatingExecutor<Int, String>(pool)
+        executor.run(1, task(1))
+        executor.run(1, task(1))
+        assertEquals(2, calls.getValue(1).get())
+    }
+}
@@ -1231,6 +1231,81 @@ public class Base64
     
 	
 	
+    /**
+     * Decodes Base64 characters straight from <var>source</var> into
+     * <var>destination</var>, without copying the string into an
+     * intermediate byte array or allocating a new output array. Meant
+     * for decoding many values into a single reused buffer.
+     * <strong>Does not detect or decompress gzipped data.</strong>
+     *
+     * @param source the Base64 encoded characters
+     * @param destination the array to hold the decoded bytes; must be at
+     *        least {@link #getMaxDecodedLength(int)} bytes long
+     * @return the number of decoded bytes written to <var>destination</var>
+     * @throws java.io.IOException If bogus characters exist in source data
+     */
+    public static int decodeInto( CharSequence source, byte[] destination )
+    throws java.io.IOException {
+
+        if( source == null ){
+            throw new NullPointerException( "Cannot decode null source." );
+        }   // end if
+        int len = source.length();
+        if( destination.length < getMaxDecodedLength( len ) ){
+            throw new IllegalArgumentException( String.format(
+            "Destination array with length %d is too small to decode %d characters.", destination.length, len ) );
+        }   // end if
+        if( len == 0 ){
+            return 0;
+        }else if( len < 4 ){
+            throw new IllegalArgumentException(
+            "Base64-encoded string must have at least four characters, but length specified was " + len );
+        }   // end if
+
+        byte[] DECODABET   = getDecodabet( NO_OPTIONS );
+        byte[] b4          = new byte[4];
+        int    b4Posn      = 0;
+        int    outBuffPosn = 0;
+
+        for( int i = 0; i < len; i++ ) {
+            char c = source.charAt( i );
+            byte sbiCrop   = (byte)(c & 0x7f);
+            byte sbiDecode = c < 128 ? DECODABET[ sbiCrop ] : -9;
+
+            if( sbiDecode >= WHITE_SPACE_ENC )  {
+                if( sbiDecode >= EQUALS_SIGN_ENC ) {
+                    b4[ b4Posn++ ] = sbiCrop;
+                    if( b4Posn > 3 ) {
+                        outBuffPosn += decode4to3( b4, 0, destination, outBuffPosn, NO_OPTIONS );
+                        b4Posn = 0;
+                        if( sbiCrop == EQUALS_SIGN ) {
+                            break;
+                        }   // end if: equals sign
+                    }   // end if: quartet built
+                }   // end if: equals sign or better
+            }   // end if: white space, equals sign or better
+            else {
+                throw new java.io.IOException( String.format(
+                "Bad Base64 input character '%c' in position %d", c, i ) );
+            }   // end else
+        }   // each input character
+
+        return outBuffPosn;
+    }   // end decodeInto
+
+
+    /**
+     * Returns an upper bound on the number of bytes that
+     * <var>encodedLength</var> Base64 characters decode to.
+     *
+     * @param encodedLength the number of Base64 characters
+     * @return the maximum number of decoded bytes
+     */
+    public static int getMaxDecodedLength( int encodedLength ) {
+        return encodedLength * 3 / 4;
+    }
+
+
     /**
      * Decodes data from Base64 notation, automatically
      * detecting gzip-compressed data and decompressing it.